@@ -12,9 +12,12 @@ import android.util.Log;
 import org.chimple.flores.application.P2PApplication;
 import org.chimple.flores.db.AppDatabase;
 import org.chimple.flores.db.P2PDBApiImpl;
+import org.chimple.flores.db.SequenceRanges;
 import org.chimple.flores.db.dao.P2PSyncInfoDao;
+import org.chimple.flores.db.entity.HandShakingInfo;
 import org.chimple.flores.db.entity.HandShakingMessage;
 import org.chimple.flores.db.entity.P2PSyncInfo;
+import org.chimple.flores.multicast.HandShakingDigests;
 import org.chimple.flores.multicast.MulticastManager;
 import org.junit.After;
 import org.junit.Before;
@@ -24,25 +27,39 @@ import org.junit.runner.RunWith;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 import kotlin.jvm.JvmField;
 
 import static org.chimple.flores.application.P2PContext.SHARED_PREF;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 
 @RunWith(AndroidJUnit4.class)
 public class ExampleInstrumentedTest {
     private static final String TAG = ExampleInstrumentedTest.class.getName();
+    // received messages are applied by the inbound pipeline, tests wait for it before checking the database
+    private static final long PIPELINE_TIMEOUT = 10 * 1000; // 10 sec
+    // small enough to split a handshake of three infos over several pages
+    private static final int SMALL_PAGE_BUDGET = 160;
+    private static final int LARGE_PAGE_BUDGET = 1024;
     private AppDatabase database;
     private P2PSyncInfoDao p2PSyncInfoDao;
     private P2PDBApiImpl p2pDBAPI = null;
     private MulticastManager manager;
     private Context context;
     private List<String> users = new ArrayList<String>();
+    private int handShakeRound = 0;
 
     @Rule
     @JvmField
@@ -111,14 +128,14 @@ public class ExampleInstrumentedTest {
         for (int i = 0; i < 5; i++) {
             int s = i + 1;
             setUpTestData("A", s);
-            manager.getAllSyncInfosReceived().add("A-device" + "_" + "A" + "_" + s);
+            manager.getReceivedSequences().add("A", "A-device", s);
         }
 
         for (int i = 0; i < 10; i++) {
             int s = i + 1;
             if (s <= 3) {
                 setUpTestData("B", s);
-                manager.getAllSyncInfosReceived().add("B-device" + "_" + "B" + "_" + s);
+                manager.getReceivedSequences().add("B", "B-device", s);
             }
 
             if (s > 3 && s <= 6) {
@@ -127,7 +144,7 @@ public class ExampleInstrumentedTest {
 
             if (s > 6 && s <= 10) {
                 setUpTestData("B", s);
-                manager.getAllSyncInfosReceived().add("B-device" + "_" + "B" + "_" + s);
+                manager.getReceivedSequences().add("B", "B-device", s);
             }
 
             if (s <= 2) {
@@ -135,7 +152,7 @@ public class ExampleInstrumentedTest {
             }
             if (s > 2 && s <= 4) {
                 setUpTestData("C", s);
-                manager.getAllSyncInfosReceived().add("C-device" + "_" + "C" + "_" + s);
+                manager.getReceivedSequences().add("C", "C-device", s);
             }
 
             if (s > 4 && s <= 7) {
@@ -145,7 +162,7 @@ public class ExampleInstrumentedTest {
 
             if (s > 7 && s <= 8) {
                 setUpTestData("C", s);
-                manager.getAllSyncInfosReceived().add("C-device" + "_" + "C" + "_" + s);
+                manager.getReceivedSequences().add("C", "C-device", s);
             }
         }
 
@@ -160,7 +177,7 @@ public class ExampleInstrumentedTest {
             int s = i + 1;
             if (s <= 3) {
                 setUpTestData("A", s);
-                manager.getAllSyncInfosReceived().add("A-device" + "_" + "A" + "_" + s);
+                manager.getReceivedSequences().add("A", "A-device", s);
             }
 
             if (s > 3 && s <= 6) {
@@ -169,7 +186,7 @@ public class ExampleInstrumentedTest {
 
             if (s > 6 && s <= 10) {
                 setUpTestData("A", s);
-                manager.getAllSyncInfosReceived().add("A-device" + "_" + "A" + "_" + s);
+                manager.getReceivedSequences().add("A", "A-device", s);
             }
 
             if (s <= 6) {
@@ -178,7 +195,7 @@ public class ExampleInstrumentedTest {
 
             if (s > 6 && s <= 10) {
                 setUpTestData("B", s);
-                manager.getAllSyncInfosReceived().add("B-device" + "_" + "B" + "_" + s);
+                manager.getReceivedSequences().add("B", "B-device", s);
             }
 
         }
@@ -226,6 +243,69 @@ public class ExampleInstrumentedTest {
         p2pDBAPI.deleteDataPerDeviceId("C-device");
         p2pDBAPI.deleteDataPerDeviceId("D-device");
         p2pDBAPI.deleteDataPerDeviceId("E-device");
+        manager.getReceivedSequences().clear();
+    }
+
+    private static HandShakingInfo info(String user, long sequence) {
+        return info(user, sequence, null);
+    }
+
+    private static HandShakingInfo info(String user, long sequence, String missingSequences) {
+        return new HandShakingInfo(user, user + "-device", sequence, missingSequences != null ? SequenceRanges.parse(missingSequences) : null, null);
+    }
+
+    // a full handshake as a peer sends it, carrying the digest of its state
+    private static HandShakingMessage handShake(String from, HandShakingInfo... infos) {
+        HandShakingMessage message = new HandShakingMessage(from, "handshaking", "false", new ArrayList<HandShakingInfo>(Arrays.asList(infos)));
+        message.setDigest(HandShakingDigests.digest(message.getInfos()));
+        return message;
+    }
+
+    // receives the handshake as pages of the given budget, returns what the last page completed
+    private HandShakingMessage receiveHandShake(HandShakingMessage message, int payloadBudget) {
+        HandShakingMessage received = null;
+        for (String page : p2pDBAPI.serializeHandShakingPages(message, ++handShakeRound, payloadBudget)) {
+            received = manager.parseHandShakingMessage(page);
+        }
+        assertNotNull(received);
+        assertTrue(received.isComplete());
+        assertEquals(message.getDigest(), received.getDigest());
+        return received;
+    }
+
+    // answers the sync requests as A and B seeded by seedInitialDataForA and seedInitialDataForB would
+    private List<String> answerSyncRequests(List<String> jsons) {
+        List<String> syncInfos = new ArrayList<String>();
+        for (String json : jsons) {
+            if (json.contains("\"md\":\"B-device\"")) {
+                cleanData();
+                seedInitialDataForB();
+                updateInfos("B", "B-device");
+            } else if (json.contains("\"md\":\"A-device\"")) {
+                cleanData();
+                seedInitialDataForA();
+                updateInfos("A", "A-device");
+            }
+            syncInfos.addAll(manager.processInComingSyncRequestMessage(json));
+            cleanData();
+        }
+        return syncInfos;
+    }
+
+    private void receiveSyncInfos(List<String> syncInfos) throws InterruptedException {
+        for (String s : syncInfos) {
+            manager.processInComingSyncInfoMessage(s, "");
+        }
+        assertTrue("inbound pipeline did not drain", manager.getInboundPipeline().awaitIdle(PIPELINE_TIMEOUT));
+    }
+
+    // every sequence from 1 up to the given one is held, none of them as a missing placeholder
+    private void assertHeld(String user, long sequence) {
+        List<P2PSyncInfo> infos = p2pDBAPI.getSyncInformationByUserIdAndDeviceId(user, user + "-device");
+        assertEquals(user + " records", sequence, infos.size());
+        for (P2PSyncInfo info : infos) {
+            assertFalse(user + " sequence " + info.getSequence() + " still missing", "missing".equals(info.getMessageType()));
+        }
     }
 
     private void updateInfos(String userId, String deviceId) {
@@ -247,61 +327,37 @@ public class ExampleInstrumentedTest {
         String handShakeMessageJSON = "{\"f\":\"0f74666c-0492-4285-a17f-fc67503940a6\",\"i\":[{\"d\":\"0f74666c-0492-4285-a17f-fc67503940a6\",\"ps\":1,\"s\":1,\"u\":\"eeddae92-c43c-4e4e-a0b5-e9d9af957e52\"}],\"mt\":\"handshaking\",\"r\":\"true\"}";
 
         HandShakingMessage m = p2pDBAPI.deSerializeHandShakingInformationFromJson(handShakeMessageJSON);
+        assertEquals(1, m.getInfos().size());
         cleanData();
         List<P2PSyncInfo> p2PSyncInfos = p2pDBAPI.getInfoByUserId("E");
         assertEquals(p2PSyncInfos.size(), 0);
     }
 
     @Test
-    public void testSyncNewLogic() {
+    public void testSyncNewLogic() throws InterruptedException {
         cleanData();
         updateInfos("D", "D-device");
         seedInitialDataForD();
         String serializedHandShakingMessage = p2pDBAPI.serializeHandShakingMessage(false);
         Log.d(TAG, serializedHandShakingMessage);
-        String handShakingFromA = "{\"f\":\"A-device\",\"i\":[{\"d\":\"A-device\",\"s\":10,\"u\":\"A\"},{\"d\":\"B-device\",\"ms\":\"11001\",\"s\":5,\"u\":\"B\"},{\"d\":\"C-device\",\"ms\":\"01111\",\"s\":7,\"u\":\"C\"}],\"mt\":\"handshaking\"}";
-        String handShakingFromB = "{\"f\":\"B-device\",\"i\":[{\"d\":\"A-device\",\"ms\":\"01111\",\"s\":8,\"u\":\"A\"},{\"d\":\"B-device\",\"s\":10,\"u\":\"B\"},{\"d\":\"C-device\",\"ms\":\"01111\", \"s\":10,\"u\":\"C\"}],\"mt\":\"handshaking\"}";
-//        String handShakingFromC = "{\"from\":\"C-device\",\"infos\":[{\"deviceId\":\"B-device\",\"sequence\":3,\"userId\":\"B\"},{\"deviceId\":\"C-device\",\"sequence\":10,\"userId\":\"C\"}],\"message_type\":\"handshaking\"}";
-//        manager.parseHandShakingMessage(handShakingFromC);
-        manager.parseHandShakingMessage(handShakingFromA);
-        manager.parseHandShakingMessage(handShakingFromB);
-        List<String> jsons = manager.generateSyncInfoPullRequest(manager.getAllHandShakeMessagesInCurrentLoop());
+        // A and B as seeded by seedInitialDataForA and seedInitialDataForB, B's handshake comes in pages
+        Map<String, HandShakingMessage> handShakes = new HashMap<String, HandShakingMessage>();
+        handShakes.put("A-device", receiveHandShake(handShake("A-device", info("A", 10), info("B", 5), info("C", 6)), LARGE_PAGE_BUDGET));
+        handShakes.put("B-device", receiveHandShake(handShake("B-device", info("A", 5), info("B", 10), info("C", 4)), SMALL_PAGE_BUDGET));
+        List<String> jsons = manager.generateSyncInfoPullRequest(handShakes);
+        assertFalse(jsons.isEmpty());
 
-
-        List<String> requests = new ArrayList<String>();
-        for (String json : jsons) {
-            if (json.contains("\"md\":\"B-device\"")) {
-                cleanData();
-                seedInitialDataForB();
-                updateInfos("B", "B-device");
-            } else if (json.contains("\"md\":\"A-device\"")) {
-                cleanData();
-                seedInitialDataForA();
-                updateInfos("A", "A-device");
-            }
-            requests.addAll(manager.processInComingSyncRequestMessage(json));
-            cleanData();
-        }
+        List<String> syncInfos = answerSyncRequests(jsons);
+        assertFalse(syncInfos.isEmpty());
 
         updateInfos("D", "D-device");
         seedInitialDataForD();
-        List<P2PSyncInfo> a = p2pDBAPI.getSyncInformationByUserIdAndDeviceId("A", "A-device");
-        List<P2PSyncInfo> d = p2pDBAPI.getSyncInformationByUserIdAndDeviceId("D", "D-device");
+        receiveSyncInfos(syncInfos);
 
-        for (String s : requests) {
-            manager.processInComingSyncInfoMessage(s, "");
-        }
-
-
-        List<P2PSyncInfo> a1 = p2pDBAPI.getSyncInformationByUserIdAndDeviceId("A", "A-device");
-        List<P2PSyncInfo> b1 = p2pDBAPI.getSyncInformationByUserIdAndDeviceId("B", "B-device");
-        List<P2PSyncInfo> d1 = p2pDBAPI.getSyncInformationByUserIdAndDeviceId("D", "D-device");
-//        assertEquals(computedMessages.size(), 12);
-//        Iterator<String> it = computedMessages.iterator();
-//        while (it.hasNext()) {
-//            String p = it.next();
-//            Log.d(TAG, p);
-//        }
+        // A's records after 5 and B's missing 4 to 6
+        assertHeld("A", 10);
+        assertHeld("B", 10);
+        assertHeld("D", 10);
         cleanData();
         List<P2PSyncInfo> p2PSyncInfos = p2pDBAPI.getInfoByUserId("D");
         assertEquals(p2PSyncInfos.size(), 0);
@@ -309,55 +365,29 @@ public class ExampleInstrumentedTest {
 
 
     @Test
-    public void testNewLogic() {
+    public void testNewLogic() throws InterruptedException {
         cleanData();
         updateInfos("D", "D-device");
         seedInitialDataForD();
         String serializedHandShakingMessage = p2pDBAPI.serializeHandShakingMessage(false);
         Log.d(TAG, serializedHandShakingMessage);
-        String handShakingFromA = "{\"from\":\"A-device\",\"infos\":[{\"deviceId\":\"A-device\",\"sequence\":10,\"userId\":\"A\"},{\"deviceId\":\"B-device\",\"sequence\":5,\"userId\":\"B\"},{\"deviceId\":\"C-device\",\"sequence\":6,\"userId\":\"C\"}],\"message_type\":\"handshaking\"}";
-        String handShakingFromB = "{\"from\":\"B-device\",\"infos\":[{\"deviceId\":\"A-device\",\"sequence\":5,\"userId\":\"A\"},{\"deviceId\":\"B-device\",\"sequence\":10,\"userId\":\"B\"},{\"deviceId\":\"C-device\",\"sequence\":4,\"userId\":\"C\"}],\"message_type\":\"handshaking\"}";
-//        String handShakingFromC = "{\"from\":\"C-device\",\"infos\":[{\"deviceId\":\"B-device\",\"sequence\":3,\"userId\":\"B\"},{\"deviceId\":\"C-device\",\"sequence\":10,\"userId\":\"C\"}],\"message_type\":\"handshaking\"}";
-//        manager.parseHandShakingMessage(handShakingFromC);
-        manager.parseHandShakingMessage(handShakingFromA);
-        manager.parseHandShakingMessage(handShakingFromB);
-        List<String> jsons = manager.generateSyncInfoPullRequest(manager.getAllHandShakeMessagesInCurrentLoop());
+        // handshakes without a digest, as peers that predate digests send them
+        HandShakingMessage handShakingFromA = new HandShakingMessage("A-device", "handshaking", "false", new ArrayList<HandShakingInfo>(Arrays.asList(info("A", 10), info("B", 5), info("C", 6))));
+        HandShakingMessage handShakingFromB = new HandShakingMessage("B-device", "handshaking", "false", new ArrayList<HandShakingInfo>(Arrays.asList(info("A", 5), info("B", 10), info("C", 4))));
+        Map<String, HandShakingMessage> handShakes = new HashMap<String, HandShakingMessage>();
+        handShakes.put("A-device", manager.parseHandShakingMessage(p2pDBAPI.serializeHandShakingMessage(handShakingFromA)));
+        handShakes.put("B-device", manager.parseHandShakingMessage(p2pDBAPI.serializeHandShakingMessage(handShakingFromB)));
+        List<String> jsons = manager.generateSyncInfoPullRequest(handShakes);
+        assertFalse(jsons.isEmpty());
 
-
-        List<String> requests = new ArrayList<String>();
-        for (String json : jsons) {
-            if (json.contains("\"md\":\"B-device\"")) {
-                cleanData();
-                seedInitialDataForB();
-                updateInfos("B", "B-device");
-            } else if (json.contains("\"md\":\"A-device\"")) {
-                cleanData();
-                seedInitialDataForA();
-                updateInfos("A", "A-device");
-            }
-            requests.addAll(manager.processInComingSyncRequestMessage(json));
-            cleanData();
-        }
+        List<String> syncInfos = answerSyncRequests(jsons);
 
         updateInfos("D", "D-device");
         seedInitialDataForD();
-        List<P2PSyncInfo> a = p2pDBAPI.getSyncInformationByUserIdAndDeviceId("A", "A-device");
-        List<P2PSyncInfo> d = p2pDBAPI.getSyncInformationByUserIdAndDeviceId("D", "D-device");
-
-        for (String s : requests) {
-            manager.processInComingSyncInfoMessage(s, "");
-        }
-
+        receiveSyncInfos(syncInfos);
 
-        List<P2PSyncInfo> a1 = p2pDBAPI.getSyncInformationByUserIdAndDeviceId("A", "A-device");
-        List<P2PSyncInfo> b1 = p2pDBAPI.getSyncInformationByUserIdAndDeviceId("B", "B-device");
-        List<P2PSyncInfo> d1 = p2pDBAPI.getSyncInformationByUserIdAndDeviceId("D", "D-device");
-//        assertEquals(computedMessages.size(), 12);
-//        Iterator<String> it = computedMessages.iterator();
-//        while (it.hasNext()) {
-//            String p = it.next();
-//            Log.d(TAG, p);
-//        }
+        assertHeld("A", 10);
+        assertHeld("B", 10);
         cleanData();
         List<P2PSyncInfo> p2PSyncInfos = p2pDBAPI.getInfoByUserId("D");
         assertEquals(p2PSyncInfos.size(), 0);
@@ -373,7 +403,7 @@ public class ExampleInstrumentedTest {
         seedInitialDataForA();
         String serializedHandShakingMessage = p2pDBAPI.serializeHandShakingMessage(false);
         Log.d(TAG, serializedHandShakingMessage);
-        String handShakingFromC = "{\"from\":\"C\",\"infos\":[{\"deviceId\":\"B-device\",\"sequence\":3,\"userId\":\"B\"},{\"deviceId\":\"C-device\",\"sequence\":10,\"userId\":\"C\"}],\"message_type\":\"handshaking\"}";
+        String handShakingFromC = p2pDBAPI.serializeHandShakingMessage(handShake("C", info("B", 3), info("C", 10)));
         manager.parseHandShakingMessage(handShakingFromC);
         List<String> computedMessages = manager.computeSyncInformation();
         assertEquals(computedMessages.size(), 12);
@@ -397,7 +427,7 @@ public class ExampleInstrumentedTest {
         seedInitialDataForA();
         String serializedHandShakingMessage = p2pDBAPI.serializeHandShakingMessage(false);
         Log.d(TAG, serializedHandShakingMessage);
-        String handShakingFromD = "{\"from\":\"D\",\"infos\":[{\"deviceId\":\"D-device\",\"sequence\":10,\"userId\":\"D\"}],\"message_type\":\"handshaking\"}";
+        String handShakingFromD = p2pDBAPI.serializeHandShakingMessage(handShake("D", info("D", 10)));
         manager.parseHandShakingMessage(handShakingFromD);
         List<String> computedMessages = manager.computeSyncInformation();
         assertEquals(computedMessages.size(), 21);
@@ -422,8 +452,8 @@ public class ExampleInstrumentedTest {
         String serializedHandShakingMessage = p2pDBAPI.serializeHandShakingMessage(false);
         Log.d(TAG, serializedHandShakingMessage);
 
-        String handShakingFromB = "{\"from\":\"B\",\"infos\":[{\"deviceId\":\"A-device\",\"sequence\":5,\"userId\":\"A\"},{\"deviceId\":\"B-device\",\"sequence\":10,\"userId\":\"B\"},{\"deviceId\":\"C-device\",\"sequence\":4,\"userId\":\"C\"}],\"message_type\":\"handshaking\"}";
-        String handShakingFromC = "{\"from\":\"C\",\"infos\":[{\"deviceId\":\"B-device\",\"sequence\":3,\"userId\":\"B\"},{\"deviceId\":\"C-device\",\"sequence\":10,\"userId\":\"C\"}],\"message_type\":\"handshaking\"}";
+        String handShakingFromB = p2pDBAPI.serializeHandShakingMessage(handShake("B", info("A", 5), info("B", 10), info("C", 4)));
+        String handShakingFromC = p2pDBAPI.serializeHandShakingMessage(handShake("C", info("B", 3), info("C", 10)));
         manager.parseHandShakingMessage(handShakingFromB);
         manager.parseHandShakingMessage(handShakingFromC);
         List<String> computedMessages = manager.computeSyncInformation();
@@ -449,8 +479,8 @@ public class ExampleInstrumentedTest {
         String serializedHandShakingMessage = p2pDBAPI.serializeHandShakingMessage(false);
         Log.d(TAG, serializedHandShakingMessage);
         // {"from":"B","infos":[{"deviceId":"A-device","sequence":5,"userId":"A"},{"deviceId":"B-device","sequence":10,"userId":"B"},{"deviceId":"C-device","sequence":4,"userId":"C"}],"message_type":"handshaking"}
-        String handShakingFromA = "{\"from\":\"A\",\"infos\":[{\"deviceId\":\"A-device\",\"sequence\":10,\"userId\":\"A\"},{\"deviceId\":\"B-device\",\"sequence\":5,\"userId\":\"B\"},{\"deviceId\":\"C-device\",\"sequence\":6,\"userId\":\"C\"}],\"message_type\":\"handshaking\"}";
-        String handShakingFromC = "{\"from\":\"C\",\"infos\":[{\"deviceId\":\"B-device\",\"sequence\":3,\"userId\":\"B\"},{\"deviceId\":\"C-device\",\"sequence\":10,\"userId\":\"C\"}],\"message_type\":\"handshaking\"}";
+        String handShakingFromA = p2pDBAPI.serializeHandShakingMessage(handShake("A", info("A", 10), info("B", 5), info("C", 6)));
+        String handShakingFromC = p2pDBAPI.serializeHandShakingMessage(handShake("C", info("B", 3), info("C", 10)));
         manager.parseHandShakingMessage(handShakingFromA);
         manager.parseHandShakingMessage(handShakingFromC);
         List<String> computedMessages = manager.computeSyncInformation();
@@ -478,7 +508,7 @@ public class ExampleInstrumentedTest {
         String serializedHandShakingMessage = p2pDBAPI.serializeHandShakingMessage(false);
         Log.d(TAG, serializedHandShakingMessage);
         // {"from":"B","infos":[{"deviceId":"A-device","sequence":5,"userId":"A"},{"deviceId":"B-device","sequence":10,"userId":"B"},{"deviceId":"C-device","sequence":4,"userId":"C"}],"message_type":"handshaking"}
-        String handShakingFromA = "{\"from\":\"A\",\"infos\":[{\"deviceId\":\"A-device\",\"sequence\":10,\"userId\":\"A\"},{\"deviceId\":\"B-device\",\"sequence\":5,\"userId\":\"B\"},{\"deviceId\":\"C-device\",\"sequence\":6,\"userId\":\"C\"}],\"message_type\":\"handshaking\"}";
+        String handShakingFromA = p2pDBAPI.serializeHandShakingMessage(handShake("A", info("A", 10), info("B", 5), info("C", 6)));
 //        String handShakingFromC = "{\"from\":\"C\",\"infos\":[{\"deviceId\":\"B-device\",\"sequence\":3,\"userId\":\"B\"},{\"deviceId\":\"C-device\",\"sequence\":10,\"userId\":\"C\"}],\"message_type\":\"handshaking\"}";
         manager.parseHandShakingMessage(handShakingFromA);
 //        manager.parseHandShakingMessage(handShakingFromC);
@@ -506,7 +536,7 @@ public class ExampleInstrumentedTest {
         String serializedHandShakingMessage = p2pDBAPI.serializeHandShakingMessage(false);
         Log.d(TAG, serializedHandShakingMessage);
         // {"from":"B","infos":[{"deviceId":"A-device","sequence":5,"userId":"A"},{"deviceId":"B-device","sequence":10,"userId":"B"},{"deviceId":"C-device","sequence":4,"userId":"C"}],"message_type":"handshaking"}
-        String handShakingFromC = "{\"from\":\"C\",\"infos\":[{\"deviceId\":\"B-device\",\"sequence\":3,\"userId\":\"B\"},{\"deviceId\":\"C-device\",\"sequence\":10,\"userId\":\"C\"}],\"message_type\":\"handshaking\"}";
+        String handShakingFromC = p2pDBAPI.serializeHandShakingMessage(handShake("C", info("B", 3), info("C", 10)));
         manager.parseHandShakingMessage(handShakingFromC);
         List<String> computedMessages = manager.computeSyncInformation();
         assertEquals(computedMessages.size(), 12);
@@ -521,9 +551,21 @@ public class ExampleInstrumentedTest {
     }
 
     @Test
-    public void testSyncInfoMessageProcess() {
-        String message = "{\"infos\":[{\"deviceId\":\"A-device\",\"id\":1153,\"loggedAt\":\"Oct 7, 2018 4:15:05 PM\",\"message\":\"Chat\",\"messageType\":\"Hello from: A with - �\\u0007���p:\",\"recipientUserId\":\"recepientUserId\",\"sequence\":7,\"userId\":\"A\"}],\"message_type\":\"syncInfoMessage\"}";
-        manager.processInComingMessage(message, "");
+    public void testSyncInfoMessageProcess() throws InterruptedException {
+        cleanData();
+        updateInfos("D", "D-device");
+        P2PSyncInfo info = new P2PSyncInfo("A", "A-device", 7L, "recepientUserId", generateMessage("A"), "Chat", new Date());
+        info.setSender("A-device");
+        receiveSyncInfos(p2pDBAPI.convertP2PSyncInfosToJsonPackets(Collections.singletonList(info), manager.getSyncPayloadBudget()));
+        // 1 to 6 were never received, 7 is kept and the gap left to repair
+        List<P2PSyncInfo> infos = p2pDBAPI.getSyncInformationByUserIdAndDeviceId("A", "A-device");
+        boolean held = false;
+        for (P2PSyncInfo p : infos) {
+            held |= p.getSequence() == 7 && !"missing".equals(p.getMessageType());
+        }
+        assertTrue(held);
+        assertTrue(manager.getReceivedSequences().contains("A", "A-device", 7));
+        cleanData();
     }
 
     @After
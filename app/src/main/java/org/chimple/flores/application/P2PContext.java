@@ -15,6 +15,7 @@ public class P2PContext {
     public static final String uiMessageEvent = "ui-message-event";
     public static final String newMessageAddedOnDevice = "new-message-added-event";
     public static final String refreshDevice = "refresh-device-event";
+    public static final String deviceToSyncAdded = "device-to-sync-added-event";
     public static final String MULTICAST_IP_ADDRESS = "232.2.1.0";
     public static final String MULTICAST_IP_PORT = "4452";
     public static final String CONSOLE_TYPE = "console";
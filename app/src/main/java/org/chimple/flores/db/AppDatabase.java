@@ -5,6 +5,8 @@ import android.arch.persistence.room.Database;
 import android.arch.persistence.room.Room;
 import android.arch.persistence.room.RoomDatabase;
 import android.arch.persistence.room.TypeConverters;
+import android.arch.persistence.db.SupportSQLiteDatabase;
+import android.arch.persistence.room.migration.Migration;
 import android.support.annotation.VisibleForTesting;
 
 
@@ -15,7 +17,7 @@ import org.chimple.flores.db.entity.P2PSyncDeviceStatus;
 import org.chimple.flores.db.entity.P2PSyncInfo;
 
 @Database(entities = {P2PSyncInfo.class, P2PSyncDeviceStatus.class},
-        version = 1
+        version = 2
 )
 @TypeConverters(
         DateConverter.class)
@@ -23,6 +25,21 @@ public abstract class AppDatabase extends RoomDatabase {
     public static final String DATABASE_NAME = "p2p_db";
     public static final int SYNC_NUMBER_OF_LAST_MESSAGES = 5;
     public static final int PURGE_MESSAGE_LIMIT = 10;
+    // a device synced this recently is not queued for sync again
+    public static final long SYNC_COOL_DOWN = 60 * 1000; // 1 min
+
+    // peer membership columns on P2PSyncDeviceStatus
+    static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE P2PSyncDeviceStatus ADD COLUMN address TEXT");
+            database.execSQL("ALTER TABLE P2PSyncDeviceStatus ADD COLUMN last_seen INTEGER");
+            database.execSQL("ALTER TABLE P2PSyncDeviceStatus ADD COLUMN state_digest INTEGER");
+            database.execSQL("ALTER TABLE P2PSyncDeviceStatus ADD COLUMN rtt INTEGER");
+            database.execSQL("ALTER TABLE P2PSyncDeviceStatus ADD COLUMN loss REAL");
+            database.execSQL("CREATE INDEX IF NOT EXISTS index_P2PSyncDeviceStatus_last_seen ON P2PSyncDeviceStatus (last_seen)");
+        }
+    };
 
     /**
      * The only instance
@@ -38,6 +55,7 @@ public abstract class AppDatabase extends RoomDatabase {
             sInstance = Room
                     .databaseBuilder(context.getApplicationContext(), AppDatabase.class, DATABASE_NAME)
                     .allowMainThreadQueries()
+                    .addMigrations(MIGRATION_1_2)
                     .build();
 //            DatabaseInitializer.populateAsync(sInstance, context, P2PDBApiImpl.getInstance(context));
         }
@@ -0,0 +1,558 @@
+package org.chimple.flores.db;
+
+import android.util.Log;
+
+import org.chimple.flores.db.entity.HandShakingInfo;
+import org.chimple.flores.db.entity.HandShakingMessage;
+import org.chimple.flores.db.entity.NackMessage;
+import org.chimple.flores.db.entity.NackRange;
+import org.chimple.flores.db.entity.P2PSyncInfo;
+import org.chimple.flores.db.entity.ReconcileMessage;
+import org.chimple.flores.db.entity.SyncInfoItem;
+import org.chimple.flores.db.entity.SyncInfoMessage;
+import org.chimple.flores.db.entity.SyncInfoRequestMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.chimple.flores.multicast.MessageFragmenter.FRAME_MAGIC;
+
+/*
+    Binary form of the protocol messages, negotiated in place of Gson JSON:
+    [FRAME_MAGIC][FRAME_BINARY][version][type][body]
+    Numbers are varints, nullable ones shifted by one so 0 means null. Strings are
+    length prefixed UTF-8, ids that are canonical UUIDs take 16 bytes and the handshake
+    missing sequences are ranges, each as the gap from the previous range and its length.
+ */
+public class BinaryMessageCodec {
+
+    private static final String TAG = BinaryMessageCodec.class.getSimpleName();
+
+    public static final byte FRAME_BINARY = 0x05;
+    public static final byte VERSION = 5;
+    static final int HEADER_SIZE = 4;
+
+    static final byte TYPE_HANDSHAKE = 1;
+    static final byte TYPE_SYNC_REQUEST = 2;
+    static final byte TYPE_SYNC_INFO = 3;
+    static final byte TYPE_NACK = 4;
+    static final byte TYPE_RECONCILE = 5;
+
+    private static final int ID_NULL = 0;
+    private static final int ID_UUID = 1;
+    private static final int ID_STRING = 2;
+
+    private static final int DIGEST_PRESENT = 1;
+    private static final int DIGEST_DELTA = 2;
+
+    public byte[] encodeHandShakingMessage(HandShakingMessage message) {
+        ByteArrayOutputStream out = header(TYPE_HANDSHAKE);
+        writeId(out, message.getFrom());
+        out.write("true".equalsIgnoreCase(message.getReply()) ? 1 : 0);
+        writeVarint(out, message.getCapabilities());
+        writeNullable(out, message.getReceivedCount());
+        writeNullable(out, message.getDuplicateCount());
+        writeNullable(out, message.getOutOfSyncCount());
+        writeDigests(out, message);
+        writeNullable(out, message.getRound());
+        writeNullable(out, message.getPage());
+        writeNullable(out, message.getPageCount());
+        writeEchoes(out, message);
+        List<HandShakingInfo> infos = message.getInfos();
+        writeVarint(out, infos != null ? infos.size() : 0);
+        if (infos != null) {
+            for (HandShakingInfo info : infos) {
+                writeHandShakingInfo(out, info);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // one message per page, pages hold as many infos as fit the payload budget
+    public List<byte[]> encodeHandShakingPages(HandShakingMessage message, int round, int payloadBudget) {
+        List<HandShakingInfo> infos = message.getInfos() != null ? message.getInfos() : new ArrayList<HandShakingInfo>();
+        int[] infoSizes = new int[infos.size()];
+        for (int i = 0; i < infos.size(); i++) {
+            ByteArrayOutputStream info = new ByteArrayOutputStream();
+            writeHandShakingInfo(info, infos.get(i));
+            infoSizes[i] = info.size();
+        }
+        // the largest paging fields and a count varint of at most 2 bytes for anything that fits a datagram
+        HandShakingMessage envelope = message.withInfos(new ArrayList<HandShakingInfo>());
+        envelope.setPage(round, Integer.MAX_VALUE - 1, Integer.MAX_VALUE - 1);
+        int envelopeSize = encodeHandShakingMessage(envelope).length + 1;
+
+        List<byte[]> packets = new ArrayList<byte[]>();
+        for (HandShakingMessage page : message.paginate(round, envelopeSize, infoSizes, payloadBudget)) {
+            packets.add(encodeHandShakingMessage(page));
+        }
+        return packets;
+    }
+
+    private static void writeHandShakingInfo(ByteArrayOutputStream out, HandShakingInfo info) {
+        writeId(out, info.getUserId());
+        writeId(out, info.getDeviceId());
+        writeNullable(out, info.getSequence());
+        writeNullable(out, info.getStartingSequence());
+        writeRanges(out, info.getMissingSequences());
+        writeNullable(out, info.getProfileSequence());
+    }
+
+    public byte[] encodeSyncInfoRequestMessage(SyncInfoRequestMessage message) {
+        ByteArrayOutputStream out = header(TYPE_SYNC_REQUEST);
+        writeId(out, message.getmDeviceId());
+        writeId(out, message.getSender());
+        List<SyncInfoItem> items = message.getItems();
+        writeVarint(out, items != null ? items.size() : 0);
+        if (items != null) {
+            for (SyncInfoItem item : items) {
+                writeId(out, item.getUserId());
+                writeId(out, item.getDeviceId());
+                writeNullable(out, item.getSequence());
+                writeNullable(out, item.getStartingSequence());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    public byte[] encodeReconcileMessage(ReconcileMessage message) {
+        ByteArrayOutputStream out = header(TYPE_RECONCILE);
+        writeId(out, message.getFrom());
+        out.write(message.isReply() ? 1 : 0);
+        writeVarint(out, message.getCellCount());
+        byte[] cells = message.getCells();
+        writeVarint(out, cells.length);
+        out.write(cells, 0, cells.length);
+        return out.toByteArray();
+    }
+
+    public byte[] encodeNackMessage(NackMessage message) {
+        ByteArrayOutputStream out = header(TYPE_NACK);
+        writeId(out, message.getFrom());
+        List<NackRange> ranges = message.getRanges();
+        writeVarint(out, ranges.size());
+        for (NackRange range : ranges) {
+            writeId(out, range.getUserId());
+            writeId(out, range.getDeviceId());
+            writeVarint(out, range.getStartingSequence());
+            writeVarint(out, range.getEndingSequence());
+        }
+        return out.toByteArray();
+    }
+
+    /*
+        Same packing as P2PDBApiImpl.convertP2PSyncInfosToJsonPackets: records grouped by sender,
+        as many per message as fit under payloadBudget bytes, an oversized record goes alone.
+     */
+    public List<byte[]> encodeSyncInfoPackets(List<P2PSyncInfo> syncInfos, int payloadBudget) {
+        Map<String, List<byte[]>> recordsBySender = new LinkedHashMap<String, List<byte[]>>();
+        for (P2PSyncInfo p : syncInfos) {
+            List<byte[]> records = recordsBySender.get(p.getSender());
+            if (records == null) {
+                records = new ArrayList<byte[]>();
+                recordsBySender.put(p.getSender(), records);
+            }
+            records.add(encodeSyncInfo(p));
+        }
+
+        List<byte[]> packets = new ArrayList<byte[]>();
+        for (Map.Entry<String, List<byte[]>> entry : recordsBySender.entrySet()) {
+            ByteArrayOutputStream sender = new ByteArrayOutputStream();
+            writeId(sender, entry.getKey());
+            // header, sender and a count varint of at most 2 bytes for anything that fits a datagram
+            int envelopeBytes = HEADER_SIZE + sender.size() + 2;
+
+            List<byte[]> packet = new ArrayList<byte[]>();
+            int packetBytes = envelopeBytes;
+            for (byte[] record : entry.getValue()) {
+                if (!packet.isEmpty() && packetBytes + record.length > payloadBudget) {
+                    packets.add(syncInfoPacket(sender, packet));
+                    packet.clear();
+                    packetBytes = envelopeBytes;
+                }
+                packet.add(record);
+                packetBytes += record.length;
+            }
+            if (!packet.isEmpty()) {
+                packets.add(syncInfoPacket(sender, packet));
+            }
+        }
+        return packets;
+    }
+
+    // returns a HandShakingMessage, SyncInfoRequestMessage, SyncInfoMessage, NackMessage or ReconcileMessage, null if unreadable
+    public Object decode(byte[] payload, int length) {
+        return decode(payload, 0, length);
+    }
+
+    // the message at offset, read in place
+    public Object decode(byte[] bytes, int offset, int length) {
+        if (length < HEADER_SIZE || bytes[offset] != FRAME_MAGIC || bytes[offset + 1] != FRAME_BINARY) {
+            return null;
+        }
+        if (bytes[offset + 2] != VERSION) {
+            Log.d(TAG, "dropping binary message with unsupported version " + bytes[offset + 2]);
+            return null;
+        }
+        ByteBuffer in = ByteBuffer.wrap(bytes, offset + HEADER_SIZE, length - HEADER_SIZE);
+        try {
+            switch (bytes[offset + 3]) {
+                case TYPE_HANDSHAKE:
+                    return decodeHandShakingMessage(in);
+                case TYPE_SYNC_REQUEST:
+                    return decodeSyncInfoRequestMessage(in);
+                case TYPE_SYNC_INFO:
+                    return decodeSyncInfoMessage(in);
+                case TYPE_NACK:
+                    return decodeNackMessage(in);
+                case TYPE_RECONCILE:
+                    return decodeReconcileMessage(in);
+                default:
+                    Log.d(TAG, "dropping binary message with unknown type " + bytes[offset + 3]);
+                    return null;
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            Log.d(TAG, "dropping malformed binary message: " + e);
+            return null;
+        }
+    }
+
+    public static boolean isBinary(byte[] payload, int length) {
+        return length >= HEADER_SIZE && payload[0] == FRAME_MAGIC && payload[1] == FRAME_BINARY;
+    }
+
+    private HandShakingMessage decodeHandShakingMessage(ByteBuffer in) {
+        String from = readId(in);
+        String reply = in.get() == 1 ? "true" : "false";
+        int capabilities = (int) readVarint(in);
+        Long received = readNullable(in);
+        Long duplicates = readNullable(in);
+        Long outOfSync = readNullable(in);
+        int digestFlags = in.get();
+        Long digest = (digestFlags & DIGEST_PRESENT) != 0 ? in.getLong() : null;
+        int acknowledgementCount = readCount(in);
+        Map<String, Long> acknowledgements = acknowledgementCount > 0 ? new HashMap<String, Long>() : null;
+        for (int i = 0; i < acknowledgementCount; i++) {
+            acknowledgements.put(readId(in), in.getLong());
+        }
+        Long round = readNullable(in);
+        Long page = readNullable(in);
+        Long pageCount = readNullable(in);
+        Long sentAt = readNullable(in);
+        int echoCount = readCount(in);
+        Map<String, Long> echoes = echoCount > 0 ? new HashMap<String, Long>() : null;
+        for (int i = 0; i < echoCount; i++) {
+            echoes.put(readId(in), readVarint(in));
+        }
+        int count = readCount(in);
+        List<HandShakingInfo> infos = new ArrayList<HandShakingInfo>(count);
+        for (int i = 0; i < count; i++) {
+            String userId = readId(in);
+            String deviceId = readId(in);
+            Long sequence = readNullable(in);
+            Long startingSequence = readNullable(in);
+            SequenceRanges missingSequences = readRanges(in);
+            Long profileSequence = readNullable(in);
+            HandShakingInfo info = new HandShakingInfo(userId, deviceId, sequence, missingSequences, profileSequence);
+            info.setStartingSequence(startingSequence);
+            infos.add(info);
+        }
+        HandShakingMessage message = new HandShakingMessage(from, "handshaking", reply, infos);
+        message.setCapabilities(capabilities);
+        message.setDigest(digest);
+        message.setDelta(digest != null && (digestFlags & DIGEST_DELTA) != 0);
+        message.setAcknowledgements(acknowledgements);
+        message.setSentAt(sentAt);
+        message.setEchoes(echoes);
+        if (pageCount != null) {
+            message.setPage(round != null ? round.intValue() : 0, page != null ? page.intValue() : 0, pageCount.intValue());
+        }
+        if (received != null) {
+            message.setReceptionReport(received.intValue(),
+                    duplicates != null ? duplicates.intValue() : 0,
+                    outOfSync != null ? outOfSync.intValue() : 0);
+        }
+        return message;
+    }
+
+    private SyncInfoRequestMessage decodeSyncInfoRequestMessage(ByteBuffer in) {
+        String mDeviceId = readId(in);
+        String sender = readId(in);
+        int count = readCount(in);
+        List<SyncInfoItem> items = new ArrayList<SyncInfoItem>(count);
+        for (int i = 0; i < count; i++) {
+            String userId = readId(in);
+            String deviceId = readId(in);
+            Long sequence = readNullable(in);
+            Long startingSequence = readNullable(in);
+            items.add(new SyncInfoItem(userId, deviceId, startingSequence, sequence));
+        }
+        return new SyncInfoRequestMessage(sender, mDeviceId, items);
+    }
+
+    private SyncInfoMessage decodeSyncInfoMessage(ByteBuffer in) {
+        String sender = readId(in);
+        int count = readCount(in);
+        List<P2PSyncInfo> infos = new ArrayList<P2PSyncInfo>(count);
+        for (int i = 0; i < count; i++) {
+            String userId = readId(in);
+            String deviceId = readId(in);
+            Long sequence = readNullable(in);
+            String messageType = readString(in);
+            String recipientUserId = readId(in);
+            String message = readString(in);
+            String sessionId = readString(in);
+            int status = in.get();
+            Long step = readNullable(in);
+            Long createdAt = readNullable(in);
+
+            P2PSyncInfo info = new P2PSyncInfo(userId, deviceId, sequence, recipientUserId, message == null ? "" : message,
+                    messageType, createdAt != null ? new Date(createdAt) : null);
+            info.setSessionId(sessionId);
+            info.setStatus(status == 0 ? null : status == 2);
+            info.setStep(step);
+            info.setSender(sender);
+            infos.add(info);
+        }
+        return new SyncInfoMessage("syncInfoMessage", sender, infos);
+    }
+
+    private ReconcileMessage decodeReconcileMessage(ByteBuffer in) {
+        String from = readId(in);
+        boolean reply = in.get() == 1;
+        int cellCount = (int) readVarint(in);
+        byte[] cells = new byte[readCount(in)];
+        in.get(cells);
+        return new ReconcileMessage(from, reply, cellCount, cells);
+    }
+
+    private NackMessage decodeNackMessage(ByteBuffer in) {
+        String from = readId(in);
+        int count = readCount(in);
+        List<NackRange> ranges = new ArrayList<NackRange>(count);
+        for (int i = 0; i < count; i++) {
+            String userId = readId(in);
+            String deviceId = readId(in);
+            long start = readVarint(in);
+            long end = readVarint(in);
+            ranges.add(new NackRange(userId, deviceId, start, end));
+        }
+        return new NackMessage(from, ranges);
+    }
+
+    private byte[] encodeSyncInfo(P2PSyncInfo p) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        writeId(out, p.getUserId());
+        writeId(out, p.getDeviceId());
+        writeNullable(out, p.getSequence());
+        writeString(out, p.getMessageType());
+        writeId(out, p.getRecipientUserId());
+        writeString(out, p.getMessage());
+        writeString(out, p.getSessionId());
+        out.write(p.getStatus() == null ? 0 : p.getStatus() ? 2 : 1);
+        writeNullable(out, p.getStep());
+        writeNullable(out, p.getCreatedAt() != null ? p.getCreatedAt().getTime() : null);
+        return out.toByteArray();
+    }
+
+    private byte[] syncInfoPacket(ByteArrayOutputStream sender, List<byte[]> records) {
+        ByteArrayOutputStream out = header(TYPE_SYNC_INFO);
+        out.write(sender.toByteArray(), 0, sender.size());
+        writeVarint(out, records.size());
+        for (byte[] record : records) {
+            out.write(record, 0, record.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static ByteArrayOutputStream header(byte type) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        out.write(FRAME_MAGIC);
+        out.write(FRAME_BINARY);
+        out.write(VERSION);
+        out.write(type);
+        return out;
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+
+    private static void writeNullable(ByteArrayOutputStream out, Number value) {
+        writeVarint(out, value == null ? 0 : value.longValue() + 1);
+    }
+
+    private static Long readNullable(ByteBuffer in) {
+        long value = readVarint(in);
+        return value == 0 ? null : value - 1;
+    }
+
+    private static int readCount(ByteBuffer in) {
+        long count = readVarint(in);
+        // every entry takes at least one byte, anything larger is corrupt
+        if (count > in.remaining()) {
+            throw new IllegalArgumentException("count " + count + " exceeds payload");
+        }
+        return (int) count;
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer in) {
+        long length = readVarint(in);
+        if (length == 0) {
+            return null;
+        }
+        if (length - 1 > in.remaining()) {
+            throw new IllegalArgumentException("string length " + length + " exceeds payload");
+        }
+        byte[] bytes = new byte[(int) length - 1];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeId(ByteArrayOutputStream out, String id) {
+        if (id == null) {
+            out.write(ID_NULL);
+            return;
+        }
+        UUID uuid = parseCanonicalUuid(id);
+        if (uuid == null) {
+            out.write(ID_STRING);
+            writeString(out, id);
+            return;
+        }
+        out.write(ID_UUID);
+        out.write(ByteBuffer.allocate(16).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).array(), 0, 16);
+    }
+
+    private static String readId(ByteBuffer in) {
+        int kind = in.get();
+        switch (kind) {
+            case ID_NULL:
+                return null;
+            case ID_UUID:
+                return new UUID(in.getLong(), in.getLong()).toString();
+            case ID_STRING:
+                return readString(in);
+            default:
+                throw new IllegalArgumentException("unknown id kind " + kind);
+        }
+    }
+
+    // only ids that print back exactly the same are sent as 16 bytes
+    private static UUID parseCanonicalUuid(String id) {
+        if (id.length() != 36) {
+            return null;
+        }
+        try {
+            UUID uuid = UUID.fromString(id);
+            return uuid.toString().equals(id) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // flags, the 8 byte state digest if any, then the digests held of each peer's state
+    private static void writeDigests(ByteArrayOutputStream out, HandShakingMessage message) {
+        Long digest = message.getDigest();
+        out.write(digest == null ? 0 : DIGEST_PRESENT | (message.isDelta() ? DIGEST_DELTA : 0));
+        if (digest != null) {
+            writeLong(out, digest);
+        }
+        Map<String, Long> acknowledgements = message.getAcknowledgements();
+        writeVarint(out, acknowledgements != null ? acknowledgements.size() : 0);
+        if (acknowledgements != null) {
+            for (Map.Entry<String, Long> entry : acknowledgements.entrySet()) {
+                writeId(out, entry.getKey());
+                writeLong(out, entry.getValue());
+            }
+        }
+    }
+
+    // the sender's clock, then each peer's clock as echoed back
+    private static void writeEchoes(ByteArrayOutputStream out, HandShakingMessage message) {
+        writeNullable(out, message.getSentAt());
+        Map<String, Long> echoes = message.getEchoes();
+        writeVarint(out, echoes != null ? echoes.size() : 0);
+        if (echoes != null) {
+            for (Map.Entry<String, Long> entry : echoes.entrySet()) {
+                writeId(out, entry.getKey());
+                writeVarint(out, entry.getValue());
+            }
+        }
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+
+    private static void writeRanges(ByteArrayOutputStream out, SequenceRanges ranges) {
+        if (ranges == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        writeVarint(out, ranges.getRangeCount() + 1);
+        long previousEnd = 0;
+        for (int i = 0; i < ranges.getRangeCount(); i++) {
+            writeVarint(out, ranges.startOf(i) - previousEnd);
+            writeVarint(out, ranges.endOf(i) - ranges.startOf(i));
+            previousEnd = ranges.endOf(i);
+        }
+    }
+
+    private static SequenceRanges readRanges(ByteBuffer in) {
+        long count = readVarint(in);
+        if (count == 0) {
+            return null;
+        }
+        // every range takes at least two bytes
+        if (2 * (count - 1) > in.remaining()) {
+            throw new IllegalArgumentException("range count " + (count - 1) + " exceeds payload");
+        }
+        SequenceRanges ranges = new SequenceRanges();
+        long previousEnd = 0;
+        for (long i = 1; i < count; i++) {
+            long start = previousEnd + readVarint(in);
+            long end = start + readVarint(in);
+            ranges.add(start, end);
+            previousEnd = end;
+        }
+        return ranges;
+    }
+}
@@ -20,9 +20,7 @@ import com.google.gson.reflect.TypeToken;
 
 
 import org.apache.commons.collections4.Closure;
-import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.collections4.IteratorUtils;
-import org.apache.commons.collections4.TransformerUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.BufferedWriter;
@@ -30,6 +28,7 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -43,14 +42,19 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Set;
 
 import org.chimple.flores.application.P2PContext;
+import org.chimple.flores.db.dao.P2PSyncDeviceStatusDao;
 import org.chimple.flores.db.entity.HandShakingInfo;
 import org.chimple.flores.db.entity.HandShakingInfoDeserializer;
 import org.chimple.flores.db.entity.HandShakingMessage;
 import org.chimple.flores.db.entity.HandShakingMessageDeserializer;
+import org.chimple.flores.db.entity.NackMessage;
+import org.chimple.flores.db.entity.NackMessageDeserializer;
+import org.chimple.flores.db.entity.NackRange;
 import org.chimple.flores.db.entity.P2PLatestInfoByUserAndDevice;
 import org.chimple.flores.db.entity.P2PSyncDeviceStatus;
 import org.chimple.flores.db.entity.P2PSyncInfo;
@@ -59,6 +63,9 @@ import org.chimple.flores.db.entity.P2PUserIdDeviceIdAndMessage;
 import org.chimple.flores.db.entity.P2PUserIdMessage;
 import org.chimple.flores.db.entity.ProfileMessage;
 import org.chimple.flores.db.entity.ProfileMessageDeserializer;
+import org.chimple.flores.db.entity.ReconcileMessage;
+import org.chimple.flores.db.entity.ReconcileMessageDeserializer;
+import org.chimple.flores.db.entity.SequenceRangesSerializer;
 import org.chimple.flores.db.entity.SyncInfoItem;
 import org.chimple.flores.db.entity.SyncInfoMessage;
 import org.chimple.flores.db.entity.SyncInfoMessageDeserializer;
@@ -66,14 +73,17 @@ import org.chimple.flores.db.entity.SyncInfoRequestMessage;
 import org.chimple.flores.db.entity.SyncItemDeserializer;
 import org.chimple.flores.db.entity.SyncRequestMessageDeserializer;
 import org.chimple.flores.multicast.MulticastManager;
+import org.chimple.flores.multicast.ReceivedSequenceTracker;
 
 import static org.chimple.flores.application.P2PContext.CONSOLE_TYPE;
 import static org.chimple.flores.application.P2PContext.LOG_TYPE;
 import static org.chimple.flores.application.P2PContext.NEW_MESSAGE_ADDED;
 import static org.chimple.flores.application.P2PContext.SHARED_PREF;
+import static org.chimple.flores.application.P2PContext.deviceToSyncAdded;
 import static org.chimple.flores.application.P2PContext.newMessageAddedOnDevice;
 import static org.chimple.flores.application.P2PContext.refreshDevice;
 import static org.chimple.flores.db.AppDatabase.PURGE_MESSAGE_LIMIT;
+import static org.chimple.flores.db.AppDatabase.SYNC_COOL_DOWN;
 import static org.chimple.flores.db.AppDatabase.SYNC_NUMBER_OF_LAST_MESSAGES;
 
 import org.chimple.flores.FloresPlugin;
@@ -148,7 +158,7 @@ public class P2PDBApiImpl {
         }
         db.p2pSyncDao().insertP2PSyncInfo(message);
         Log.i(TAG, "inserted data" + message);
-        manager.getAllSyncInfosReceived().add(message.getDeviceId() + "_" + message.getUserId() + "_" + Long.valueOf(message.getSequence().longValue()));
+        manager.getReceivedSequences().add(message.getUserId(), message.getDeviceId(), message.getSequence());
         manager.notifyUI(message.message, message.getSender(), CONSOLE_TYPE);
 
         SharedPreferences pref = this.context.getSharedPreferences(SHARED_PREF, 0);
@@ -195,7 +205,7 @@ public class P2PDBApiImpl {
 
         db.p2pSyncDao().insertP2PSyncInfo(message);
         Log.i(TAG, "inserted data" + message);
-        manager.getAllSyncInfosReceived().add(message.getDeviceId() + "_" + message.getUserId() + "_" + Long.valueOf(message.getSequence().longValue()));
+        manager.getReceivedSequences().add(message.getUserId(), message.getDeviceId(), message.getSequence());
         manager.notifyUI(message.message + "inserted ----> out of sync with sequence:" + message.getSequence(), message.getSender(), CONSOLE_TYPE);
         SharedPreferences pref = this.context.getSharedPreferences(SHARED_PREF, 0);
         String userId = pref.getString("USER_ID", null); // getting String
@@ -282,8 +292,30 @@ public class P2PDBApiImpl {
 
 
     public void addDeviceToSync(String deviceId, boolean syncImmediately) {
+        // membership updates of the device must not land between the read and the write
+        db.beginTransaction();
+        try {
+            if (!queueDeviceToSync(deviceId, syncImmediately)) {
+                return;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (syncImmediately) {
+            LocalBroadcastManager.getInstance(context).sendBroadcast(new Intent(deviceToSyncAdded));
+        }
+    }
+
+    private boolean queueDeviceToSync(String deviceId, boolean syncImmediately) {
         P2PSyncDeviceStatus currentStatus = db.p2pSyncDeviceStatusDao().getDeviceInfo(deviceId);
         P2PSyncDeviceStatus status = currentStatus;
+        if (currentStatus != null && currentStatus.syncTime != null
+                && System.currentTimeMillis() - currentStatus.syncTime.getTime() < SYNC_COOL_DOWN) {
+            // synced moments ago, records added since go out live
+            Log.d(TAG, "device " + deviceId + " synced at " + currentStatus.syncTime + ", not queueing it again yet");
+            return false;
+        }
         if (currentStatus == null) {
             // treat as new request
             status = new P2PSyncDeviceStatus(deviceId, syncImmediately);
@@ -304,15 +336,26 @@ public class P2PDBApiImpl {
                 status = new P2PSyncDeviceStatus(deviceId, syncImmediately);
             }
         }
+        if (status != currentStatus) {
+            status.copyMembership(currentStatus);
+        }
 
         db.p2pSyncDeviceStatusDao().insertP2PSyncDeviceStatus(status);
+        return true;
     }
 
 
     public void syncCompleted(String deviceId) {
         P2PSyncDeviceStatus status = new P2PSyncDeviceStatus(deviceId, false);
         status.setSyncTime(new Date());
-        db.p2pSyncDeviceStatusDao().insertP2PSyncDeviceStatus(status);
+        db.beginTransaction();
+        try {
+            status.copyMembership(db.p2pSyncDeviceStatusDao().getDeviceInfo(deviceId));
+            db.p2pSyncDeviceStatusDao().insertP2PSyncDeviceStatus(status);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
         Log.i(TAG, "sync completed with deviceId:" + deviceId);
 
     }
@@ -328,6 +371,31 @@ public class P2PDBApiImpl {
     }
 
 
+    // a peer heard on the group, a device seen for the first time is discovered and waits for sync like any other
+    public void updatePeerMembership(String deviceId, String address, long lastSeen, Long stateDigest, Long rtt, Double loss) {
+        try {
+            P2PSyncDeviceStatusDao dao = db.p2pSyncDeviceStatusDao();
+            Date seen = new Date(lastSeen);
+            if (dao.updateMembership(deviceId, address, seen, stateDigest, rtt, loss) > 0) {
+                return;
+            }
+            P2PSyncDeviceStatus status = new P2PSyncDeviceStatus(deviceId, false);
+            status.setMembership(address, seen, stateDigest, rtt, loss);
+            if (dao.insertP2PSyncDeviceStatusIfAbsent(status) == -1) {
+                // queued for sync meanwhile, that row takes the membership
+                dao.updateMembership(deviceId, address, seen, stateDigest, rtt, loss);
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+
+    public List<P2PSyncDeviceStatus> getDevicesSeenSince(long since) {
+        return Arrays.asList(db.p2pSyncDeviceStatusDao().getDevicesSeenSince(new Date(since)));
+    }
+
+
     public P2PSyncDeviceStatus getLatestDeviceToSync() {
         P2PSyncDeviceStatus syncImmediatelyRequest = db.p2pSyncDeviceStatusDao().getTopDeviceToSyncImmediately();
         if (syncImmediatelyRequest == null) {
@@ -339,11 +407,9 @@ public class P2PDBApiImpl {
 
 
     public P2PSyncDeviceStatus getLatestDeviceToSyncFromDevices(List<String> items) {
-        String deviceIds = StringUtils.join(items, ',');
-
-        P2PSyncDeviceStatus syncImmediatelyRequest = db.p2pSyncDeviceStatusDao().getTopDeviceToSyncImmediately(deviceIds);
+        P2PSyncDeviceStatus syncImmediatelyRequest = db.p2pSyncDeviceStatusDao().getTopDeviceToSyncImmediately(items);
         if (syncImmediatelyRequest == null) {
-            syncImmediatelyRequest = db.p2pSyncDeviceStatusDao().getTopDeviceToNotSyncImmediately(deviceIds);
+            syncImmediatelyRequest = db.p2pSyncDeviceStatusDao().getTopDeviceToNotSyncImmediately(items);
         }
 
         return syncImmediatelyRequest;
@@ -394,12 +460,9 @@ public class P2PDBApiImpl {
                 String tDeviceId = info.getDeviceId();
                 String tUserId = info.getUserId();
                 Long latestUserProfileId = db.p2pSyncDao().findLatestProfilePhotoId(tUserId, tDeviceId);
-                P2PLatestInfoByUserAndDevice[] missingRecords = db.p2pSyncDao().getMissingMessagesByUserIdAndDeviceId(tUserId, tDeviceId);
-                List<P2PLatestInfoByUserAndDevice> missingRecordsList = Arrays.asList(missingRecords);
-                Collection missingSequences = CollectionUtils.collect(missingRecordsList, TransformerUtils.invokerTransformer("getSequence"));
-                String missingRecordsStr = StringUtils.join(missingSequences, ",");
+                SequenceRanges missingSequences = findMissingSequences(tUserId, tDeviceId);
                 if (info.userId != null && info.deviceId != null) {
-                    HandShakingInfo i = new HandShakingInfo(info.userId, info.deviceId, info.sequence, missingRecordsStr, latestUserProfileId);
+                    HandShakingInfo i = new HandShakingInfo(info.userId, info.deviceId, info.sequence, missingSequences, latestUserProfileId);
                     i.setFrom(P2PContext.getCurrentDevice());
                     Log.d(TAG, "handShakingInformationFromCurrentDevice: " + info.userId + " " + info.deviceId + " " + info.sequence);
                     handShakingInfos.put(info.userId, i);
@@ -416,6 +479,51 @@ public class P2PDBApiImpl {
     }
 
     public String serializeHandShakingMessage(boolean needAcknowlegement) {
+        return serializeHandShakingMessage(needAcknowlegement, 0, 0, 0, 0);
+    }
+
+    public String serializeHandShakingMessage(boolean needAcknowlegement, int capabilities, int receivedCount, int duplicateCount, int outOfSyncCount) {
+        HandShakingMessage message = buildHandShakingMessage(needAcknowlegement, capabilities, receivedCount, duplicateCount, outOfSyncCount);
+        return message != null ? serializeHandShakingMessage(message) : null;
+    }
+
+    public String serializeHandShakingMessage(HandShakingMessage message) {
+        try {
+            Gson gson = this.registerHandShakingMessageBuilder();
+            Type handShakingType = new TypeToken<HandShakingMessage>() {
+            }.getType();
+            String json = gson.toJson(message, handShakingType);
+            return json;
+        } catch (Exception e) {
+            Log.e(TAG, e.getMessage());
+            return null;
+        }
+    }
+
+    // one json per page, pages hold as many infos as fit the payload budget
+    public List<String> serializeHandShakingPages(HandShakingMessage message, int round, int payloadBudget) {
+        List<String> jsons = new ArrayList<String>();
+        try {
+            Gson gson = this.registerHandShakingMessageBuilder();
+            List<HandShakingInfo> infos = message.getInfos() != null ? message.getInfos() : new ArrayList<HandShakingInfo>();
+            int[] infoSizes = new int[infos.size()];
+            for (int i = 0; i < infos.size(); i++) {
+                // the comma separating it from the previous info
+                infoSizes[i] = utf8Length(gson.toJson(infos.get(i), HandShakingInfo.class)) + 1;
+            }
+            HandShakingMessage envelope = message.withInfos(new ArrayList<HandShakingInfo>());
+            envelope.setPage(round, Integer.MAX_VALUE - 1, Integer.MAX_VALUE - 1);
+            int envelopeSize = utf8Length(gson.toJson(envelope, HandShakingMessage.class));
+            for (HandShakingMessage page : message.paginate(round, envelopeSize, infoSizes, payloadBudget)) {
+                jsons.add(gson.toJson(page, HandShakingMessage.class));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, e.getMessage());
+        }
+        return jsons;
+    }
+
+    public HandShakingMessage buildHandShakingMessage(boolean needAcknowlegement, int capabilities, int receivedCount, int duplicateCount, int outOfSyncCount) {
         try {
             List<HandShakingInfo> handShakingInfos = new ArrayList<HandShakingInfo>();
             P2PLatestInfoByUserAndDevice[] infos = db.p2pSyncDao().getLatestInfoAvailableByUserIdAndDeviceId();
@@ -423,38 +531,24 @@ public class P2PDBApiImpl {
                 if (info.userId != null && info.deviceId != null) {
                     Log.d(TAG, "checking for user:" + info.userId + " fetchByUserAndDeviceBetweenSequencesand device:" + info.deviceId + " and sequence:" + info.sequence);
                     Long latestUserProfileId = db.p2pSyncDao().findLatestProfilePhotoId(info.userId, info.deviceId);
-                    P2PLatestInfoByUserAndDevice[] missingRecords = db.p2pSyncDao().getMissingMessagesByUserIdAndDeviceId(info.userId, info.deviceId);
-                    String missingRecordsStr = null;
-                    if (missingRecords.length > 0) {
-                        long startingSequence = info.sequence.longValue() > SYNC_NUMBER_OF_LAST_MESSAGES ? info.sequence.longValue() - SYNC_NUMBER_OF_LAST_MESSAGES + 1 : 1;
-                        Log.d(TAG, "startingSequence in serializeHandShakingMessage ---> " + startingSequence);
-                        P2PSyncInfo[] rs = db.p2pSyncDao().fetchByUserAndDeviceBetweenSequences(info.userId, info.deviceId, startingSequence, info.sequence.longValue());
-                        StringBuilder missingRecordsBuffer = new StringBuilder();
-                        for (P2PSyncInfo p : rs) {
-                            if (p.getMessageType().equals(DBSyncManager.MessageTypes.MISSING.type())) {
-                                missingRecordsBuffer.append("0");
-                            } else {
-                                missingRecordsBuffer.append("1");
-                            }
-                        }
-                        missingRecordsStr = missingRecordsBuffer.toString();
-                    }
-
-//                    List<P2PLatestInfoByUserAndDevice> missingRecordsList = Arrays.asList(missingRecords);
-//                    Collection missingSequences = CollectionUtils.collect(missingRecordsList, TransformerUtils.invokerTransformer("getSequence"));
-//                    String missingRecordsStr = StringUtils.join(missingSequences, ",");
-                    Log.d(TAG, "missingRecordsStr:" + missingRecordsStr);
-                    handShakingInfos.add(new HandShakingInfo(info.userId, info.deviceId, info.sequence, missingRecordsStr, latestUserProfileId));
+                    // only gaps within the last SYNC_NUMBER_OF_LAST_MESSAGES sequences are advertised
+                    SequenceRanges missingSequences = findMissingSequences(info.userId, info.deviceId);
+                    long startingSequence = info.sequence.longValue() > SYNC_NUMBER_OF_LAST_MESSAGES ? info.sequence.longValue() - SYNC_NUMBER_OF_LAST_MESSAGES + 1 : 1;
+                    missingSequences.removeThrough(startingSequence - 1);
+                    Log.d(TAG, "missingSequences:" + missingSequences);
+                    handShakingInfos.add(new HandShakingInfo(info.userId, info.deviceId, info.sequence, missingSequences.isEmpty() ? null : missingSequences, latestUserProfileId));
                 }
             }
 
-            Gson gson = this.registerHandShakingMessageBuilder();
             String reply = needAcknowlegement ? "true" : "false";
             HandShakingMessage message = new HandShakingMessage(P2PContext.getCurrentDevice(), "handshaking", reply, handShakingInfos);
-            Type handShakingType = new TypeToken<HandShakingMessage>() {
-            }.getType();
-            String json = gson.toJson(message, handShakingType);
-            return json;
+            if (capabilities != 0) {
+                message.setCapabilities(capabilities);
+            }
+            if (receivedCount > 0) {
+                message.setReceptionReport(receivedCount, duplicateCount, outOfSyncCount);
+            }
+            return message;
         } catch (Exception e) {
             Log.e(TAG, e.getMessage());
             return null;
@@ -481,6 +575,18 @@ public class P2PDBApiImpl {
     }
 
 
+    public String serializeSyncRequestMessage(SyncInfoRequestMessage requestMessage) {
+        try {
+            Gson gson = this.registerSyncRequestMessageBuilder();
+            Type requestType = new TypeToken<SyncInfoRequestMessage>() {
+            }.getType();
+            return gson.toJson(requestMessage, requestType);
+        } catch (Exception e) {
+            Log.e(TAG, e.getMessage());
+            return null;
+        }
+    }
+
     public List<String> serializeSyncRequestMessages(Collection<HandShakingInfo> infos) {
         List<String> results = new ArrayList<String>();
         try {
@@ -545,11 +651,8 @@ public class P2PDBApiImpl {
         for (P2PLatestInfoByUserAndDevice info : infos) {
             if (info.userId != null && info.deviceId != null) {
                 Long latestUserProfileId = db.p2pSyncDao().findLatestProfilePhotoId(info.userId, info.deviceId);
-                P2PLatestInfoByUserAndDevice[] missingRecords = db.p2pSyncDao().getMissingMessagesByUserIdAndDeviceId(info.userId, info.deviceId);
-                List<P2PLatestInfoByUserAndDevice> missingRecordsList = Arrays.asList(missingRecords);
-                Collection missingSequences = CollectionUtils.collect(missingRecordsList, TransformerUtils.invokerTransformer("getSequence"));
-                String missingRecordsStr = StringUtils.join(missingSequences, ",");
-                handShakingInfos.add(new HandShakingInfo(info.userId, info.deviceId, info.sequence, missingRecordsStr, latestUserProfileId));
+                SequenceRanges missingSequences = findMissingSequences(info.userId, info.deviceId);
+                handShakingInfos.add(new HandShakingInfo(info.userId, info.deviceId, info.sequence, missingSequences, latestUserProfileId));
             }
         }
         return handShakingInfos;
@@ -566,11 +669,26 @@ public class P2PDBApiImpl {
     private Gson registerHandShakingMessageBuilder() {
         GsonBuilder gsonBuilder = new GsonBuilder();
         gsonBuilder.registerTypeAdapter(HandShakingInfo.class, new HandShakingInfoDeserializer());
+        gsonBuilder.registerTypeAdapter(SequenceRanges.class, new SequenceRangesSerializer());
         gsonBuilder.registerTypeAdapter(HandShakingMessage.class, new HandShakingMessageDeserializer());
         Gson gson = gsonBuilder.create();
         return gson;
     }
 
+    private Gson registerNackMessageBuilder() {
+        GsonBuilder gsonBuilder = new GsonBuilder();
+        gsonBuilder.registerTypeAdapter(NackMessage.class, new NackMessageDeserializer());
+        Gson gson = gsonBuilder.create();
+        return gson;
+    }
+
+    private Gson registerReconcileMessageBuilder() {
+        GsonBuilder gsonBuilder = new GsonBuilder();
+        gsonBuilder.registerTypeAdapter(ReconcileMessage.class, new ReconcileMessageDeserializer());
+        Gson gson = gsonBuilder.create();
+        return gson;
+    }
+
     private Gson registerProfileMessageBuilder() {
         GsonBuilder gsonBuilder = new GsonBuilder();
         gsonBuilder.registerTypeAdapter(ProfileMessage.class, new ProfileMessageDeserializer());
@@ -607,6 +725,81 @@ public class P2PDBApiImpl {
         }
     }
 
+    /*
+        Packs as many records as fit under payloadBudget bytes into each SyncInfoMessage.
+        Records are grouped by sender because a SyncInfoMessage carries a single sender;
+        a record larger than the budget on its own is still sent, in a message of its own.
+     */
+    public List<String> convertP2PSyncInfosToJsonPackets(List<P2PSyncInfo> syncInfos, int payloadBudget) {
+        List<String> jsons = new ArrayList<String>();
+        if (syncInfos == null || syncInfos.isEmpty()) {
+            return jsons;
+        }
+        try {
+            Gson gson = this.registerP2PSyncInfoBuilder();
+            Map<String, List<String>> recordsBySender = new LinkedHashMap<String, List<String>>();
+            for (P2PSyncInfo p : syncInfos) {
+                List<String> records = recordsBySender.get(p.getSender());
+                if (records == null) {
+                    records = new ArrayList<String>();
+                    recordsBySender.put(p.getSender(), records);
+                }
+                records.add(gson.toJson(p, P2PSyncInfo.class));
+            }
+
+            for (Map.Entry<String, List<String>> entry : recordsBySender.entrySet()) {
+                String prefix = "{\"mt\":\"syncInfoMessage\",\"i\":[";
+                String suffix = entry.getKey() != null ? "],\"s\":" + gson.toJson(entry.getKey()) + "}" : "]}";
+                int envelopeBytes = utf8Length(prefix) + utf8Length(suffix);
+
+                StringBuilder packet = new StringBuilder(payloadBudget);
+                int packetBytes = envelopeBytes;
+                int recordsInPacket = 0;
+                for (String record : entry.getValue()) {
+                    int recordBytes = utf8Length(record) + (recordsInPacket > 0 ? 1 : 0);
+                    if (recordsInPacket > 0 && packetBytes + recordBytes > payloadBudget) {
+                        jsons.add(prefix + packet + suffix);
+                        packet.setLength(0);
+                        packetBytes = envelopeBytes;
+                        recordsInPacket = 0;
+                        recordBytes = utf8Length(record);
+                    }
+                    if (recordsInPacket > 0) {
+                        packet.append(',');
+                    }
+                    packet.append(record);
+                    packetBytes += recordBytes;
+                    recordsInPacket++;
+                }
+                if (recordsInPacket > 0) {
+                    jsons.add(prefix + packet + suffix);
+                }
+            }
+            Log.d(TAG, "convertP2PSyncInfosToJsonPackets packed " + syncInfos.size() + " records into " + jsons.size() + " messages");
+        } catch (Exception e) {
+            Log.e(TAG, e.getMessage());
+        }
+        return jsons;
+    }
+
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
     /* not longer used sender should be real sydner in p2pSyncInfos*/
     public String convertP2PSyncInfoToJsonUsingStreaming(List<P2PSyncInfo> p2PSyncInfos) {
         String json = "";
@@ -624,20 +817,23 @@ public class P2PDBApiImpl {
     }
 
     public List<P2PSyncInfo> deSerializeP2PSyncInfoFromJson(String p2pSyncJson) {
+        SyncInfoMessage message = deSerializeSyncInfoMessageFromJson(p2pSyncJson);
+        return message != null ? message.getInfos() : null;
+    }
+
+    public SyncInfoMessage deSerializeSyncInfoMessageFromJson(String p2pSyncJson) {
         Log.i(TAG, "P2P Sync Info received" + p2pSyncJson);
         Gson gson = this.registerP2PSyncInfoBuilder();
-        List<P2PSyncInfo> infos = null;
         Type SyncInfoMessageType = new TypeToken<SyncInfoMessage>() {
         }.getType();
         SyncInfoMessage message = gson.fromJson(p2pSyncJson, SyncInfoMessageType);
-        if (message != null) {
-            infos = message.getInfos();
-            for (P2PSyncInfo s : infos) {
+        if (message != null && message.getInfos() != null) {
+            for (P2PSyncInfo s : message.getInfos()) {
                 s.setSender(message.getSender());
             }
         }
 
-        return infos;
+        return message;
     }
 
     private ProfileMessage deSerializeProfileMessageFromJson(String photoJson) {
@@ -654,14 +850,155 @@ public class P2PDBApiImpl {
     }
 
 
-    public List<String> fetchP2PSyncInfoBySyncRequest(SyncInfoItem i) {
-        List<String> jsons = new ArrayList<String>();
-        List<P2PSyncInfo> results = Arrays.asList(db.p2pSyncDao().fetchByUserAndDeviceBetweenSequences(i.getUserId(), i.getDeviceId(), i.getStartingSequence(), i.getSequence()));
-        for (P2PSyncInfo p : results) {
-            jsons.add(convertSingleP2PSyncInfoToJsonUsingStreaming(p));
+    public List<String> fetchP2PSyncInfoBySyncRequest(SyncInfoItem i, int payloadBudget) {
+        return fetchP2PSyncInfoBySyncRequest(Collections.singletonList(i), payloadBudget);
+    }
+
+    public List<String> fetchP2PSyncInfoBySyncRequest(List<SyncInfoItem> items, int payloadBudget) {
+        return convertP2PSyncInfosToJsonPackets(fetchP2PSyncInfosBySyncRequest(items), payloadBudget);
+    }
+
+    public List<P2PSyncInfo> fetchP2PSyncInfosBySyncRequest(List<SyncInfoItem> items) {
+        List<P2PSyncInfo> results = new ArrayList<P2PSyncInfo>();
+        for (SyncInfoItem i : items) {
+            results.addAll(Arrays.asList(db.p2pSyncDao().fetchByUserAndDeviceBetweenSequences(i.getUserId(), i.getDeviceId(), i.getStartingSequence(), i.getSequence())));
         }
+        return results;
+    }
 
-        return jsons;
+    public List<String> fetchP2PSyncInfoByNackRanges(List<NackRange> ranges, int payloadBudget) {
+        return convertP2PSyncInfosToJsonPackets(fetchP2PSyncInfosByNackRanges(ranges), payloadBudget);
+    }
+
+    // records this device holds inside the given ranges, missing placeholders are never repaired
+    public List<P2PSyncInfo> fetchP2PSyncInfosByNackRanges(List<NackRange> ranges) {
+        List<P2PSyncInfo> results = new ArrayList<P2PSyncInfo>();
+        for (NackRange r : ranges) {
+            P2PSyncInfo[] infos = db.p2pSyncDao().fetchByUserAndDeviceBetweenSequences(r.getUserId(), r.getDeviceId(), r.getStartingSequence(), r.getEndingSequence());
+            for (P2PSyncInfo p : infos) {
+                if (!DBSyncManager.MessageTypes.MISSING.type().equals(p.getMessageType())) {
+                    results.add(p);
+                }
+            }
+        }
+        return results;
+    }
+
+    // latest sequence held of every user and device
+    public P2PLatestInfoByUserAndDevice[] fetchLatestInfos() {
+        return db.p2pSyncDao().getLatestInfoAvailableByUserIdAndDeviceId();
+    }
+
+    public Long findLatestSequence(String userId, String deviceId) {
+        return db.p2pSyncDao().getLatestSequenceAvailableByUserIdAndDeviceId(userId, deviceId);
+    }
+
+    /*
+        Persists records streamed in bulk in a single transaction, without the per record logging and
+        UI updates of live sync. Records already received or held are skipped, missing placeholders
+        replaced. Each record is claimed in the received sequences first, as live sync does, so an apply
+        lane and the batch never both write it, and the claims are given up if the transaction fails.
+        Returns how many were written, 0 when the transaction failed.
+     */
+    public int persistP2PSyncInfoBatch(List<P2PSyncInfo> infos) {
+        ReceivedSequenceTracker receivedSequences = manager.getReceivedSequences();
+        List<P2PSyncInfo> claimed = new ArrayList<P2PSyncInfo>();
+        int persisted = 0;
+        boolean committed = false;
+        try {
+            db.beginTransaction();
+            try {
+                for (P2PSyncInfo info : infos) {
+                    if (!receivedSequences.add(info.getUserId(), info.getDeviceId(), info.getSequence())) {
+                        continue;
+                    }
+                    claimed.add(info);
+                    P2PSyncInfo found = db.p2pSyncDao().fetchByUserAndDeviceAndSequence(info.getUserId(), info.getDeviceId(), info.getSequence());
+                    if (found != null) {
+                        if (!DBSyncManager.MessageTypes.MISSING.type().equals(found.getMessageType())) {
+                            continue;
+                        }
+                        info.id = found.id;
+                    }
+                    db.p2pSyncDao().insertP2PSyncInfo(info);
+                    persisted++;
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            committed = true;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        if (!committed) {
+            for (P2PSyncInfo info : claimed) {
+                receivedSequences.remove(info.getUserId(), info.getDeviceId(), info.getSequence());
+            }
+            return 0;
+        }
+        return persisted;
+    }
+
+    // missing placeholders of one user and device folded into contiguous ranges
+    public SequenceRanges findMissingSequences(String userId, String deviceId) {
+        return SequenceRanges.fromSorted(db.p2pSyncDao().getMissingSequencesByUserIdAndDeviceId(userId, deviceId));
+    }
+
+    public List<NackRange> findMissingRanges(String userId, String deviceId) {
+        SequenceRanges missing = findMissingSequences(userId, deviceId);
+        List<NackRange> ranges = new ArrayList<NackRange>(missing.getRangeCount());
+        for (int i = 0; i < missing.getRangeCount(); i++) {
+            ranges.add(new NackRange(userId, deviceId, missing.startOf(i), missing.endOf(i)));
+        }
+        return ranges;
+    }
+
+    public String serializeNackMessage(NackMessage message) {
+        try {
+            Gson gson = this.registerNackMessageBuilder();
+            return gson.toJson(message, NackMessage.class);
+        } catch (Exception e) {
+            Log.e(TAG, e.getMessage());
+            return null;
+        }
+    }
+
+    public String serializeReconcileMessage(ReconcileMessage message) {
+        try {
+            Gson gson = this.registerReconcileMessageBuilder();
+            return gson.toJson(message.encodeCells(), ReconcileMessage.class);
+        } catch (Exception e) {
+            Log.e(TAG, e.getMessage());
+            return null;
+        }
+    }
+
+    public ReconcileMessage deSerializeReconcileMessageFromJson(String reconcileJson) {
+        ReconcileMessage message = null;
+        try {
+            Gson gson = this.registerReconcileMessageBuilder();
+            message = gson.fromJson(reconcileJson, ReconcileMessage.class);
+        } catch (Exception e) {
+            Log.i(TAG, "deSerializeReconcileMessageFromJson exception" + e.getMessage());
+        }
+        return message;
+    }
+
+    // (user, device, sequence) of every record held, missing placeholders excluded
+    public P2PLatestInfoByUserAndDevice[] fetchAllRecordKeys() {
+        return db.p2pSyncDao().getAllRecordKeys();
+    }
+
+    public NackMessage deSerializeNackMessageFromJson(String nackJson) {
+        NackMessage message = null;
+        try {
+            Gson gson = this.registerNackMessageBuilder();
+            message = gson.fromJson(nackJson, NackMessage.class);
+        } catch (Exception e) {
+            Log.i(TAG, "deSerializeNackMessageFromJson exception" + e.getMessage());
+        }
+        return message;
     }
 
     public HandShakingMessage deSerializeHandShakingInformationFromJson(String handShakingJson) {
@@ -817,6 +1154,9 @@ public class P2PDBApiImpl {
     }
 
     public boolean addMessage(String userId, String recipientId, String messageType, String message) {
+        if (isTooLargeToSync(message)) {
+            return false;
+        }
         try {
             SharedPreferences pref = this.context.getSharedPreferences(SHARED_PREF, 0);
             String deviceId = pref.getString("DEVICE_ID", null); // getting String
@@ -831,6 +1171,9 @@ public class P2PDBApiImpl {
             db.p2pSyncDao().insertP2PSyncInfo(info);
             Log.i(TAG, "inserted data" + info);
             broadcastNewMessageAdded(info);
+            if (recipientId != null) {
+                addDeviceToSyncAndStartJobIfNotRunning(recipientId);
+            }
             return true;
         } catch (Exception e) {
             Log.e(TAG, e.getMessage());
@@ -838,6 +1181,16 @@ public class P2PDBApiImpl {
         }
     }
 
+    // a record that cannot go out as one protocol message would never reach a peer
+    private static boolean isTooLargeToSync(String message) {
+        int size = message != null ? message.getBytes(StandardCharsets.UTF_8).length : 0;
+        if (size > MulticastManager.MAX_RECORD_MESSAGE_SIZE) {
+            Log.e(TAG, "message of " + size + " bytes is over MAX_RECORD_MESSAGE_SIZE, not storing it");
+            return true;
+        }
+        return false;
+    }
+
     public boolean deleteDataPerDeviceId(String deviceId) {
         try {
             db.p2pSyncDao().deletePerDeviceID(deviceId);
@@ -889,6 +1242,9 @@ public class P2PDBApiImpl {
     }
 
     public boolean addMessage(String userId, String recipientId, String messageType, String message, Boolean status, String sessionId) {
+        if (isTooLargeToSync(message)) {
+            return false;
+        }
         try {
             SharedPreferences pref = this.context.getSharedPreferences(SHARED_PREF, 0);
             String deviceId = pref.getString("DEVICE_ID", null); // getting String
@@ -913,6 +1269,9 @@ public class P2PDBApiImpl {
             db.p2pSyncDao().insertP2PSyncInfo(info);
             Log.i(TAG, "inserted data" + info);
             broadcastNewMessageAdded(info);
+            if (recipientId != null) {
+                addDeviceToSyncAndStartJobIfNotRunning(recipientId);
+            }
             return true;
         } catch (Exception e) {
             Log.e(TAG, e.getMessage());
@@ -948,6 +1307,9 @@ public class P2PDBApiImpl {
     }
 
     public boolean upsertProfileForUserIdAndDevice(String userId, String deviceId, String message) {
+        if (isTooLargeToSync(message)) {
+            return false;
+        }
         try {
             P2PSyncInfo userInfo = db.p2pSyncDao().getProfileByUserId(userId, DBSyncManager.MessageTypes.PHOTO.type());
             if (userInfo != null) {
@@ -0,0 +1,280 @@
+package org.chimple.flores.db;
+
+import java.util.Arrays;
+import java.util.List;
+
+/*
+    Sorted, disjoint, non adjacent ranges of sequence numbers packed in one long array
+    [start0, end0, start1, end1, ...], both ends inclusive. Not thread safe.
+    Missing sequences are kept in this form from the database through sync planning to the wire,
+    where JSON carries toString() ("3-7,9") and the binary format delta encoded varints.
+ */
+public class SequenceRanges {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private long[] bounds;
+    private int rangeCount = 0;
+
+    public SequenceRanges() {
+        this.bounds = new long[2 * INITIAL_CAPACITY];
+    }
+
+    public SequenceRanges(SequenceRanges other) {
+        this.bounds = Arrays.copyOf(other.bounds, Math.max(2 * INITIAL_CAPACITY, 2 * other.rangeCount));
+        this.rangeCount = other.rangeCount;
+    }
+
+    // sequences in ascending order, as the storage queries return them
+    public static SequenceRanges fromSorted(List<Long> sequences) {
+        SequenceRanges ranges = new SequenceRanges();
+        for (Long sequence : sequences) {
+            if (sequence == null) {
+                continue;
+            }
+            int last = ranges.rangeCount - 1;
+            if (last >= 0 && sequence == ranges.endOf(last) + 1) {
+                ranges.bounds[2 * last + 1] = sequence;
+            } else {
+                ranges.add(sequence);
+            }
+        }
+        return ranges;
+    }
+
+    // parses the toString() form, returns null for malformed text
+    public static SequenceRanges parse(String text) {
+        SequenceRanges ranges = new SequenceRanges();
+        if (text == null || text.isEmpty()) {
+            return ranges;
+        }
+        try {
+            int from = 0;
+            while (from <= text.length()) {
+                int comma = text.indexOf(',', from);
+                int to = comma < 0 ? text.length() : comma;
+                int dash = text.indexOf('-', from + 1);
+                if (dash > 0 && dash < to) {
+                    ranges.add(Long.parseLong(text.substring(from, dash).trim()), Long.parseLong(text.substring(dash + 1, to).trim()));
+                } else {
+                    ranges.add(Long.parseLong(text.substring(from, to).trim()));
+                }
+                from = to + 1;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ranges;
+    }
+
+    // returns true when the sequence was not in the set yet
+    public boolean add(long sequence) {
+        return add(sequence, sequence);
+    }
+
+    // returns true when any sequence of start..end was not in the set yet
+    public boolean add(long start, long end) {
+        if (start > end) {
+            return false;
+        }
+        // ranges first..last touch or overlap start..end and merge with it
+        int first = firstEndingAtOrAfter(start - 1);
+        int last = first;
+        while (last < rangeCount && startOf(last) <= end + 1) {
+            last++;
+        }
+        if (first == last) {
+            insert(first, start, end);
+            return true;
+        }
+        long mergedStart = Math.min(start, startOf(first));
+        long mergedEnd = Math.max(end, endOf(last - 1));
+        boolean added = last - first > 1 || start < startOf(first) || end > endOf(first);
+        bounds[2 * first] = mergedStart;
+        bounds[2 * first + 1] = mergedEnd;
+        remove(first + 1, last);
+        return added;
+    }
+
+    // returns true when any sequence of start..end was in the set
+    public boolean remove(long start, long end) {
+        if (start > end) {
+            return false;
+        }
+        int first = firstEndingAtOrAfter(start);
+        if (first == rangeCount || startOf(first) > end) {
+            return false;
+        }
+        int last = first;
+        while (last < rangeCount && startOf(last) <= end) {
+            last++;
+        }
+        long headStart = startOf(first);
+        long tailEnd = endOf(last - 1);
+        remove(first, last);
+        int at = first;
+        if (headStart < start) {
+            insert(at++, headStart, start - 1);
+        }
+        if (tailEnd > end) {
+            insert(at, end + 1, tailEnd);
+        }
+        return true;
+    }
+
+    // union
+    public void addAll(SequenceRanges other) {
+        for (int i = 0; i < other.rangeCount; i++) {
+            add(other.startOf(i), other.endOf(i));
+        }
+    }
+
+    // difference
+    public void removeAll(SequenceRanges other) {
+        for (int i = 0; i < other.rangeCount && rangeCount > 0; i++) {
+            remove(other.startOf(i), other.endOf(i));
+        }
+    }
+
+    // intersection
+    public void retainAll(SequenceRanges other) {
+        long[] result = new long[Math.max(2 * INITIAL_CAPACITY, 2 * (rangeCount + other.rangeCount))];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < rangeCount && j < other.rangeCount) {
+            long start = Math.max(startOf(i), other.startOf(j));
+            long end = Math.min(endOf(i), other.endOf(j));
+            if (start <= end) {
+                result[2 * count] = start;
+                result[2 * count + 1] = end;
+                count++;
+            }
+            if (endOf(i) < other.endOf(j)) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        bounds = result;
+        rangeCount = count;
+    }
+
+    public boolean contains(long sequence) {
+        int i = firstEndingAtOrAfter(sequence);
+        return i < rangeCount && startOf(i) <= sequence;
+    }
+
+    public boolean isEmpty() {
+        return rangeCount == 0;
+    }
+
+    public int getRangeCount() {
+        return rangeCount;
+    }
+
+    // number of sequences in the set
+    public long size() {
+        long size = 0;
+        for (int i = 0; i < rangeCount; i++) {
+            size += endOf(i) - startOf(i) + 1;
+        }
+        return size;
+    }
+
+    public long startOf(int range) {
+        return bounds[2 * range];
+    }
+
+    public long endOf(int range) {
+        return bounds[2 * range + 1];
+    }
+
+    // drops every sequence up to and including the given one
+    public void removeThrough(long sequence) {
+        int i = firstEndingAtOrAfter(sequence + 1);
+        remove(0, i);
+        if (rangeCount > 0 && startOf(0) <= sequence) {
+            bounds[0] = sequence + 1;
+        }
+    }
+
+    public void clear() {
+        rangeCount = 0;
+    }
+
+    private int firstEndingAtOrAfter(long sequence) {
+        int low = 0;
+        int high = rangeCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (endOf(mid) < sequence) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void insert(int range, long start, long end) {
+        if (2 * (rangeCount + 1) > bounds.length) {
+            bounds = Arrays.copyOf(bounds, 2 * bounds.length);
+        }
+        System.arraycopy(bounds, 2 * range, bounds, 2 * range + 2, 2 * (rangeCount - range));
+        bounds[2 * range] = start;
+        bounds[2 * range + 1] = end;
+        rangeCount++;
+    }
+
+    // removes ranges from (inclusive) to to (exclusive)
+    private void remove(int from, int to) {
+        if (to <= from) {
+            return;
+        }
+        System.arraycopy(bounds, 2 * to, bounds, 2 * from, 2 * (rangeCount - to));
+        rangeCount -= to - from;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SequenceRanges)) {
+            return false;
+        }
+        SequenceRanges other = (SequenceRanges) o;
+        if (rangeCount != other.rangeCount) {
+            return false;
+        }
+        for (int i = 0; i < 2 * rangeCount; i++) {
+            if (bounds[i] != other.bounds[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        for (int i = 0; i < 2 * rangeCount; i++) {
+            hash = 31 * hash + (int) (bounds[i] ^ (bounds[i] >>> 32));
+        }
+        return hash;
+    }
+
+    // compact text form, e.g. "3-7,9"
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < rangeCount; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(startOf(i));
+            if (endOf(i) != startOf(i)) {
+                builder.append('-').append(endOf(i));
+            }
+        }
+        return builder.toString();
+    }
+}
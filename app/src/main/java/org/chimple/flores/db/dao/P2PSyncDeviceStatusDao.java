@@ -7,12 +7,23 @@ import android.arch.persistence.room.Query;
 
 import org.chimple.flores.db.entity.P2PSyncDeviceStatus;
 
+import java.util.Date;
+import java.util.List;
+
 @Dao
 public interface P2PSyncDeviceStatusDao {
 
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     public Long insertP2PSyncDeviceStatus(P2PSyncDeviceStatus info);
 
+    // -1 when the device already has a row
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    public Long insertP2PSyncDeviceStatusIfAbsent(P2PSyncDeviceStatus info);
+
+    // membership columns only, so sync status written meanwhile is kept
+    @Query("UPDATE P2PSyncDeviceStatus SET address = :address, last_seen = :lastSeen, state_digest = :stateDigest, rtt = :rtt, loss = :loss WHERE device_id = :deviceId")
+    public int updateMembership(String deviceId, String address, Date lastSeen, Long stateDigest, Long rtt, Double loss);
+
     @Query("SELECT * FROM P2PSyncDeviceStatus WHERE device_id = :deviceId")
     public P2PSyncDeviceStatus getDeviceInfo(String deviceId);
 
@@ -29,9 +40,12 @@ public interface P2PSyncDeviceStatusDao {
     public P2PSyncDeviceStatus getTopDeviceToNotSyncImmediately();
 
     @Query("SELECT * FROM P2PSyncDeviceStatus WHERE sync_time is null and device_id in (:deviceIds) and sync_immediately = 1 order by discover_time asc limit 1")
-    public P2PSyncDeviceStatus getTopDeviceToSyncImmediately(String deviceIds);
+    public P2PSyncDeviceStatus getTopDeviceToSyncImmediately(List<String> deviceIds);
 
     @Query("SELECT * FROM P2PSyncDeviceStatus WHERE sync_time is null and device_id in (:deviceIds) and (sync_immediately  = 0 or sync_immediately is null) order by discover_time asc limit 1")
-    public P2PSyncDeviceStatus getTopDeviceToNotSyncImmediately(String deviceIds);
+    public P2PSyncDeviceStatus getTopDeviceToNotSyncImmediately(List<String> deviceIds);
+
+    @Query("SELECT * FROM P2PSyncDeviceStatus WHERE last_seen >= :since order by last_seen desc")
+    public P2PSyncDeviceStatus[] getDevicesSeenSince(Date since);
 
 }
@@ -44,6 +44,12 @@ public interface P2PSyncInfoDao {
     @Query("SELECT user_id, device_id, sequence as sequence FROM P2PSyncInfo where user_id=:userId AND device_id=:deviceId and message_type = 'missing' order by sequence asc")
     public P2PLatestInfoByUserAndDevice[] getMissingMessagesByUserIdAndDeviceId(String userId, String deviceId);
 
+    @Query("SELECT sequence FROM P2PSyncInfo where user_id=:userId AND device_id=:deviceId and message_type = 'missing' order by sequence asc")
+    public List<Long> getMissingSequencesByUserIdAndDeviceId(String userId, String deviceId);
+
+    @Query("SELECT user_id, device_id, sequence FROM P2PSyncInfo where user_id is not null and device_id is not null and message_type != 'missing'")
+    public P2PLatestInfoByUserAndDevice[] getAllRecordKeys();
+
     @Query("SELECT user_id, device_id, MAX(sequence) as sequence FROM P2PSyncInfo where user_id is not null and device_id is not null and message is not null and message_type != 'missing' GROUP BY user_id, device_id")
     public P2PLatestInfoByUserAndDevice[] getLatestInfoAvailableByUserIdAndDeviceId();
 
@@ -12,6 +12,8 @@ import org.apache.commons.beanutils.BeanComparator;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.collections4.ListUtils;
 import org.apache.commons.collections4.comparators.ComparatorChain;
+import org.apache.commons.lang3.ObjectUtils;
+import org.chimple.flores.db.SequenceRanges;
 
 import java.lang.reflect.Type;
 import java.util.ArrayList;
@@ -43,8 +45,8 @@ public class HandShakingInfo {
     private String from;
 
     @Expose(serialize = true, deserialize = true)
-    @SerializedName("ms")
-    private String missingMessages;
+    @SerializedName("mr")
+    private SequenceRanges missingSequences;
 
     @Expose(serialize = true, deserialize = true)
     @SerializedName("ps")
@@ -55,20 +57,30 @@ public class HandShakingInfo {
     }
 
 
-    public HandShakingInfo(String userId, String deviceId, Long sequence, String missingMessages, Long profileSequence) {
+    public HandShakingInfo(String userId, String deviceId, Long sequence, SequenceRanges missingSequences, Long profileSequence) {
         this.userId = userId;
         this.deviceId = deviceId;
         this.sequence = sequence;
-        this.missingMessages = missingMessages;
+        this.missingSequences = missingSequences;
         this.profileSequence = profileSequence;
     }
 
+    public HandShakingInfo(HandShakingInfo info) {
+        this.userId = info.userId;
+        this.deviceId = info.deviceId;
+        this.sequence = info.sequence;
+        this.startingSequence = info.startingSequence;
+        this.from = info.from;
+        this.missingSequences = info.missingSequences != null ? new SequenceRanges(info.missingSequences) : null;
+        this.profileSequence = info.profileSequence;
+    }
+
     public String getUserId() {
         return userId;
     }
 
-    public String getMissingMessages() {
-        return missingMessages;
+    public SequenceRanges getMissingSequences() {
+        return missingSequences;
     }
 
     public String getDeviceId() {
@@ -87,8 +99,8 @@ public class HandShakingInfo {
         this.startingSequence = startingSequence;
     }
 
-    public void setMissingMessages(String missingMessages) {
-        this.missingMessages = missingMessages;
+    public void setMissingSequences(SequenceRanges missingSequences) {
+        this.missingSequences = missingSequences;
     }
 
     public String getFrom() {
@@ -121,14 +133,14 @@ public class HandShakingInfo {
         if (this == info) {
             return true;
         } else {
-            return (this.userId.equals(info.userId) && this.missingMessages.equals(info.missingMessages) && this.deviceId.equals(info.deviceId) && this.sequence.longValue() == info.sequence.longValue() && this.profileSequence.longValue() == info.profileSequence.longValue());
+            return (ObjectUtils.equals(this.userId, info.userId) && ObjectUtils.equals(this.missingSequences, info.missingSequences) && ObjectUtils.equals(this.deviceId, info.deviceId) && ObjectUtils.equals(this.sequence, info.sequence) && ObjectUtils.equals(this.profileSequence, info.profileSequence));
         }
     }
 
 
     public int hashCode() {
         int hashno = 7;
-        hashno = 13 * hashno + (userId == null ? 0 : userId.hashCode()) + (missingMessages == null ? 0 : missingMessages.hashCode()) +(deviceId == null ? 0 : deviceId.hashCode()) + (sequence == null ? 0 : sequence.hashCode() + (profileSequence == null ? 0 : profileSequence.hashCode()));
+        hashno = 13 * hashno + (userId == null ? 0 : userId.hashCode()) + (missingSequences == null ? 0 : missingSequences.hashCode()) +(deviceId == null ? 0 : deviceId.hashCode()) + (sequence == null ? 0 : sequence.hashCode() + (profileSequence == null ? 0 : profileSequence.hashCode()));
         return hashno;
     }
 }
\ No newline at end of file
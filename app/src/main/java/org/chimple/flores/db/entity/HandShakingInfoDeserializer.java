@@ -1,14 +1,12 @@
 package org.chimple.flores.db.entity;
 
-import android.arch.persistence.room.util.StringUtil;
-
 import com.google.gson.JsonDeserializationContext;
 import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 
-import org.apache.commons.lang3.StringUtils;
+import org.chimple.flores.db.SequenceRanges;
 
 import java.lang.reflect.Type;
 
@@ -39,28 +37,24 @@ public class HandShakingInfoDeserializer implements JsonDeserializer<HandShaking
             sequence = jsonSequence.getAsLong();
         }
 
-        StringBuffer missingMessages = new StringBuffer();
-        String result = null;
+        SequenceRanges missingSequences = null;
+        final JsonElement jsonMissingRanges = jsonObject.get("mr");
         final JsonElement jsonMissingMessages = jsonObject.get("ms");
-        if (jsonMissingMessages != null) {
-            String missingMessages1 = jsonMissingMessages.getAsString();
-            char[] bits = missingMessages1.toCharArray();
-
+        if (jsonMissingRanges != null) {
+            missingSequences = SequenceRanges.parse(jsonMissingRanges.getAsString());
+            if (missingSequences == null) {
+                throw new JsonParseException("malformed missing ranges " + jsonMissingRanges);
+            }
+        } else if (jsonMissingMessages != null) {
+            // older peers send a bitmap over the last SYNC_NUMBER_OF_LAST_MESSAGES sequences, '0' marks a missing one
+            missingSequences = new SequenceRanges();
+            char[] bits = jsonMissingMessages.getAsString().toCharArray();
+            long firstSequence = sequence.longValue() > SYNC_NUMBER_OF_LAST_MESSAGES ? sequence.longValue() + 1 - SYNC_NUMBER_OF_LAST_MESSAGES : 1;
             for (int i = 0; i < bits.length; i++) {
-                char b = bits[i];
-                if(b == '0' && i < sequence) {
-                    if(sequence.intValue() > SYNC_NUMBER_OF_LAST_MESSAGES) {
-                        missingMessages.append(sequence.intValue() + 1 - SYNC_NUMBER_OF_LAST_MESSAGES + i);
-                    } else {
-                        missingMessages.append(i+1);
-                    }
-                    missingMessages.append(",");
+                if (bits[i] == '0' && i < sequence) {
+                    missingSequences.add(firstSequence + i);
                 }
             }
-            if(missingMessages.length() > 0) {
-                missingMessages.setLength(missingMessages.length() - 1);
-            }
-            result = missingMessages.toString();
         }
 
         Long profileSequence = 0L;
@@ -70,7 +64,7 @@ public class HandShakingInfoDeserializer implements JsonDeserializer<HandShaking
         }
 
 
-        final HandShakingInfo handShakingInfo = new HandShakingInfo(userId, deviceId, sequence, result, profileSequence);
+        final HandShakingInfo handShakingInfo = new HandShakingInfo(userId, deviceId, sequence, missingSequences, profileSequence);
         return handShakingInfo;
     }
 }
\ No newline at end of file
@@ -1,9 +1,18 @@
 package org.chimple.flores.db.entity;
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 public class HandShakingMessage {
+
+    // bits of "c", what the sending device can decode
+    public static final int CAPABILITY_DEFLATE = 1;
+    public static final int CAPABILITY_BINARY = 2;
+    public static final int CAPABILITY_RECONCILE = 4;
+    public static final int CAPABILITY_CATCH_UP = 8;
     @Expose(serialize = true, deserialize = true)
     @SerializedName("mt")
     String messageType;
@@ -33,6 +42,221 @@ public class HandShakingMessage {
     @SerializedName("i")
     List<HandShakingInfo> infos;
 
+    // sync records received, duplicated and out of sync since the previous handshake, used for pacing
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("rc")
+    Integer receivedCount;
+
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("dc")
+    Integer duplicateCount;
+
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("oc")
+    Integer outOfSyncCount;
+
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("c")
+    Integer capabilities;
+
+    // digest of the sender's full state, "dt" marks infos holding only the entries changed since a state peers hold
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("dg")
+    Long digest;
+
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("dt")
+    Boolean delta;
+
+    // digest of each peer's state the sender holds, by peer device id
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("ak")
+    Map<String, Long> acknowledgements;
+
+    public Long getDigest() {
+        return digest;
+    }
+
+    public void setDigest(Long digest) {
+        this.digest = digest;
+    }
+
+    public boolean isDelta() {
+        return delta != null && delta;
+    }
+
+    public void setDelta(boolean delta) {
+        this.delta = delta ? Boolean.TRUE : null;
+    }
+
+    public Map<String, Long> getAcknowledgements() {
+        return acknowledgements;
+    }
+
+    public void setAcknowledgements(Map<String, Long> acknowledgements) {
+        this.acknowledgements = acknowledgements;
+    }
+
+    // a handshake too large for one datagram goes out as pages of one round, each usable on its own
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("rd")
+    Integer round;
+
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("pg")
+    Integer page;
+
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("pc")
+    Integer pageCount;
+
+    // pages of the round merged into this message on the receiving side
+    transient int pagesReceived;
+
+    // sender's clock when sent, and per peer the "ts" last heard from it moved on by the time held, for round trips
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("ts")
+    Long sentAt;
+
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("ec")
+    Map<String, Long> echoes;
+
+    public Long getSentAt() {
+        return sentAt;
+    }
+
+    public void setSentAt(Long sentAt) {
+        this.sentAt = sentAt;
+    }
+
+    public Map<String, Long> getEchoes() {
+        return echoes;
+    }
+
+    public void setEchoes(Map<String, Long> echoes) {
+        this.echoes = echoes;
+    }
+
+    public Integer getRound() {
+        return round;
+    }
+
+    public Integer getPage() {
+        return page;
+    }
+
+    public Integer getPageCount() {
+        return pageCount;
+    }
+
+    public boolean isPaged() {
+        return pageCount != null && pageCount > 1;
+    }
+
+    public void setPage(Integer round, Integer page, Integer pageCount) {
+        this.round = round;
+        this.page = page;
+        this.pageCount = pageCount;
+    }
+
+    public void setPagesReceived(int pagesReceived) {
+        this.pagesReceived = pagesReceived;
+    }
+
+    public boolean isComplete() {
+        return !isPaged() || pagesReceived >= pageCount;
+    }
+
+    // same header, other infos
+    public HandShakingMessage withInfos(List<HandShakingInfo> infos) {
+        HandShakingMessage copy = new HandShakingMessage(from, messageType, reply, infos);
+        copy.capabilities = capabilities;
+        copy.receivedCount = receivedCount;
+        copy.duplicateCount = duplicateCount;
+        copy.outOfSyncCount = outOfSyncCount;
+        copy.digest = digest;
+        copy.delta = delta;
+        copy.acknowledgements = acknowledgements;
+        copy.round = round;
+        copy.page = page;
+        copy.pageCount = pageCount;
+        copy.pagesReceived = pagesReceived;
+        copy.sentAt = sentAt;
+        copy.echoes = echoes;
+        return copy;
+    }
+
+    /*
+        Splits the infos into pages whose encoded size, going by the given sizes of the header and of
+        each info, stays within the budget. Returns this message alone when everything fits.
+     */
+    public List<HandShakingMessage> paginate(int round, int envelopeSize, int[] infoSizes, int payloadBudget) {
+        List<List<HandShakingInfo>> groups = new ArrayList<List<HandShakingInfo>>();
+        List<HandShakingInfo> group = new ArrayList<HandShakingInfo>();
+        int groupSize = envelopeSize;
+        for (int i = 0; infos != null && i < infos.size(); i++) {
+            if (!group.isEmpty() && groupSize + infoSizes[i] > payloadBudget) {
+                groups.add(group);
+                group = new ArrayList<HandShakingInfo>();
+                groupSize = envelopeSize;
+            }
+            group.add(infos.get(i));
+            groupSize += infoSizes[i];
+        }
+        if (groups.isEmpty()) {
+            return Collections.singletonList(this);
+        }
+        groups.add(group);
+        List<HandShakingMessage> pages = new ArrayList<HandShakingMessage>(groups.size());
+        for (int i = 0; i < groups.size(); i++) {
+            HandShakingMessage page = withInfos(groups.get(i));
+            page.setPage(round, i, groups.size());
+            pages.add(page);
+        }
+        return pages;
+    }
+
+    public void setInfos(List<HandShakingInfo> infos) {
+        this.infos = infos;
+    }
+
+    public int getCapabilities() {
+        return capabilities != null ? capabilities : 0;
+    }
+
+    public void setCapabilities(int capabilities) {
+        this.capabilities = capabilities;
+    }
+
+    public Integer getReceivedCount() {
+        return receivedCount;
+    }
+
+    public Integer getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    public Integer getOutOfSyncCount() {
+        return outOfSyncCount;
+    }
+
+    public void setReceptionReport(int receivedCount, int duplicateCount, int outOfSyncCount) {
+        this.receivedCount = receivedCount;
+        this.duplicateCount = duplicateCount;
+        this.outOfSyncCount = outOfSyncCount;
+    }
+
+    public void clearReceptionReport() {
+        this.receivedCount = null;
+        this.duplicateCount = null;
+        this.outOfSyncCount = null;
+    }
+
+    public void setReply(String reply) {
+        this.reply = reply;
+    }
+
     public HandShakingMessage(String from, String messageType, String reply, List<HandShakingInfo> infos) {
         this.messageType = messageType;
         this.infos = infos;
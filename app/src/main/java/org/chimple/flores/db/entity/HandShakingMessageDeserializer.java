@@ -9,6 +9,8 @@ import com.google.gson.JsonParseException;
 import java.lang.reflect.Type;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 
 public class HandShakingMessageDeserializer implements JsonDeserializer<HandShakingMessage> {
@@ -39,6 +41,57 @@ public class HandShakingMessageDeserializer implements JsonDeserializer<HandShak
 
         HandShakingInfo[] infos = context.deserialize(jsonObject.get("i"), HandShakingInfo[].class);
         final HandShakingMessage handShakingMessage = new HandShakingMessage(from, messageType, reply, new ArrayList(Arrays.asList(infos)));
+
+        final JsonElement jsonCapabilities = jsonObject.get("c");
+        if (jsonCapabilities != null) {
+            handShakingMessage.setCapabilities(jsonCapabilities.getAsInt());
+        }
+
+        final JsonElement jsonReceived = jsonObject.get("rc");
+        if (jsonReceived != null) {
+            final JsonElement jsonDuplicates = jsonObject.get("dc");
+            final JsonElement jsonOutOfSync = jsonObject.get("oc");
+            handShakingMessage.setReceptionReport(jsonReceived.getAsInt(),
+                    jsonDuplicates != null ? jsonDuplicates.getAsInt() : 0,
+                    jsonOutOfSync != null ? jsonOutOfSync.getAsInt() : 0);
+        }
+
+        final JsonElement jsonDigest = jsonObject.get("dg");
+        if (jsonDigest != null) {
+            handShakingMessage.setDigest(jsonDigest.getAsLong());
+            final JsonElement jsonDelta = jsonObject.get("dt");
+            handShakingMessage.setDelta(jsonDelta != null && jsonDelta.getAsBoolean());
+        }
+
+        final JsonElement jsonPageCount = jsonObject.get("pc");
+        if (jsonPageCount != null) {
+            final JsonElement jsonRound = jsonObject.get("rd");
+            final JsonElement jsonPage = jsonObject.get("pg");
+            handShakingMessage.setPage(jsonRound != null ? jsonRound.getAsInt() : 0, jsonPage != null ? jsonPage.getAsInt() : 0, jsonPageCount.getAsInt());
+        }
+
+        final JsonElement jsonAcknowledgements = jsonObject.get("ak");
+        if (jsonAcknowledgements != null && jsonAcknowledgements.isJsonObject()) {
+            Map<String, Long> acknowledgements = new HashMap<String, Long>();
+            for (Map.Entry<String, JsonElement> entry : jsonAcknowledgements.getAsJsonObject().entrySet()) {
+                acknowledgements.put(entry.getKey(), entry.getValue().getAsLong());
+            }
+            handShakingMessage.setAcknowledgements(acknowledgements);
+        }
+
+        final JsonElement jsonSentAt = jsonObject.get("ts");
+        if (jsonSentAt != null) {
+            handShakingMessage.setSentAt(jsonSentAt.getAsLong());
+        }
+
+        final JsonElement jsonEchoes = jsonObject.get("ec");
+        if (jsonEchoes != null && jsonEchoes.isJsonObject()) {
+            Map<String, Long> echoes = new HashMap<String, Long>();
+            for (Map.Entry<String, JsonElement> entry : jsonEchoes.getAsJsonObject().entrySet()) {
+                echoes.put(entry.getKey(), entry.getValue().getAsLong());
+            }
+            handShakingMessage.setEchoes(echoes);
+        }
         return handShakingMessage;
     }
 }
\ No newline at end of file
@@ -0,0 +1,44 @@
+package org.chimple.flores.db.entity;
+
+import com.google.gson.annotations.Expose;
+import com.google.gson.annotations.SerializedName;
+
+import java.util.List;
+
+/*
+    Negative acknowledgement: only the (user, device, sequence) ranges the sender is missing.
+ */
+public class NackMessage {
+
+    public static final String MESSAGE_TYPE = "nack";
+
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("mt")
+    String messageType;
+
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("f")
+    String from;
+
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("l")
+    List<NackRange> ranges;
+
+    public NackMessage(String from, List<NackRange> ranges) {
+        this.messageType = MESSAGE_TYPE;
+        this.from = from;
+        this.ranges = ranges;
+    }
+
+    public String getMessageType() {
+        return messageType;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public List<NackRange> getRanges() {
+        return ranges;
+    }
+}
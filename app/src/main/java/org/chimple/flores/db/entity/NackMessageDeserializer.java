@@ -0,0 +1,33 @@
+package org.chimple.flores.db.entity;
+
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class NackMessageDeserializer implements JsonDeserializer<NackMessage> {
+
+    public NackMessage deserialize(final JsonElement json, final Type typeOfT, final JsonDeserializationContext context)
+            throws JsonParseException {
+
+        final JsonObject jsonObject = json.getAsJsonObject();
+
+        final JsonElement jsonFrom = jsonObject.get("f");
+        String from = "";
+        if (jsonFrom != null) {
+            from = jsonFrom.getAsString();
+        }
+
+        NackRange[] ranges = new NackRange[0];
+        final JsonElement jsonRanges = jsonObject.get("l");
+        if (jsonRanges != null) {
+            ranges = context.deserialize(jsonRanges, NackRange[].class);
+        }
+        return new NackMessage(from, new ArrayList<NackRange>(Arrays.asList(ranges)));
+    }
+}
@@ -0,0 +1,52 @@
+package org.chimple.flores.db.entity;
+
+import com.google.gson.annotations.Expose;
+import com.google.gson.annotations.SerializedName;
+
+public class NackRange {
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("u")
+    String userId;
+
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("d")
+    String deviceId;
+
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("s")
+    Long startingSequence;
+
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("e")
+    Long endingSequence;
+
+    public NackRange() {
+    }
+
+    public NackRange(String userId, String deviceId, Long startingSequence, Long endingSequence) {
+        this.userId = userId;
+        this.deviceId = deviceId;
+        this.startingSequence = startingSequence;
+        this.endingSequence = endingSequence;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public Long getStartingSequence() {
+        return startingSequence;
+    }
+
+    public Long getEndingSequence() {
+        return endingSequence;
+    }
+
+    public String toString() {
+        return userId + "_" + deviceId + "[" + startingSequence + "-" + endingSequence + "]";
+    }
+}
@@ -14,7 +14,8 @@ import java.util.Date;
 
 @Entity(indices = {
         @Index("device_id"),
-        @Index("sync_immediately")
+        @Index("sync_immediately"),
+        @Index("last_seen")
 })
 public class P2PSyncDeviceStatus {
 
@@ -46,6 +47,22 @@ public class P2PSyncDeviceStatus {
     @ColumnInfo(name = "sync_immediately")
     public Boolean syncImmediately;
 
+    // membership, as last heard on the multicast group
+    @ColumnInfo(name = "address")
+    public String address;
+
+    @ColumnInfo(name = "last_seen")
+    public Date lastSeen;
+
+    @ColumnInfo(name = "state_digest")
+    public Long stateDigest;
+
+    @ColumnInfo(name = "rtt")
+    public Long rtt; // ms
+
+    @ColumnInfo(name = "loss")
+    public Double loss;
+
 
     public String getDeviceId() {
         return deviceId;
@@ -79,6 +96,41 @@ public class P2PSyncDeviceStatus {
         this.syncImmediately = syncImmediately;
     }
 
+    public String getAddress() {
+        return address;
+    }
+
+    public Date getLastSeen() {
+        return lastSeen;
+    }
+
+    public Long getStateDigest() {
+        return stateDigest;
+    }
+
+    public Long getRtt() {
+        return rtt;
+    }
+
+    public Double getLoss() {
+        return loss;
+    }
+
+    public void setMembership(String address, Date lastSeen, Long stateDigest, Long rtt, Double loss) {
+        this.address = address;
+        this.lastSeen = lastSeen;
+        this.stateDigest = stateDigest;
+        this.rtt = rtt;
+        this.loss = loss;
+    }
+
+    // keeps what the group last heard of the device when its sync status is rewritten
+    public void copyMembership(P2PSyncDeviceStatus other) {
+        if (other != null) {
+            setMembership(other.address, other.lastSeen, other.stateDigest, other.rtt, other.loss);
+        }
+    }
+
     public String print() {
         return "P2PSyncDeviceStatus:" + " deviceId:" + deviceId;
     }
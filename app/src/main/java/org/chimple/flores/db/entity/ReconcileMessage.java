@@ -0,0 +1,71 @@
+package org.chimple.flores.db.entity;
+
+import android.util.Base64;
+
+import com.google.gson.annotations.Expose;
+import com.google.gson.annotations.SerializedName;
+
+/*
+    Invertible Bloom lookup table of every record key the sender holds, addressed to one peer.
+    "r" asks the peer to answer with its own table when the sender is missing records too.
+ */
+public class ReconcileMessage {
+
+    public static final String MESSAGE_TYPE = "reconcile";
+
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("mt")
+    String messageType;
+
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("f")
+    String from;
+
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("r")
+    String reply;
+
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("n")
+    int cellCount;
+
+    // base64 of the cells, set for JSON only
+    @Expose(serialize = true, deserialize = true)
+    @SerializedName("c")
+    String encodedCells;
+
+    transient byte[] cells;
+
+    public ReconcileMessage(String from, boolean reply, int cellCount, byte[] cells) {
+        this.messageType = MESSAGE_TYPE;
+        this.from = from;
+        this.reply = reply ? "true" : "false";
+        this.cellCount = cellCount;
+        this.cells = cells;
+    }
+
+    public String getMessageType() {
+        return messageType;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public boolean isReply() {
+        return "true".equalsIgnoreCase(reply);
+    }
+
+    public int getCellCount() {
+        return cellCount;
+    }
+
+    public byte[] getCells() {
+        return cells;
+    }
+
+    public ReconcileMessage encodeCells() {
+        this.encodedCells = cells != null ? Base64.encodeToString(cells, Base64.NO_WRAP) : null;
+        return this;
+    }
+}
@@ -0,0 +1,42 @@
+package org.chimple.flores.db.entity;
+
+import android.util.Base64;
+
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+import java.lang.reflect.Type;
+
+public class ReconcileMessageDeserializer implements JsonDeserializer<ReconcileMessage> {
+
+    public ReconcileMessage deserialize(final JsonElement json, final Type typeOfT, final JsonDeserializationContext context)
+            throws JsonParseException {
+
+        final JsonObject jsonObject = json.getAsJsonObject();
+
+        final JsonElement jsonFrom = jsonObject.get("f");
+        String from = "";
+        if (jsonFrom != null) {
+            from = jsonFrom.getAsString();
+        }
+
+        final JsonElement jsonReply = jsonObject.get("r");
+        boolean reply = jsonReply != null && "true".equalsIgnoreCase(jsonReply.getAsString());
+
+        final JsonElement jsonCellCount = jsonObject.get("n");
+        final JsonElement jsonCells = jsonObject.get("c");
+        if (jsonCellCount == null || jsonCells == null) {
+            throw new JsonParseException("reconcile message without cells");
+        }
+        byte[] cells;
+        try {
+            cells = Base64.decode(jsonCells.getAsString(), Base64.NO_WRAP);
+        } catch (IllegalArgumentException e) {
+            throw new JsonParseException("malformed reconcile cells", e);
+        }
+        return new ReconcileMessage(from, reply, jsonCellCount.getAsInt(), cells);
+    }
+}
@@ -0,0 +1,18 @@
+package org.chimple.flores.db.entity;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+
+import org.chimple.flores.db.SequenceRanges;
+
+import java.lang.reflect.Type;
+
+// writes ranges in their compact text form, e.g. "3-7,9"
+public class SequenceRangesSerializer implements JsonSerializer<SequenceRanges> {
+
+    public JsonElement serialize(final SequenceRanges ranges, final Type typeOfSrc, final JsonSerializationContext context) {
+        return new JsonPrimitive(ranges.toString());
+    }
+}
@@ -18,19 +18,21 @@ public class SyncInfoMessageDeserializer implements JsonDeserializer<SyncInfoMes
 
         final JsonObject jsonObject = json.getAsJsonObject();
 
-        final JsonElement jsonMessageType = jsonObject.get("message_type");
+        // short keys are what SyncInfoMessage serializes to, long keys are kept for older peers
+        final JsonElement jsonMessageType = jsonObject.has("mt") ? jsonObject.get("mt") : jsonObject.get("message_type");
         String messageType = "";
         if (jsonMessageType != null) {
             messageType = jsonMessageType.getAsString();
         }
 
-        final JsonElement jsonSender = jsonObject.get("sender");
+        final JsonElement jsonSender = jsonObject.has("s") ? jsonObject.get("s") : jsonObject.get("sender");
         String sender = "";
         if (jsonSender != null) {
             sender = jsonSender.getAsString();
         }
 
-        P2PSyncInfo[] infos = context.deserialize(jsonObject.get("infos"), P2PSyncInfo[].class);
+        final JsonElement jsonInfos = jsonObject.has("i") ? jsonObject.get("i") : jsonObject.get("infos");
+        P2PSyncInfo[] infos = jsonInfos != null ? (P2PSyncInfo[]) context.deserialize(jsonInfos, P2PSyncInfo[].class) : new P2PSyncInfo[0];
         final SyncInfoMessage message = new SyncInfoMessage(messageType, sender, new ArrayList(Arrays.asList(infos)));
         return message;
     }
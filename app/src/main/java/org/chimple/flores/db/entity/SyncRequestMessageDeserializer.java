@@ -30,13 +30,15 @@ public class SyncRequestMessageDeserializer implements JsonDeserializer<SyncInfo
             md = jsonMd.getAsString();
         }
 
-        final JsonElement jsonSender = jsonObject.get("sender");
+        // short keys are what SyncInfoRequestMessage serializes to, long keys are kept for older peers
+        final JsonElement jsonSender = jsonObject.has("s") ? jsonObject.get("s") : jsonObject.get("sender");
         String sender = "";
         if (jsonSender != null) {
             sender = jsonSender.getAsString();
         }
 
-        SyncInfoItem[] infos = context.deserialize(jsonObject.get("items"), SyncInfoItem[].class);
+        final JsonElement jsonItems = jsonObject.has("l") ? jsonObject.get("l") : jsonObject.get("items");
+        SyncInfoItem[] infos = jsonItems != null ? (SyncInfoItem[]) context.deserialize(jsonItems, SyncInfoItem[].class) : new SyncInfoItem[0];
         final SyncInfoRequestMessage message = new SyncInfoRequestMessage(sender, md, new ArrayList(Arrays.asList(infos)));
         return message;
     }
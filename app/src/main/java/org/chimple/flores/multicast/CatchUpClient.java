@@ -0,0 +1,162 @@
+package org.chimple.flores.multicast;
+
+import android.util.Log;
+
+import org.chimple.flores.application.P2PContext;
+import org.chimple.flores.db.BinaryMessageCodec;
+import org.chimple.flores.db.P2PDBApiImpl;
+import org.chimple.flores.db.SequenceRanges;
+import org.chimple.flores.db.entity.HandShakingInfo;
+import org.chimple.flores.db.entity.HandShakingMessage;
+import org.chimple.flores.db.entity.NackMessage;
+import org.chimple.flores.db.entity.NackRange;
+import org.chimple.flores.db.entity.P2PLatestInfoByUserAndDevice;
+import org.chimple.flores.db.entity.P2PSyncInfo;
+import org.chimple.flores.db.entity.SyncInfoMessage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Pulls every record this device lacks of what one well synced peer holds from that peer's
+    CatchUpServer and writes them BATCH_SIZE at a time, each batch in one transaction. The request
+    is worked out from the database, so a session cut short resumes where the last batch left off.
+ */
+public class CatchUpClient implements Runnable {
+
+    private static final String TAG = CatchUpClient.class.getSimpleName();
+
+    static final int BATCH_SIZE = 500;
+    private static final int CONNECT_TIMEOUT = 3 * 1000; // 3 sec
+
+    private final P2PDBApiImpl p2PDBApiImpl;
+    private final BinaryMessageCodec codec;
+    private final HandShakingMessage peer;
+    private final String address;
+    private final int port;
+
+    public CatchUpClient(P2PDBApiImpl p2PDBApiImpl, BinaryMessageCodec codec, HandShakingMessage peer, String address, int port) {
+        this.p2PDBApiImpl = p2PDBApiImpl;
+        this.codec = codec;
+        this.peer = peer;
+        this.address = address;
+        this.port = port;
+    }
+
+    /*
+        Records the peer holds beyond the latest ones held here, summed over users and devices.
+        Only counts what the handshake shows, older gaps are found once the session starts.
+     */
+    public static long lag(HandShakingMessage peer, P2PLatestInfoByUserAndDevice[] latest) {
+        Map<String, Long> held = new HashMap<String, Long>();
+        for (P2PLatestInfoByUserAndDevice info : latest) {
+            held.put(info.userId + "_" + info.deviceId, info.sequence);
+        }
+        long lag = 0;
+        if (peer.getInfos() != null) {
+            for (HandShakingInfo info : peer.getInfos()) {
+                Long sequence = held.get(info.getUserId() + "_" + info.getDeviceId());
+                if (info.getSequence() != null) {
+                    lag += Math.max(0, info.getSequence() - (sequence != null ? sequence : 0));
+                }
+            }
+        }
+        return lag;
+    }
+
+    @Override
+    public void run() {
+        List<NackRange> lacking = lackingRanges();
+        if (lacking.isEmpty()) {
+            Log.d(TAG, "nothing to catch up from " + peer.getFrom());
+            return;
+        }
+        Log.d(TAG, "catching up from " + peer.getFrom() + " at " + address + " on " + lacking.size() + " ranges");
+        List<P2PSyncInfo> batch = new ArrayList<P2PSyncInfo>(BATCH_SIZE);
+        long persisted = 0;
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT);
+            socket.setSoTimeout(CatchUpServer.SOCKET_TIMEOUT);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            CatchUpServer.writeFrame(out, codec.encodeNackMessage(new NackMessage(P2PContext.getCurrentDevice(), lacking)));
+            out.flush();
+
+            byte[] frame;
+            while ((frame = CatchUpServer.readFrame(in)) != null && frame.length > 0) {
+                Object message = codec.decode(frame, frame.length);
+                if (!(message instanceof SyncInfoMessage) || ((SyncInfoMessage) message).getInfos() == null) {
+                    throw new IOException("unreadable catch up frame of " + frame.length + " bytes");
+                }
+                batch.addAll(((SyncInfoMessage) message).getInfos());
+                if (batch.size() >= BATCH_SIZE) {
+                    persisted += p2PDBApiImpl.persistP2PSyncInfoBatch(batch);
+                    batch.clear();
+                }
+            }
+            if (frame == null) {
+                throw new IOException("stream ended before the end marker");
+            }
+            Log.d(TAG, "caught up from " + peer.getFrom());
+        } catch (IOException e) {
+            Log.d(TAG, "catch up from " + peer.getFrom() + " interrupted, resumes from the records applied: " + e.getMessage());
+        } finally {
+            // whatever arrived is valid on its own
+            if (!batch.isEmpty()) {
+                persisted += p2PDBApiImpl.persistP2PSyncInfoBatch(batch);
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            Log.d(TAG, "catch up from " + peer.getFrom() + " applied " + persisted + " records");
+        }
+    }
+
+    // for each user and device in the peer's handshake, the sequences up to its latest not held here
+    private List<NackRange> lackingRanges() {
+        Map<String, SequenceRanges> held = new HashMap<String, SequenceRanges>();
+        for (P2PLatestInfoByUserAndDevice key : p2PDBApiImpl.fetchAllRecordKeys()) {
+            if (key.sequence == null) {
+                continue;
+            }
+            String sender = key.userId + "_" + key.deviceId;
+            SequenceRanges ranges = held.get(sender);
+            if (ranges == null) {
+                ranges = new SequenceRanges();
+                held.put(sender, ranges);
+            }
+            ranges.add(key.sequence);
+        }
+        List<NackRange> lacking = new ArrayList<NackRange>();
+        if (peer.getInfos() == null) {
+            return lacking;
+        }
+        for (HandShakingInfo info : peer.getInfos()) {
+            if (info.getUserId() == null || info.getDeviceId() == null || info.getSequence() == null || info.getSequence() < 1) {
+                continue;
+            }
+            SequenceRanges missing = new SequenceRanges();
+            missing.add(1, info.getSequence());
+            SequenceRanges ranges = held.get(info.getUserId() + "_" + info.getDeviceId());
+            if (ranges != null) {
+                missing.removeAll(ranges);
+            }
+            for (int i = 0; i < missing.getRangeCount(); i++) {
+                lacking.add(new NackRange(info.getUserId(), info.getDeviceId(), missing.startOf(i), missing.endOf(i)));
+            }
+        }
+        return lacking;
+    }
+}
@@ -0,0 +1,187 @@
+package org.chimple.flores.multicast;
+
+import android.util.Log;
+
+import org.chimple.flores.db.BinaryMessageCodec;
+import org.chimple.flores.db.P2PDBApiImpl;
+import org.chimple.flores.db.entity.NackMessage;
+import org.chimple.flores.db.entity.NackRange;
+import org.chimple.flores.db.entity.P2PSyncInfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Serves bulk catch-up to devices far behind over a TCP stream. The device sends one frame, a
+    binary NackMessage listing every range it lacks, and gets back the records held here in those
+    ranges as binary SyncInfoMessage frames, oldest first per user and device, then an empty frame.
+    Each frame is its length as an int followed by that many bytes.
+ */
+public class CatchUpServer extends Thread {
+
+    private static final String TAG = CatchUpServer.class.getSimpleName();
+
+    static final int MAX_SESSIONS = 2;
+    // a single record larger than FRAME_BUDGET goes in a frame of its own
+    static final int MAX_FRAME_SIZE = 8 * 1024 * 1024;
+    static final int FRAME_BUDGET = 32 * 1024;
+    static final int SOCKET_TIMEOUT = 15 * 1000; // 15 sec
+    // sequences fetched from the database at a time
+    private static final long CHUNK_SEQUENCES = 256;
+
+    private final P2PDBApiImpl p2PDBApiImpl;
+    private final BinaryMessageCodec codec;
+    private final int port;
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final Set<Socket> clients = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private volatile ServerSocket serverSocket;
+
+    public CatchUpServer(P2PDBApiImpl p2PDBApiImpl, BinaryMessageCodec codec, int port) {
+        super(TAG);
+        this.p2PDBApiImpl = p2PDBApiImpl;
+        this.codec = codec;
+        this.port = port;
+    }
+
+    public void run() {
+        try {
+            ServerSocket socket = new ServerSocket();
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(port));
+            serverSocket = socket;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        // stopped while binding, stopRunning found no socket to close
+        if (!running.get()) {
+            close(serverSocket);
+            return;
+        }
+        Log.d(TAG, "catch up server listening on port " + port);
+        while (running.get()) {
+            final Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException e) {
+                if (!running.get() || serverSocket.isClosed()) {
+                    break;
+                }
+                e.printStackTrace();
+                continue;
+            }
+            if (sessions.incrementAndGet() > MAX_SESSIONS) {
+                sessions.decrementAndGet();
+                Log.d(TAG, "refusing catch up from " + client.getInetAddress() + ", " + MAX_SESSIONS + " sessions running");
+                close(client);
+                continue;
+            }
+            clients.add(client);
+            if (!running.get()) {
+                // stopRunning may have closed the sessions before this one was added
+                close(client);
+            }
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(client);
+                    } catch (IOException e) {
+                        Log.d(TAG, "catch up session with " + client.getInetAddress() + " ended: " + e.getMessage());
+                    } finally {
+                        close(client);
+                        clients.remove(client);
+                        sessions.decrementAndGet();
+                    }
+                }
+            }, TAG + "-session").start();
+        }
+    }
+
+    public void stopRunning() {
+        running.set(false);
+        ServerSocket socket = serverSocket;
+        if (socket != null) {
+            close(socket);
+        }
+        for (Socket client : clients) {
+            close(client);
+        }
+    }
+
+    private void serve(Socket client) throws IOException {
+        client.setSoTimeout(SOCKET_TIMEOUT);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+        byte[] frame = readFrame(in);
+        Object request = frame != null ? codec.decode(frame, frame.length) : null;
+        if (!(request instanceof NackMessage)) {
+            Log.d(TAG, "dropping catch up session from " + client.getInetAddress() + ", no request");
+            return;
+        }
+        NackMessage nack = (NackMessage) request;
+        long records = 0;
+        for (NackRange range : nack.getRanges()) {
+            Long latest = p2PDBApiImpl.findLatestSequence(range.getUserId(), range.getDeviceId());
+            if (latest == null || range.getStartingSequence() == null || range.getEndingSequence() == null) {
+                continue;
+            }
+            long last = Math.min(range.getEndingSequence(), latest);
+            for (long start = range.getStartingSequence(); start <= last; start += CHUNK_SEQUENCES) {
+                long end = Math.min(last, start + CHUNK_SEQUENCES - 1);
+                List<P2PSyncInfo> infos = p2PDBApiImpl.fetchP2PSyncInfosByNackRanges(Collections.singletonList(new NackRange(range.getUserId(), range.getDeviceId(), start, end)));
+                for (byte[] packet : codec.encodeSyncInfoPackets(infos, FRAME_BUDGET)) {
+                    writeFrame(out, packet);
+                }
+                records += infos.size();
+            }
+        }
+        writeFrame(out, new byte[0]);
+        out.flush();
+        Log.d(TAG, "catch up for " + nack.getFrom() + " sent " + records + " records");
+    }
+
+    static void writeFrame(DataOutputStream out, byte[] frame) throws IOException {
+        out.writeInt(frame.length);
+        out.write(frame);
+    }
+
+    // null at the end of the stream, an empty array for the end marker
+    static byte[] readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("frame of " + length + " bytes");
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+
+    private static void close(Closeable socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.chimple.flores.multicast;
+
+/*
+    Turns received datagrams back into message payloads: unwraps FEC frames (rebuilding
+    lost datagrams from parity), reassembles fragments and inflates compressed payloads.
+    Payloads are JSON text or binary messages. A datagram that is a whole message is handed on
+    in the caller's buffer, it is up to the receiver to copy what it keeps.
+ */
+public class DatagramDecoder {
+
+    public interface Receiver {
+        // a shared buffer is reused once the call returns
+        boolean receive(byte[] bytes, int length, boolean shared, String fromIP);
+    }
+
+    private final FecDecoder fecDecoder = new FecDecoder();
+    private final FragmentReassembler reassembler = new FragmentReassembler();
+    private final PayloadCompressor compressor = new PayloadCompressor();
+
+    public void decode(String fromIP, byte[] datagram, int length, Receiver receiver) {
+        if (!FecEncoder.isFecFrame(datagram, length)) {
+            decodeFrame(fromIP, datagram, length, true, receiver);
+            return;
+        }
+        // the FEC decoder copies the datagrams it returns
+        for (byte[] inner : fecDecoder.add(fromIP, datagram, length)) {
+            decodeFrame(fromIP, inner, inner.length, false, receiver);
+        }
+    }
+
+    public long getRecoveredDatagrams() {
+        return fecDecoder.getRecoveredDatagrams();
+    }
+
+    private void decodeFrame(String fromIP, byte[] datagram, int length, boolean sharedBuffer, Receiver receiver) {
+        byte[] payload;
+        if (MessageFragmenter.isFragment(datagram, length)) {
+            payload = inflate(reassembler.add(fromIP, datagram, length));
+        } else if (PayloadCompressor.isCompressed(datagram, length)) {
+            payload = compressor.decompress(datagram, length);
+        } else {
+            receiver.receive(datagram, length, sharedBuffer, fromIP);
+            return;
+        }
+        if (payload != null) {
+            receiver.receive(payload, payload.length, false, fromIP);
+        }
+    }
+
+    private byte[] inflate(byte[] payload) {
+        if (payload != null && PayloadCompressor.isCompressed(payload, payload.length)) {
+            return compressor.decompress(payload, payload.length);
+        }
+        return payload;
+    }
+}
@@ -0,0 +1,156 @@
+package org.chimple.flores.multicast;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.chimple.flores.multicast.FecEncoder.FEC_HEADER_SIZE;
+import static org.chimple.flores.multicast.FecEncoder.FRAME_FEC_DATA;
+import static org.chimple.flores.multicast.FecEncoder.MAX_BLOCK_SIZE;
+import static org.chimple.flores.multicast.FecEncoder.PARITY_LENGTH_SIZE;
+
+public class FecDecoder {
+
+    private static final String TAG = FecDecoder.class.getSimpleName();
+
+    static final int MAX_PENDING_BLOCKS = 64;
+    static final long BLOCK_TIMEOUT = 5 * 1000; // 5 sec
+
+    // insertion ordered, so the eldest entry is always the first to evict
+    private final Map<String, PendingBlock> pendingBlocks = new LinkedHashMap<String, PendingBlock>();
+    private long recoveredDatagrams = 0;
+
+    /*
+        Copies what it needs out of the frame, so the caller may reuse its buffer.
+        Returns the inner datagram of a data frame seen for the first time, plus the
+        datagram rebuilt from parity once a block is one short of complete.
+     */
+    public synchronized List<byte[]> add(String fromIP, byte[] frame, int length) {
+        ByteBuffer header = ByteBuffer.wrap(frame, 2, FEC_HEADER_SIZE - 2);
+        int blockId = header.getInt();
+        int index = header.get() & 0xFF;
+        boolean isData = frame[1] == FRAME_FEC_DATA;
+        boolean malformed = isData ? index >= MAX_BLOCK_SIZE
+                : index < 1 || index > MAX_BLOCK_SIZE || length < FEC_HEADER_SIZE + PARITY_LENGTH_SIZE;
+        if (malformed) {
+            Log.d(TAG, "dropping malformed FEC frame from " + fromIP);
+            return Collections.emptyList();
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        evictExpired(now);
+
+        String key = fromIP + "_" + blockId;
+        PendingBlock block = pendingBlocks.get(key);
+        if (block == null) {
+            block = new PendingBlock(now);
+            pendingBlocks.put(key, block);
+            evictOverflow(key);
+        }
+
+        List<byte[]> datagrams = new ArrayList<byte[]>(2);
+        if (isData) {
+            if (block.complete || block.datagrams[index] != null) {
+                return datagrams;
+            }
+            byte[] datagram = new byte[length - FEC_HEADER_SIZE];
+            System.arraycopy(frame, FEC_HEADER_SIZE, datagram, 0, datagram.length);
+            block.datagrams[index] = datagram;
+            block.received++;
+            datagrams.add(datagram);
+        } else if (block.parity == null && !block.complete) {
+            block.count = index;
+            block.lengthXor = ByteBuffer.wrap(frame, FEC_HEADER_SIZE, PARITY_LENGTH_SIZE).getShort() & 0xFFFF;
+            block.parity = new byte[length - FEC_HEADER_SIZE - PARITY_LENGTH_SIZE];
+            System.arraycopy(frame, FEC_HEADER_SIZE + PARITY_LENGTH_SIZE, block.parity, 0, block.parity.length);
+        }
+
+        if (block.count > 0 && block.received >= block.count) {
+            block.release();
+        } else if (block.parity != null && block.received == block.count - 1) {
+            byte[] recovered = block.recover();
+            if (recovered != null) {
+                recoveredDatagrams++;
+                datagrams.add(recovered);
+            }
+            block.release();
+        }
+        return datagrams;
+    }
+
+    public synchronized long getRecoveredDatagrams() {
+        return recoveredDatagrams;
+    }
+
+    private void evictExpired(long now) {
+        Iterator<PendingBlock> it = pendingBlocks.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().firstSeen < BLOCK_TIMEOUT) {
+                break;
+            }
+            it.remove();
+        }
+    }
+
+    private void evictOverflow(String keep) {
+        Iterator<String> it = pendingBlocks.keySet().iterator();
+        while (it.hasNext() && pendingBlocks.size() > MAX_PENDING_BLOCKS) {
+            if (!it.next().equals(keep)) {
+                it.remove();
+            }
+        }
+    }
+
+    private static class PendingBlock {
+        final byte[][] datagrams = new byte[MAX_BLOCK_SIZE][];
+        final long firstSeen;
+        int received = 0;
+        int count = 0;
+        int lengthXor = 0;
+        byte[] parity;
+        // kept until it expires so late copies of a block are not delivered twice
+        boolean complete = false;
+
+        PendingBlock(long firstSeen) {
+            this.firstSeen = firstSeen;
+        }
+
+        byte[] recover() {
+            int missing = -1;
+            int length = lengthXor;
+            byte[] rebuilt = parity.clone();
+            for (int i = 0; i < count; i++) {
+                byte[] datagram = datagrams[i];
+                if (datagram == null) {
+                    missing = i;
+                    continue;
+                }
+                length ^= datagram.length;
+                for (int j = 0; j < datagram.length && j < rebuilt.length; j++) {
+                    rebuilt[j] ^= datagram[j];
+                }
+            }
+            if (missing < 0 || length > rebuilt.length) {
+                return null;
+            }
+            byte[] datagram = new byte[length];
+            System.arraycopy(rebuilt, 0, datagram, 0, length);
+            return datagram;
+        }
+
+        void release() {
+            complete = true;
+            parity = null;
+            for (int i = 0; i < datagrams.length; i++) {
+                datagrams[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.chimple.flores.multicast;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.chimple.flores.multicast.MessageFragmenter.FRAME_MAGIC;
+
+/*
+    XOR parity over blocks of up to blockSize outgoing datagrams, so a receiver can rebuild
+    one lost datagram per block without a round trip.
+    data:   [FRAME_MAGIC][FRAME_FEC_DATA][block id: int][index: byte][0][datagram]
+    parity: [FRAME_MAGIC][FRAME_FEC_PARITY][block id: int][count: byte][count: byte][xor of lengths: short][xor of datagrams]
+    Not thread safe, callers hold their send queue lock around encode and flush.
+ */
+public class FecEncoder {
+
+    public static final byte FRAME_FEC_DATA = 0x02;
+    public static final byte FRAME_FEC_PARITY = 0x03;
+    static final int FEC_HEADER_SIZE = 8;
+    static final int PARITY_LENGTH_SIZE = 2;
+    public static final int MAX_BLOCK_SIZE = 32;
+
+    private volatile int blockSize;
+    private int blockId = new Random().nextInt();
+    private int blockCount = 0;
+    private int parityLength = 0;
+    private int lengthXor = 0;
+    private final byte[] parity = new byte[MessageFragmenter.MAX_DATAGRAM_SIZE];
+
+    // 0 turns FEC off
+    public FecEncoder(int blockSize) {
+        setBlockSize(blockSize);
+    }
+
+    public void setBlockSize(int blockSize) {
+        this.blockSize = Math.max(0, Math.min(MAX_BLOCK_SIZE, blockSize));
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /*
+        Wraps every datagram in a data frame and appends the parity frame of each block it completes.
+        Datagrams larger than MAX_DATAGRAM_SIZE are passed through without protection.
+     */
+    public List<byte[]> encode(List<byte[]> datagrams) {
+        int k = blockSize;
+        if (k < 2) {
+            List<byte[]> frames = new ArrayList<byte[]>(datagrams.size() + 1);
+            byte[] pendingParity = flush();
+            if (pendingParity != null) {
+                frames.add(pendingParity);
+            }
+            frames.addAll(datagrams);
+            return frames;
+        }
+
+        List<byte[]> frames = new ArrayList<byte[]>(datagrams.size() + datagrams.size() / k + 1);
+        for (byte[] datagram : datagrams) {
+            if (datagram.length > parity.length) {
+                frames.add(datagram);
+                continue;
+            }
+            frames.add(dataFrame(datagram));
+            if (blockCount >= k) {
+                frames.add(flush());
+            }
+        }
+        return frames;
+    }
+
+    // closes the current block early, returns its parity frame or null if the block is empty
+    public byte[] flush() {
+        if (blockCount == 0) {
+            return null;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(FEC_HEADER_SIZE + PARITY_LENGTH_SIZE + parityLength);
+        frame.put(FRAME_MAGIC)
+                .put(FRAME_FEC_PARITY)
+                .putInt(blockId)
+                .put((byte) blockCount)
+                .put((byte) blockCount)
+                .putShort((short) lengthXor)
+                .put(parity, 0, parityLength);
+
+        blockId++;
+        blockCount = 0;
+        lengthXor = 0;
+        Arrays.fill(parity, 0, parityLength, (byte) 0);
+        parityLength = 0;
+        return frame.array();
+    }
+
+    private byte[] dataFrame(byte[] datagram) {
+        ByteBuffer frame = ByteBuffer.allocate(FEC_HEADER_SIZE + datagram.length);
+        frame.put(FRAME_MAGIC)
+                .put(FRAME_FEC_DATA)
+                .putInt(blockId)
+                .put((byte) blockCount)
+                .put((byte) 0)
+                .put(datagram);
+
+        for (int i = 0; i < datagram.length; i++) {
+            parity[i] ^= datagram[i];
+        }
+        parityLength = Math.max(parityLength, datagram.length);
+        lengthXor ^= datagram.length;
+        blockCount++;
+        return frame.array();
+    }
+
+    // block size for the loss receivers report, one parity covers roughly one expected loss
+    public static int blockSizeForLoss(double loss) {
+        if (loss >= 0.15) {
+            return 4;
+        } else if (loss >= 0.08) {
+            return 8;
+        } else if (loss >= 0.03) {
+            return 16;
+        } else if (loss > 0) {
+            return MAX_BLOCK_SIZE;
+        }
+        return 0;
+    }
+
+    public static boolean isFecFrame(byte[] datagram, int length) {
+        return length > FEC_HEADER_SIZE && datagram[0] == FRAME_MAGIC
+                && (datagram[1] == FRAME_FEC_DATA || datagram[1] == FRAME_FEC_PARITY);
+    }
+}
@@ -0,0 +1,144 @@
+package org.chimple.flores.multicast;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.chimple.flores.multicast.MessageFragmenter.FRAGMENT_HEADER_SIZE;
+import static org.chimple.flores.multicast.MessageFragmenter.MAX_FRAGMENTS;
+import static org.chimple.flores.multicast.MessageFragmenter.MAX_FRAGMENT_PAYLOAD;
+import static org.chimple.flores.multicast.MessageFragmenter.MAX_MESSAGE_SIZE;
+
+public class FragmentReassembler {
+
+    private static final String TAG = FragmentReassembler.class.getSimpleName();
+
+    static final int MAX_PENDING_MESSAGES = 32;
+    static final int MAX_PENDING_BYTES = 4 * MAX_MESSAGE_SIZE;
+    static final long REASSEMBLY_TIMEOUT = 10 * 1000; // 10 sec
+
+    // insertion ordered, so the eldest entry is always the first to evict
+    private final Map<String, PendingMessage> pendingMessages = new LinkedHashMap<String, PendingMessage>();
+    private int pendingBytes = 0;
+    private long evictedMessages = 0;
+
+    /*
+        Copies the fragment out of the datagram, so the caller may reuse its buffer.
+        Returns the complete message once its last fragment has arrived, otherwise null.
+     */
+    public byte[] add(String fromIP, byte[] datagram, int length) {
+        return add(fromIP, datagram, length, SystemClock.elapsedRealtime());
+    }
+
+    synchronized byte[] add(String fromIP, byte[] datagram, int length, long now) {
+        ByteBuffer header = ByteBuffer.wrap(datagram, 2, FRAGMENT_HEADER_SIZE - 2);
+        int messageId = header.getInt();
+        int index = header.getShort();
+        int count = header.getShort();
+        int chunkLength = length - FRAGMENT_HEADER_SIZE;
+        if (count <= 0 || index < 0 || index >= count || chunkLength > MAX_FRAGMENT_PAYLOAD) {
+            Log.d(TAG, "dropping malformed fragment from " + fromIP);
+            return null;
+        }
+        // no sender sends a message this large, not worth holding any of it
+        if (count > MAX_FRAGMENTS) {
+            Log.d(TAG, "dropping fragment of oversized message (" + count + " fragments) from " + fromIP);
+            return null;
+        }
+
+        evictExpired(now);
+
+        String key = fromIP + "_" + messageId;
+        PendingMessage pending = pendingMessages.get(key);
+        if (pending == null) {
+            pending = new PendingMessage(count, now);
+            pendingMessages.put(key, pending);
+        } else if (pending.chunks.length != count) {
+            return null;
+        }
+
+        if (pending.chunks[index] == null) {
+            byte[] chunk = new byte[chunkLength];
+            System.arraycopy(datagram, FRAGMENT_HEADER_SIZE, chunk, 0, chunkLength);
+            pending.chunks[index] = chunk;
+            pending.received++;
+            pending.size += chunkLength;
+            pendingBytes += chunkLength;
+        }
+
+        if (pending.received < count) {
+            evictOverflow(key);
+            return null;
+        }
+
+        pendingMessages.remove(key);
+        pendingBytes -= pending.size;
+        byte[] message = new byte[pending.size];
+        int offset = 0;
+        for (byte[] chunk : pending.chunks) {
+            System.arraycopy(chunk, 0, message, offset, chunk.length);
+            offset += chunk.length;
+        }
+        return message;
+    }
+
+    public synchronized int getPendingMessages() {
+        return pendingMessages.size();
+    }
+
+    public synchronized long getEvictedMessages() {
+        return evictedMessages;
+    }
+
+    private void evictExpired(long now) {
+        Iterator<PendingMessage> it = pendingMessages.values().iterator();
+        while (it.hasNext()) {
+            PendingMessage pending = it.next();
+            if (now - pending.firstSeen < REASSEMBLY_TIMEOUT) {
+                break;
+            }
+            it.remove();
+            pendingBytes -= pending.size;
+            evictedMessages++;
+        }
+    }
+
+    private void evictOverflow(String keep) {
+        Iterator<Map.Entry<String, PendingMessage>> it = pendingMessages.entrySet().iterator();
+        while (it.hasNext() && (pendingMessages.size() > MAX_PENDING_MESSAGES || pendingBytes > MAX_PENDING_BYTES)) {
+            Map.Entry<String, PendingMessage> eldest = it.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            it.remove();
+            pendingBytes -= eldest.getValue().size;
+            evictedMessages++;
+            Log.d(TAG, "reassembly buffer full, evicted " + eldest.getKey());
+        }
+        // the message being assembled goes too when it alone is over the budget
+        if (pendingBytes > MAX_PENDING_BYTES) {
+            PendingMessage kept = pendingMessages.remove(keep);
+            if (kept != null) {
+                pendingBytes -= kept.size;
+                evictedMessages++;
+                Log.d(TAG, "reassembly buffer full, evicted " + keep);
+            }
+        }
+    }
+
+    private static class PendingMessage {
+        final byte[][] chunks;
+        final long firstSeen;
+        int received = 0;
+        int size = 0;
+
+        PendingMessage(int count, long firstSeen) {
+            this.chunks = new byte[count][];
+            this.firstSeen = firstSeen;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package org.chimple.flores.multicast;
+
+import android.util.Log;
+
+import org.chimple.flores.db.SequenceRanges;
+import org.chimple.flores.db.entity.HandShakingInfo;
+import org.chimple.flores.db.entity.HandShakingMessage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Lets handshakes carry only what changed. Each user and device entry (latest sequence, missing
+    ranges, profile sequence) hashes to 64 bits and the digest of a state is the sum of its entry
+    hashes, so it does not depend on order.
+    Outgoing: peers report the digest they hold of this device's state. When every active peer holds
+    the current state only the digest goes out, otherwise the entries differing from any state a peer
+    holds, and all entries when a peer's state is unknown or no longer remembered.
+    Incoming: a delta is applied over the state held for its sender and checked against the digest,
+    on a mismatch that state is dropped, so the sender sees no acknowledgement and sends everything.
+    A handshake split into pages is checked once all its pages are in.
+ */
+public class HandShakingDigests {
+
+    private static final String TAG = HandShakingDigests.class.getSimpleName();
+
+    static final int MAX_SENT_STATES = 8;
+    static final long PEER_TIMEOUT = 5 * 60 * 1000; // 5 min
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // entry hashes by key of recently sent states, by digest, eldest first
+    private final LinkedHashMap<Long, Map<String, Long>> sentStates = new LinkedHashMap<Long, Map<String, Long>>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Map<String, Long>> eldest) {
+            return size() > MAX_SENT_STATES;
+        }
+    };
+    private final Map<String, Acknowledgement> acknowledgements = new HashMap<String, Acknowledgement>();
+    private final Map<String, PeerState> peerStates = new HashMap<String, PeerState>();
+
+    /*
+        Sets digest and acknowledgements on the full message built from the database and trims its
+        infos to what peers are missing.
+     */
+    public synchronized HandShakingMessage prepareOutgoing(HandShakingMessage message, long now) {
+        List<HandShakingInfo> infos = message.getInfos() != null ? message.getInfos() : new ArrayList<HandShakingInfo>();
+        Map<String, Long> entries = new HashMap<String, Long>();
+        long digest = 0;
+        for (HandShakingInfo info : infos) {
+            long hash = entryHash(info);
+            entries.put(key(info), hash);
+            digest += hash;
+        }
+        message.setDigest(digest);
+        message.setAcknowledgements(heldDigests());
+
+        List<Map<String, Long>> bases = new ArrayList<Map<String, Long>>();
+        boolean full = acknowledgements.isEmpty();
+        Iterator<Acknowledgement> it = acknowledgements.values().iterator();
+        while (it.hasNext() && !full) {
+            Acknowledgement acknowledgement = it.next();
+            if (now - acknowledgement.time > PEER_TIMEOUT) {
+                it.remove();
+            } else if (acknowledgement.digest == null) {
+                full = true;
+            } else if (acknowledgement.digest != digest) {
+                Map<String, Long> base = sentStates.get(acknowledgement.digest);
+                if (base == null || !entries.keySet().containsAll(base.keySet())) {
+                    full = true;
+                } else {
+                    bases.add(base);
+                }
+            }
+        }
+        sentStates.remove(digest);
+        sentStates.put(digest, entries);
+        if (full || acknowledgements.isEmpty()) {
+            return message;
+        }
+
+        List<HandShakingInfo> changed = new ArrayList<HandShakingInfo>();
+        for (HandShakingInfo info : infos) {
+            Long hash = entries.get(key(info));
+            for (Map<String, Long> base : bases) {
+                if (!hash.equals(base.get(key(info)))) {
+                    changed.add(info);
+                    break;
+                }
+            }
+        }
+        Log.d(TAG, "handshake delta of " + changed.size() + " out of " + infos.size() + " entries");
+        message.setInfos(changed);
+        message.setDelta(true);
+        return message;
+    }
+
+    /*
+        Records what the sender holds of this device's state and returns the sender's full state as a
+        message of its own copies, which planning may modify, or what is known of it while pages of the
+        round are missing. Returns null when a delta does not apply to the state held for the sender.
+        Messages without a digest come from older peers and are returned as they are.
+     */
+    public synchronized HandShakingMessage applyIncoming(HandShakingMessage message, String localDevice, long now) {
+        String from = message.getFrom();
+        Map<String, Long> held = message.getAcknowledgements();
+        acknowledgements.put(from, new Acknowledgement(held != null ? held.get(localDevice) : null, now));
+        if (message.getDigest() == null) {
+            peerStates.remove(from);
+            return message;
+        }
+
+        PeerState state = peerStates.get(from);
+        if (!message.isComplete()) {
+            // a round still missing pages can not be checked against its digest, the held state stays
+            Map<String, HandShakingInfo> partial = message.isDelta() && state != null ? new LinkedHashMap<String, HandShakingInfo>(state.infos) : new LinkedHashMap<String, HandShakingInfo>();
+            if (message.getInfos() != null) {
+                for (HandShakingInfo info : message.getInfos()) {
+                    partial.put(key(info), info);
+                }
+            }
+            return copyOf(message, partial.values(), null);
+        }
+        if (message.isDelta() && state == null) {
+            Log.d(TAG, "no state held for " + from + " to apply handshake delta on");
+            return null;
+        }
+        Map<String, HandShakingInfo> infos = message.isDelta() ? new LinkedHashMap<String, HandShakingInfo>(state.infos) : new LinkedHashMap<String, HandShakingInfo>();
+        if (message.getInfos() != null) {
+            for (HandShakingInfo info : message.getInfos()) {
+                infos.put(key(info), info);
+            }
+        }
+        long digest = digest(infos.values());
+        if (digest != message.getDigest()) {
+            Log.d(TAG, "handshake from " + from + " does not match its digest, dropping held state");
+            peerStates.remove(from);
+            return null;
+        }
+        peerStates.put(from, new PeerState(infos, digest));
+        return copyOf(message, infos.values(), digest);
+    }
+
+    // digest of each peer's state held here, by peer device id
+    public synchronized Map<String, Long> heldDigests() {
+        Map<String, Long> digests = new HashMap<String, Long>();
+        for (Map.Entry<String, PeerState> entry : peerStates.entrySet()) {
+            digests.put(entry.getKey(), entry.getValue().digest);
+        }
+        return digests;
+    }
+
+    public synchronized void clear() {
+        sentStates.clear();
+        acknowledgements.clear();
+        peerStates.clear();
+    }
+
+    /*
+        Identifies the combined state of the given handshakes, null when one of them carries no digest.
+        Planning over handshakes with an unchanged signature yields the same requests.
+     */
+    public static Long signature(Map<String, HandShakingMessage> messages) {
+        long signature = 0;
+        for (Map.Entry<String, HandShakingMessage> entry : messages.entrySet()) {
+            Long digest = entry.getValue().getDigest();
+            if (digest == null) {
+                return null;
+            }
+            signature += mix(hash(FNV_OFFSET, entry.getKey()) ^ digest);
+        }
+        return signature;
+    }
+
+    public static long digest(Collection<HandShakingInfo> infos) {
+        long digest = 0;
+        for (HandShakingInfo info : infos) {
+            digest += entryHash(info);
+        }
+        return digest;
+    }
+
+    public static long entryHash(HandShakingInfo info) {
+        long hash = hash(FNV_OFFSET, info.getUserId());
+        hash = hash(hash, info.getDeviceId());
+        hash = hash(hash, info.getSequence());
+        hash = hash(hash, info.getMissingSequences() != null ? info.getMissingSequences().toString() : null);
+        hash = hash(hash, info.getProfileSequence());
+        return mix(hash);
+    }
+
+    private static long hash(long hash, Long value) {
+        return hash(hash, value != null ? value.toString() : null);
+    }
+
+    // FNV-1a over the characters, null and the separator hash differently from any text
+    private static long hash(long hash, String value) {
+        if (value == null) {
+            return (hash ^ 0xFFFF) * FNV_PRIME;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return (hash ^ 0xFFFE) * FNV_PRIME;
+    }
+
+    // spreads the bits so that sums of entry hashes stay well distributed
+    private static long mix(long hash) {
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+
+    private static String key(HandShakingInfo info) {
+        return info.getUserId() + "_" + info.getDeviceId();
+    }
+
+    private static HandShakingMessage copyOf(HandShakingMessage message, Collection<HandShakingInfo> infos, Long digest) {
+        List<HandShakingInfo> copies = new ArrayList<HandShakingInfo>(infos.size());
+        for (HandShakingInfo info : infos) {
+            copies.add(copy(info));
+        }
+        HandShakingMessage full = message.withInfos(copies);
+        full.setDigest(digest);
+        full.setDelta(false);
+        return full;
+    }
+
+    private static HandShakingInfo copy(HandShakingInfo info) {
+        SequenceRanges missing = info.getMissingSequences() != null ? new SequenceRanges(info.getMissingSequences()) : null;
+        HandShakingInfo copy = new HandShakingInfo(info.getUserId(), info.getDeviceId(), info.getSequence(), missing, info.getProfileSequence());
+        copy.setStartingSequence(info.getStartingSequence());
+        copy.setFrom(info.getFrom());
+        return copy;
+    }
+
+    private static class Acknowledgement {
+        final Long digest;
+        final long time;
+
+        Acknowledgement(Long digest, long time) {
+            this.digest = digest;
+            this.time = time;
+        }
+    }
+
+    private static class PeerState {
+        final Map<String, HandShakingInfo> infos;
+        final long digest;
+
+        PeerState(Map<String, HandShakingInfo> infos, long digest) {
+            this.infos = Collections.unmodifiableMap(infos);
+            this.digest = digest;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.chimple.flores.multicast;
+
+import android.util.Log;
+
+import org.chimple.flores.db.entity.HandShakingInfo;
+import org.chimple.flores.db.entity.HandShakingMessage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*
+    Puts the pages of a handshake split across datagrams back together. Each page is complete on its
+    own, so every page received is returned merged with the pages of the same round received before
+    and can be planned on right away, a lost page only leaves its infos out until the next round.
+    A page of a newer round from the same sender starts over.
+ */
+public class HandShakingPages {
+
+    private static final String TAG = HandShakingPages.class.getSimpleName();
+
+    private final Map<String, Round> rounds = new HashMap<String, Round>();
+
+    public synchronized HandShakingMessage add(HandShakingMessage page) {
+        if (!page.isPaged()) {
+            rounds.remove(page.getFrom());
+            return page;
+        }
+        Round round = rounds.get(page.getFrom());
+        if (round == null || !round.id.equals(page.getRound())) {
+            round = new Round(page.getRound());
+            rounds.put(page.getFrom(), round);
+        }
+        boolean first = round.pages.isEmpty();
+        if (!round.pages.add(page.getPage())) {
+            Log.d(TAG, "duplicate page " + page.getPage() + " of round " + page.getRound() + " from " + page.getFrom());
+        }
+        if (page.getInfos() != null) {
+            for (HandShakingInfo info : page.getInfos()) {
+                round.infos.put(info.getUserId() + "_" + info.getDeviceId(), info);
+            }
+        }
+        HandShakingMessage merged = page.withInfos(new ArrayList<HandShakingInfo>(round.infos.values()));
+        merged.setPagesReceived(round.pages.size());
+        if (!first) {
+            // acknowledged, reported and timed with the first page of the round already
+            merged.setReply("false");
+            merged.clearReceptionReport();
+            merged.setEchoes(null);
+        }
+        Log.d(TAG, "page " + page.getPage() + " of " + page.getPageCount() + " from " + page.getFrom() + ", " + round.pages.size() + " received");
+        return merged;
+    }
+
+    public synchronized void clear() {
+        rounds.clear();
+    }
+
+    private static class Round {
+        final Integer id;
+        final Set<Integer> pages = new HashSet<Integer>();
+        final Map<String, HandShakingInfo> infos = new LinkedHashMap<String, HandShakingInfo>();
+
+        Round(Integer id) {
+            this.id = id;
+        }
+    }
+}
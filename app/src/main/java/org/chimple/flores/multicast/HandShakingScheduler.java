@@ -0,0 +1,147 @@
+package org.chimple.flores.multicast;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.chimple.flores.db.entity.HandShakingMessage;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/*
+    Paces handshake replies and the sync planning that follows a burst of handshakes.
+    The aggregation window opens with a handshake and closes once handshakes stop arriving for twice
+    their mean spacing, after at least MIN_WINDOW plus a slot per known peer and at most MAX_WINDOW,
+    so two devices plan within a few hundred millis while a full class waits out its burst.
+    A reply is sent after a random delay growing with the peer count and answers every request heard
+    meanwhile. It is dropped when a complete handshake carrying this device's own digest was heard in
+    the meantime, the requesters learnt the same state from it.
+ */
+public class HandShakingScheduler {
+
+    private static final String TAG = HandShakingScheduler.class.getSimpleName();
+
+    static final long MIN_WINDOW = 150; // ms
+    static final long PEER_SLOT = 40; // ms per known peer
+    static final long MAX_WINDOW = 5 * 1000; // 5 sec
+    private static final double GAP_WEIGHT = 0.25;
+    static final int REPLY_SLOT = 20; // ms per known peer
+    static final int MAX_REPLY_DELAY = 1500;
+
+    private final MulticastManager manager;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Random random = new Random();
+
+    private long windowOpenedAt = -1;
+    private long windowLength = 0;
+    private long lastArrivalAt = -1;
+    // mean spacing of handshakes within a window, -1 until two arrived in one
+    private double meanGap = -1;
+    private boolean replyScheduled = false;
+    private final Set<Long> heardDigests = new HashSet<Long>();
+
+    private final Runnable windowRunnable = new Runnable() {
+        @Override
+        public void run() {
+            long remaining = remainingWindow(System.currentTimeMillis());
+            if (remaining > 0) {
+                handler.postDelayed(this, remaining);
+                return;
+            }
+            Log.d(TAG, "handshake window closed ... processing sync information ...");
+            manager.generateSyncInfoPullRequest(manager.getAllHandShakeMessagesInCurrentLoop());
+        }
+    };
+
+    private final Runnable replyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final Set<Long> heard;
+            synchronized (HandShakingScheduler.this) {
+                replyScheduled = false;
+                heard = new HashSet<Long>(heardDigests);
+                heardDigests.clear();
+            }
+            AsyncTask.execute(new Runnable() {
+                @Override
+                public void run() {
+                    manager.sendHandShakingReply(heard);
+                }
+            });
+        }
+    };
+
+    public HandShakingScheduler(MulticastManager manager) {
+        this.manager = manager;
+    }
+
+    // handshake as applied, peers is the number of devices heard from on this network
+    public void onHandShake(HandShakingMessage message, int peers) {
+        long now = System.currentTimeMillis();
+        long length;
+        synchronized (this) {
+            if (replyScheduled && message.getDigest() != null && message.isComplete()) {
+                heardDigests.add(message.getDigest());
+            }
+            if (windowOpenedAt >= 0) {
+                double gap = now - lastArrivalAt;
+                meanGap = meanGap < 0 ? gap : (1 - GAP_WEIGHT) * meanGap + GAP_WEIGHT * gap;
+                windowLength = Math.max(windowLength, baseWindow(peers));
+                lastArrivalAt = now;
+                return;
+            }
+            windowOpenedAt = now;
+            lastArrivalAt = now;
+            windowLength = baseWindow(peers);
+            length = windowLength;
+        }
+        Log.d(TAG, "handshake window opened for " + length + " ms, " + peers + " peers");
+        handler.postDelayed(windowRunnable, length);
+    }
+
+    // requests heard before the reply goes out are answered by the same reply
+    public void requestReply(int peers) {
+        long delay;
+        synchronized (this) {
+            if (replyScheduled) {
+                return;
+            }
+            replyScheduled = true;
+            heardDigests.clear();
+            delay = random.nextInt((int) Math.min(MAX_REPLY_DELAY, (long) REPLY_SLOT * Math.max(1, peers)) + 1);
+        }
+        handler.postDelayed(replyRunnable, delay);
+    }
+
+    public void cancel() {
+        handler.removeCallbacks(windowRunnable);
+        handler.removeCallbacks(replyRunnable);
+        synchronized (this) {
+            windowOpenedAt = -1;
+            lastArrivalAt = -1;
+            replyScheduled = false;
+            heardDigests.clear();
+        }
+    }
+
+    // millis until the window may close, closing it when none are left
+    synchronized long remainingWindow(long now) {
+        if (windowOpenedAt < 0) {
+            return 0;
+        }
+        long quiet = meanGap < 0 ? MIN_WINDOW : Math.min(MAX_WINDOW, Math.max(MIN_WINDOW, (long) (2 * meanGap)));
+        long closeAt = Math.min(windowOpenedAt + MAX_WINDOW, Math.max(windowOpenedAt + windowLength, lastArrivalAt + quiet));
+        if (closeAt > now) {
+            return closeAt - now;
+        }
+        windowOpenedAt = -1;
+        return 0;
+    }
+
+    private static long baseWindow(int peers) {
+        return Math.min(MAX_WINDOW, MIN_WINDOW + PEER_SLOT * peers);
+    }
+}
@@ -0,0 +1,228 @@
+package org.chimple.flores.multicast;
+
+import android.content.Context;
+import android.content.Intent;
+import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
+
+import org.chimple.flores.db.entity.P2PSyncInfo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.chimple.flores.multicast.PipelineStage.OverloadPolicy.BLOCK;
+import static org.chimple.flores.multicast.PipelineStage.OverloadPolicy.DROP_NEWEST;
+import static org.chimple.flores.multicast.PipelineStage.OverloadPolicy.DROP_OLDEST;
+
+/*
+    Received packets flow through fixed stages, each owned by one thread:
+    receive (network thread) -> decode -> dispatch -> apply lane of the record's (user, device) -> notify
+                                                   -> respond, for sync requests and reconciliation
+    Apply lanes validate, dedupe and persist the records of one sender in sequence order, different
+    senders run in parallel. Decode drops under overload like the network would and NACKs repair the
+    loss, dispatch and the lanes block, so a record is never lost once decoded. Sync requests that
+    do not fit are dropped, the next handshake round asks again. Log lines for the UI drop the eldest
+    entries, chat lines are broadcast by the caller and never queued here.
+ */
+public class InboundPipeline implements DatagramDecoder.Receiver {
+
+    private static final String TAG = InboundPipeline.class.getSimpleName();
+
+    static final int DECODE_QUEUE_SIZE = 256;
+    static final int DISPATCH_QUEUE_SIZE = 256;
+    static final int APPLY_LANE_QUEUE_SIZE = 256;
+    static final int MAX_APPLY_LANES = 4;
+    static final int RESPOND_QUEUE_SIZE = 32;
+    static final int NOTIFY_QUEUE_SIZE = 128;
+    private static final long IDLE_POLL_INTERVAL = 20; // ms
+
+    private final Context context;
+    private volatile int localDeviceHash = PacketHeader.BROADCAST;
+
+    private final PipelineStage<InboundPacket> decodeStage;
+    private final PipelineStage<InboundMessage> dispatchStage;
+    private final StripedStage<P2PSyncInfo> applyStage;
+    private final PipelineStage<Object> respondStage;
+    private final PipelineStage<Intent> notifyStage;
+
+    InboundPipeline(Context context, final MulticastManager manager) {
+        this.context = context;
+        this.notifyStage = new PipelineStage<Intent>("notify", NOTIFY_QUEUE_SIZE, DROP_OLDEST, new PipelineStage.Handler<Intent>() {
+            @Override
+            public void handle(Intent intent) {
+                LocalBroadcastManager.getInstance(InboundPipeline.this.context).sendBroadcast(intent);
+            }
+        });
+        this.respondStage = new PipelineStage<Object>("respond", RESPOND_QUEUE_SIZE, DROP_NEWEST, new PipelineStage.Handler<Object>() {
+            @Override
+            public void handle(Object request) {
+                manager.respondToPeer(request);
+            }
+        });
+        int lanes = Math.max(1, Math.min(MAX_APPLY_LANES, Runtime.getRuntime().availableProcessors()));
+        this.applyStage = new StripedStage<P2PSyncInfo>("apply", lanes, APPLY_LANE_QUEUE_SIZE, BLOCK, new PipelineStage.Handler<P2PSyncInfo>() {
+            @Override
+            public void handle(P2PSyncInfo info) {
+                manager.applyInComingSyncRecord(info);
+            }
+        });
+        this.dispatchStage = new PipelineStage<InboundMessage>("dispatch", DISPATCH_QUEUE_SIZE, BLOCK, new PipelineStage.Handler<InboundMessage>() {
+            @Override
+            public void handle(InboundMessage message) {
+                manager.dispatchInbound(message.message, message.fromIP);
+            }
+        });
+        this.decodeStage = new PipelineStage<InboundPacket>("decode", DECODE_QUEUE_SIZE, DROP_NEWEST, new PipelineStage.Handler<InboundPacket>() {
+            @Override
+            public void handle(InboundPacket packet) {
+                Object message = packet.legacyMessage != null ? manager.decodeLegacyMessage(packet.legacyMessage)
+                        : manager.decodePacket(packet.header, packet.bytes);
+                if (message != null) {
+                    dispatchStage.offer(new InboundMessage(message, packet.fromIP));
+                } else {
+                    Log.d(TAG, "dropping undecodable packet " + packet.header + " from " + packet.fromIP);
+                }
+            }
+        });
+    }
+
+    public void start() {
+        notifyStage.start();
+        respondStage.start();
+        applyStage.start();
+        dispatchStage.start();
+        decodeStage.start();
+    }
+
+    public void stop() {
+        decodeStage.stop();
+        dispatchStage.stop();
+        applyStage.stop();
+        respondStage.stop();
+        notifyStage.stop();
+    }
+
+    public void setLocalDeviceHash(int localDeviceHash) {
+        this.localDeviceHash = localDeviceHash;
+    }
+
+    public boolean receive(byte[] payload, String fromIP) {
+        return receive(payload, payload.length, false, fromIP);
+    }
+
+    /*
+        Called on the network threads with a decoded datagram payload, only the header is read here.
+        Packets sent by this device, addressed to another one or failing their checksum go no further.
+        Unenveloped payloads are taken for JSON from peers that predate PacketHeader. A packet kept
+        from a shared receive buffer is copied here, the one copy it gets on its way to the codecs.
+     */
+    @Override
+    public boolean receive(byte[] bytes, int length, boolean shared, String fromIP) {
+        if (!PacketHeader.isPacket(bytes, length)) {
+            return receive(new String(bytes, 0, length, StandardCharsets.UTF_8).trim(), fromIP);
+        }
+        PacketHeader header = PacketHeader.read(bytes, length);
+        int local = localDeviceHash;
+        if (header == null || header.isFrom(local) || !header.isFor(local) || !header.isValid(bytes)) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "dropping packet " + header + " from IP:" + fromIP);
+            }
+            return false;
+        }
+        byte[] packet = shared || bytes.length != length ? Arrays.copyOf(bytes, length) : bytes;
+        return decodeStage.offer(new InboundPacket(header, packet, null, fromIP));
+    }
+
+    public boolean receive(String legacyMessage, String fromIP) {
+        return legacyMessage != null && decodeStage.offer(new InboundPacket(null, null, legacyMessage, fromIP));
+    }
+
+    // records of one user and device share a lane, callers offer them in sequence order
+    boolean apply(P2PSyncInfo info) {
+        return applyStage.offer(info.getUserId() + "_" + info.getDeviceId(), info);
+    }
+
+    // sync requests and reconcile messages
+    boolean respond(Object request) {
+        return respondStage.offer(request);
+    }
+
+    // log lines only, false once the pipeline is stopped, the caller then broadcasts itself
+    boolean notify(Intent intent) {
+        return notifyStage.offer(intent);
+    }
+
+    /*
+        Waits until everything offered so far went through every stage, false on timeout. Stages are
+        checked upstream first, an item handed on is counted downstream before upstream lets go of it.
+     */
+    public boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!isIdle()) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(IDLE_POLL_INTERVAL);
+        }
+        return true;
+    }
+
+    public boolean isIdle() {
+        for (PipelineStage<?> stage : getStages()) {
+            if (!stage.isIdle()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public PipelineStage<?> getStage(String name) {
+        for (PipelineStage<?> stage : getStages()) {
+            if (stage.getName().equals(name)) {
+                return stage;
+            }
+        }
+        return null;
+    }
+
+    public List<PipelineStage<?>> getStages() {
+        List<PipelineStage<?>> stages = new ArrayList<PipelineStage<?>>();
+        stages.add(decodeStage);
+        stages.add(dispatchStage);
+        stages.addAll(applyStage.getLanes());
+        stages.add(respondStage);
+        stages.add(notifyStage);
+        return stages;
+    }
+
+    @Override
+    public String toString() {
+        return "InboundPipeline" + getStages();
+    }
+
+    static class InboundPacket {
+        final PacketHeader header;
+        final byte[] bytes;
+        final String legacyMessage;
+        final String fromIP;
+
+        InboundPacket(PacketHeader header, byte[] bytes, String legacyMessage, String fromIP) {
+            this.header = header;
+            this.bytes = bytes;
+            this.legacyMessage = legacyMessage;
+            this.fromIP = fromIP;
+        }
+    }
+
+    static class InboundMessage {
+        final Object message;
+        final String fromIP;
+
+        InboundMessage(Object message, String fromIP) {
+            this.message = message;
+            this.fromIP = fromIP;
+        }
+    }
+}
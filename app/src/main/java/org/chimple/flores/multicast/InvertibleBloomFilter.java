@@ -0,0 +1,164 @@
+package org.chimple.flores.multicast;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/*
+    Invertible Bloom lookup table over 64 bit record keys. Each key lands in one cell of each of
+    HASH_COUNT sub tables, a cell keeps a count, the xor of its keys and the xor of their checksums.
+    Subtracting the table of another set leaves only the keys of the symmetric difference, which can be
+    listed as long as the table has about 1.5 cells per differing key, whatever the size of the sets.
+ */
+public class InvertibleBloomFilter {
+
+    static final int HASH_COUNT = 3;
+    static final int CELL_SIZE = 4 + 8 + 4;
+
+    private final int cellCount;
+    private final int[] counts;
+    private final long[] keySums;
+    private final int[] hashSums;
+
+    // cell count is rounded up to a multiple of HASH_COUNT
+    public InvertibleBloomFilter(int cellCount) {
+        this.cellCount = ((Math.max(cellCount, HASH_COUNT) + HASH_COUNT - 1) / HASH_COUNT) * HASH_COUNT;
+        this.counts = new int[this.cellCount];
+        this.keySums = new long[this.cellCount];
+        this.hashSums = new int[this.cellCount];
+    }
+
+    // null when the bytes do not hold the given number of cells
+    public static InvertibleBloomFilter fromBytes(byte[] bytes, int cellCount) {
+        // checked before allocating, the count comes off the wire
+        if (bytes == null || cellCount < HASH_COUNT || cellCount % HASH_COUNT != 0 || bytes.length != (long) cellCount * CELL_SIZE) {
+            return null;
+        }
+        InvertibleBloomFilter filter = new InvertibleBloomFilter(cellCount);
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        for (int i = 0; i < cellCount; i++) {
+            filter.counts[i] = in.getInt();
+            filter.keySums[i] = in.getLong();
+            filter.hashSums[i] = in.getInt();
+        }
+        return filter;
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer out = ByteBuffer.allocate(cellCount * CELL_SIZE);
+        for (int i = 0; i < cellCount; i++) {
+            out.putInt(counts[i]);
+            out.putLong(keySums[i]);
+            out.putInt(hashSums[i]);
+        }
+        return out.array();
+    }
+
+    public int getCellCount() {
+        return cellCount;
+    }
+
+    public void add(long key) {
+        update(key, 1);
+    }
+
+    public void remove(long key) {
+        update(key, -1);
+    }
+
+    // leaves keys only in this set with count 1 and keys only in the other with count -1
+    public void subtract(InvertibleBloomFilter other) {
+        if (other.cellCount != cellCount) {
+            throw new IllegalArgumentException("cell count " + other.cellCount + " differs from " + cellCount);
+        }
+        for (int i = 0; i < cellCount; i++) {
+            counts[i] -= other.counts[i];
+            keySums[i] ^= other.keySums[i];
+            hashSums[i] ^= other.hashSums[i];
+        }
+    }
+
+    /*
+        Peels cells holding a single key until none is left, emptying the table. Returns false when
+        some cells could not be peeled, the lists then hold only part of the difference.
+     */
+    public boolean decode(List<Long> onlyHere, List<Long> onlyThere) {
+        ArrayDeque<Integer> pure = new ArrayDeque<Integer>();
+        for (int i = 0; i < cellCount; i++) {
+            if (isPure(i)) {
+                pure.add(i);
+            }
+        }
+        while (!pure.isEmpty()) {
+            int cell = pure.poll();
+            if (!isPure(cell)) {
+                continue;
+            }
+            long key = keySums[cell];
+            int count = counts[cell];
+            (count > 0 ? onlyHere : onlyThere).add(key);
+            int subTableSize = cellCount / HASH_COUNT;
+            for (int h = 0; h < HASH_COUNT; h++) {
+                int i = cellOf(key, h, subTableSize);
+                counts[i] -= count;
+                keySums[i] ^= key;
+                hashSums[i] ^= checksum(key);
+                if (isPure(i)) {
+                    pure.add(i);
+                }
+            }
+        }
+        for (int i = 0; i < cellCount; i++) {
+            if (counts[i] != 0 || keySums[i] != 0 || hashSums[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static long recordKey(String userId, String deviceId, long sequence) {
+        long hash = 0xcbf29ce484222325L;
+        hash = fnv(hash, userId);
+        hash = fnv(hash, deviceId);
+        return mix(hash ^ mix(sequence));
+    }
+
+    private void update(long key, int count) {
+        int subTableSize = cellCount / HASH_COUNT;
+        int checksum = checksum(key);
+        for (int h = 0; h < HASH_COUNT; h++) {
+            int i = cellOf(key, h, subTableSize);
+            counts[i] += count;
+            keySums[i] ^= key;
+            hashSums[i] ^= checksum;
+        }
+    }
+
+    private boolean isPure(int cell) {
+        return (counts[cell] == 1 || counts[cell] == -1) && hashSums[cell] == checksum(keySums[cell]);
+    }
+
+    private static int cellOf(long key, int h, int subTableSize) {
+        long hash = mix(key + (h + 1) * 0x9e3779b97f4a7c15L);
+        return h * subTableSize + (int) ((hash >>> 1) % subTableSize);
+    }
+
+    private static int checksum(long key) {
+        return (int) (mix(key ^ 0x5bd1e9955bd1e995L) >>> 32);
+    }
+
+    private static long fnv(long hash, String value) {
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        return (hash ^ 0xFFFE) * 0x100000001b3L;
+    }
+
+    private static long mix(long hash) {
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+}
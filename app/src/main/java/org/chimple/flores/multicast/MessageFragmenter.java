@@ -0,0 +1,64 @@
+package org.chimple.flores.multicast;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Messages that do not fit in one MTU sized datagram are split into fragments:
+    [FRAME_MAGIC][FRAME_FRAGMENT][message id: int][index: short][count: short][chunk]
+    Smaller messages are sent unchanged, JSON payloads always start with '{'.
+ */
+public class MessageFragmenter {
+
+    public static final byte FRAME_MAGIC = (byte) 0xC7;
+    public static final byte FRAME_FRAGMENT = 0x01;
+
+    // 1500 byte Wi-Fi MTU minus IP/UDP headers, with room left for framing
+    public static final int MAX_DATAGRAM_SIZE = 1400;
+    static final int FRAGMENT_HEADER_SIZE = 10;
+    static final int MAX_FRAGMENT_PAYLOAD = MAX_DATAGRAM_SIZE - FRAGMENT_HEADER_SIZE;
+    /*
+        Largest message sent on the group, after compression. Senders refuse bigger ones and size
+        their queues for one such message with a parity frame after every fragment, receivers drop
+        fragments of anything bigger and budget reassembly for a few such messages at once.
+     */
+    public static final int MAX_MESSAGE_SIZE = 512 * 1024;
+    static final int MAX_FRAGMENTS = (MAX_MESSAGE_SIZE + MAX_FRAGMENT_PAYLOAD - 1) / MAX_FRAGMENT_PAYLOAD;
+
+    private final AtomicInteger nextMessageId = new AtomicInteger(new Random().nextInt());
+
+    public List<byte[]> fragment(byte[] message) {
+        if (message.length <= MAX_DATAGRAM_SIZE) {
+            return Collections.singletonList(message);
+        }
+
+        if (message.length > MAX_MESSAGE_SIZE) {
+            throw new IllegalArgumentException("message too large to fragment: " + message.length + " bytes");
+        }
+        int count = (message.length + MAX_FRAGMENT_PAYLOAD - 1) / MAX_FRAGMENT_PAYLOAD;
+
+        int messageId = nextMessageId.incrementAndGet();
+        List<byte[]> fragments = new ArrayList<byte[]>(count);
+        for (int index = 0; index < count; index++) {
+            int offset = index * MAX_FRAGMENT_PAYLOAD;
+            int chunkLength = Math.min(MAX_FRAGMENT_PAYLOAD, message.length - offset);
+            ByteBuffer fragment = ByteBuffer.allocate(FRAGMENT_HEADER_SIZE + chunkLength);
+            fragment.put(FRAME_MAGIC)
+                    .put(FRAME_FRAGMENT)
+                    .putInt(messageId)
+                    .putShort((short) index)
+                    .putShort((short) count)
+                    .put(message, offset, chunkLength);
+            fragments.add(fragment.array());
+        }
+        return fragments;
+    }
+
+    public static boolean isFragment(byte[] datagram, int length) {
+        return length > FRAGMENT_HEADER_SIZE && datagram[0] == FRAME_MAGIC && datagram[1] == FRAME_FRAGMENT;
+    }
+}
@@ -0,0 +1,317 @@
+package org.chimple.flores.multicast;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.chimple.flores.multicast.PacketBufferPool.MAX_PACKET_SIZE;
+
+/*
+    Alternative to MulticastListenerThread/MulticastSenderThread: one selector thread
+    serving every joined group and port through non-blocking DatagramChannels.
+    MulticastChannel group membership needs API 24 (N), callers must check isSupported().
+ */
+@TargetApi(Build.VERSION_CODES.N)
+public class MulticastChannelThread extends Thread {
+
+    private static final String TAG = MulticastChannelThread.class.getSimpleName();
+    // the largest message with a parity frame after every fragment, twice over
+    private static final int MAX_QUEUED_DATAGRAMS = 4 * MessageFragmenter.MAX_FRAGMENTS;
+
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final Context context;
+    private final Map<Integer, DatagramChannel> channelsByPort = new ConcurrentHashMap<Integer, DatagramChannel>();
+    private final List<MembershipKey> memberships = new ArrayList<MembershipKey>();
+    private final ConcurrentLinkedQueue<InetSocketAddress> pendingGroups = new ConcurrentLinkedQueue<InetSocketAddress>();
+    private final BlockingQueue<OutgoingMessage> sendQueue = new ArrayBlockingQueue<OutgoingMessage>(MAX_QUEUED_DATAGRAMS);
+
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+    private final byte[] decodeBuffer = new byte[MAX_PACKET_SIZE];
+    private final MessageFragmenter fragmenter = new MessageFragmenter();
+    private final FecEncoder fecEncoder = new FecEncoder(0);
+    private final PayloadCompressor compressor = new PayloadCompressor();
+    private volatile boolean compressionEnabled = false;
+    private final DatagramDecoder decoder = new DatagramDecoder();
+    private final InboundPipeline pipeline;
+    private final RateController rateController;
+
+    private Selector selector;
+    private NetworkInterface networkInterface;
+    private InetAddress localAddress;
+    private long pacedUntil = 0;
+    private InetSocketAddress lastTarget;
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
+    }
+
+    public MulticastChannelThread(Context context, RateController rateController, InboundPipeline pipeline) {
+        super(TAG);
+        this.context = context;
+        this.rateController = rateController;
+        this.pipeline = pipeline;
+    }
+
+    // may be called before or after start(), channels are always opened on the selector thread
+    public void addGroup(String multicastIP, int multicastPort) {
+        pendingGroups.offer(new InetSocketAddress(multicastIP, multicastPort));
+        wakeUp();
+    }
+
+    public boolean send(byte[] payload, String multicastIP, int multicastPort) {
+        return send(payload, new InetSocketAddress(multicastIP, multicastPort), true);
+    }
+
+    // to one device, unicast is retried at the link layer so it goes without FEC parity
+    public boolean sendUnicast(byte[] payload, String ip, int port) {
+        return send(payload, new InetSocketAddress(ip, port), false);
+    }
+
+    private boolean send(byte[] payload, InetSocketAddress target, boolean protect) {
+        if (payload == null || !running.get()) {
+            return false;
+        }
+        byte[] message = compressionEnabled ? compressor.compress(payload) : payload;
+        if (message.length > MessageFragmenter.MAX_MESSAGE_SIZE) {
+            Log.e(TAG, "message of " + message.length + " bytes is over MAX_MESSAGE_SIZE, not sending it");
+            return false;
+        }
+        List<byte[]> fragments = fragmenter.fragment(message);
+        synchronized (sendQueue) {
+            // worst case a parity frame follows every fragment
+            if (sendQueue.remainingCapacity() < 2 * fragments.size()) {
+                Log.d(TAG, "send queue full, dropping message");
+                return false;
+            }
+            for (byte[] datagram : protect ? fecEncoder.encode(fragments) : fragments) {
+                sendQueue.add(new OutgoingMessage(datagram, target));
+            }
+        }
+        wakeUp();
+        return true;
+    }
+
+    // only once every peer has advertised it can inflate
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    public void setFecBlockSize(int blockSize) {
+        fecEncoder.setBlockSize(blockSize);
+    }
+
+    public long getRecoveredDatagrams() {
+        return decoder.getRecoveredDatagrams();
+    }
+
+    public int getQueueDepth() {
+        return sendQueue.size();
+    }
+
+    public void stopRunning() {
+        running.set(false);
+        wakeUp();
+    }
+
+    public void run() {
+        try {
+            selector = Selector.open();
+            localAddress = MulticastThread.getWifiAddress(context);
+            networkInterface = NetworkInterface.getByInetAddress(localAddress);
+            if (networkInterface == null) {
+                Log.d(TAG, "no network interface for " + localAddress + ", not starting");
+                running.set(false);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            running.set(false);
+        }
+
+        while (running.get()) {
+            try {
+                registerPendingGroups();
+                long pacingWait = updateWriteInterest();
+                if (pacingWait > 0) {
+                    selector.select(pacingWait);
+                } else {
+                    selector.select();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    if (key.isReadable()) {
+                        receive(channel);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flushSendQueue(channel);
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                if (running.get()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        closeChannels();
+    }
+
+    private void registerPendingGroups() throws IOException {
+        InetSocketAddress group;
+        while ((group = pendingGroups.poll()) != null) {
+            DatagramChannel channel = channelsByPort.get(group.getPort());
+            if (channel == null) {
+                channel = DatagramChannel.open(StandardProtocolFamily.INET)
+                        .setOption(StandardSocketOptions.SO_REUSEADDR, true)
+                        .bind(new InetSocketAddress(group.getPort()));
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ);
+                channelsByPort.put(group.getPort(), channel);
+            }
+            memberships.add(channel.join(group.getAddress(), networkInterface));
+            Log.d(TAG, "joined group " + group);
+        }
+    }
+
+    // returns millis until the pacer allows the next datagram, 0 when not waiting on it
+    private long updateWriteInterest() {
+        long pacingWait = 0;
+        boolean pendingWrites = !sendQueue.isEmpty();
+        if (pendingWrites) {
+            pacingWait = pacedUntil - System.nanoTime() / 1000000;
+            pendingWrites = pacingWait <= 0;
+        }
+        for (DatagramChannel channel : channelsByPort.values()) {
+            SelectionKey key = channel.keyFor(selector);
+            if (key != null && key.isValid()) {
+                key.interestOps(pendingWrites ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+        }
+        return Math.max(0, pacingWait);
+    }
+
+    private void receive(DatagramChannel channel) throws IOException {
+        SocketAddress from;
+        while ((from = channel.receive(receiveBuffer)) != null) {
+            receiveBuffer.flip();
+            int length = receiveBuffer.remaining();
+            InetAddress fromAddress = ((InetSocketAddress) from).getAddress();
+            if (!fromAddress.equals(localAddress)) {
+                receiveBuffer.get(decodeBuffer, 0, length);
+                String fromIP = fromAddress.getHostAddress();
+                decoder.decode(fromIP, decodeBuffer, length, pipeline);
+            }
+            receiveBuffer.clear();
+        }
+    }
+
+    private void flushSendQueue(DatagramChannel channel) throws IOException {
+        OutgoingMessage next;
+        while ((next = nextToSend()) != null) {
+            long wait = rateController.reserve();
+            if (wait > 0) {
+                pacedUntil = System.nanoTime() / 1000000 + wait;
+                return;
+            }
+            DatagramChannel target = channelsByPort.get(next.target.getPort());
+            if (target == null) {
+                target = channel;
+            }
+            if (target.send(next.data, next.target) == 0) {
+                // socket buffer full, retry once the channel is writable again
+                rateController.release();
+                return;
+            }
+            sendQueue.poll();
+        }
+    }
+
+    // once the queue drains, the partially filled FEC block is closed with its parity
+    private OutgoingMessage nextToSend() {
+        synchronized (sendQueue) {
+            OutgoingMessage next = sendQueue.peek();
+            if (next == null) {
+                byte[] parity = fecEncoder.flush();
+                if (parity != null) {
+                    sendQueue.add(new OutgoingMessage(parity, lastTarget));
+                    next = sendQueue.peek();
+                }
+            } else if (next.target.getAddress().isMulticastAddress()) {
+                lastTarget = next.target;
+            }
+            return next;
+        }
+    }
+
+    private void wakeUp() {
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+    }
+
+    private void closeChannels() {
+        for (MembershipKey membership : memberships) {
+            membership.drop();
+        }
+        memberships.clear();
+        for (DatagramChannel channel : channelsByPort.values()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        channelsByPort.clear();
+        sendQueue.clear();
+        if (selector != null) {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        Log.d(TAG, "MulticastChannelThread stopped");
+    }
+
+    private static class OutgoingMessage {
+        final ByteBuffer data;
+        final InetSocketAddress target;
+
+        OutgoingMessage(byte[] data, InetSocketAddress target) {
+            this.data = ByteBuffer.wrap(data);
+            this.target = target;
+        }
+    }
+}
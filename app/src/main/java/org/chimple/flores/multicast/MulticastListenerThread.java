@@ -1,59 +1,69 @@
 package org.chimple.flores.multicast;
 
 import android.content.Context;
-import android.content.Intent;
 import android.os.Handler;
 import android.os.Looper;
-import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.net.InetAddress;
 
-import static org.chimple.flores.application.P2PContext.messageEvent;
+import static org.chimple.flores.multicast.PacketBufferPool.MAX_PACKET_SIZE;
 
 public class MulticastListenerThread extends MulticastThread {
     private static final String TAG = MulticastListenerThread.class.getSimpleName();
+    private static final int RECEIVE_BUFFER_POOL_SIZE = 4;
 
-    MulticastListenerThread(Context context, String multicastIP, int multicastPort) {
+    final PacketBufferPool bufferPool = new PacketBufferPool(RECEIVE_BUFFER_POOL_SIZE, MAX_PACKET_SIZE);
+    private final DatagramDecoder decoder = new DatagramDecoder();
+    private final InboundPipeline pipeline;
+
+    MulticastListenerThread(Context context, String multicastIP, int multicastPort, InboundPipeline pipeline) {
         super(TAG, context, multicastIP, multicastPort, new Handler(Looper.getMainLooper()));
+        this.pipeline = pipeline;
     }
 
 
     public void run() {
         super.run();
 
-        DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+        DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+        InetAddress localAddress = getLocalAddress();
+        Log.d(TAG, "MulticastListenerThread running ->" + running.get());
 
         while (running.get()) {
-            packet.setData(new byte[61440]);
-            Log.d(TAG, "MulticastListenerThread run loop " + (multicastSocket != null));
+            if (multicastSocket == null || multicastSocket.isClosed()) {
+                break;
+            }
+
+            byte[] buffer = bufferPool.acquire();
+            packet.setData(buffer);
             try {
-                if (multicastSocket != null && !multicastSocket.isClosed()) {
-                    Log.d(TAG, "MulticastListenerThread running ->" + running.get());
-                    multicastSocket.receive(packet);
-                } else {
-                    break;
-                }
+                multicastSocket.receive(packet);
             } catch (IOException ignored) {
-                ignored.printStackTrace();
+                bufferPool.release(buffer);
+                if (running.get()) {
+                    ignored.printStackTrace();
+                }
                 continue;
             }
-            String data = new String(packet.getData()).trim();
-            boolean isLoopBackMessage = getLocalIP().equals(packet.getAddress().getHostAddress()) ? true : false;
-            this.broadcastIncomingMessage(data, packet.getAddress().getHostAddress(), isLoopBackMessage);
-            data = null;
+
+            InetAddress fromAddress = packet.getAddress();
+            if (fromAddress == null || fromAddress.equals(localAddress)) {
+                bufferPool.release(buffer);
+                continue;
+            }
+            this.receive(buffer, packet.getLength(), fromAddress.getHostAddress());
         }
     }
 
-    private void broadcastIncomingMessage(String message, String fromIP, boolean isLoopback) {
-        if (!isLoopback) {
-            Log.d(TAG, "received incoming message:" + message + " from IP:" + fromIP);
-            Intent intent = new Intent(messageEvent);
-            // You can also include some extra data.
-            intent.putExtra("message", message);
-            intent.putExtra("fromIP", fromIP);
-            LocalBroadcastManager.getInstance(this.context).sendBroadcast(intent);
+    // takes ownership of the pooled buffer and returns it once the received bytes are decoded
+    void receive(byte[] buffer, int length, String fromIP) {
+        try {
+            decoder.decode(fromIP, buffer, length, pipeline);
+        } finally {
+            bufferPool.release(buffer);
         }
     }
 
@@ -69,4 +79,3 @@ public class MulticastListenerThread extends MulticastThread {
 
     }
 }
-
@@ -15,28 +15,30 @@ import android.util.Log;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicates;
-import com.google.common.base.Splitter;
 import com.google.common.collect.Collections2;
-import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Lists;
 
 import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.collections4.Predicate;
-import org.apache.commons.lang3.StringUtils;
 import org.chimple.flores.application.P2PContext;
+import org.chimple.flores.db.BinaryMessageCodec;
 import org.chimple.flores.db.DBSyncManager;
 import org.chimple.flores.db.P2PDBApiImpl;
+import org.chimple.flores.db.SequenceRanges;
 import org.chimple.flores.db.entity.HandShakingInfo;
 import org.chimple.flores.db.entity.HandShakingMessage;
+import org.chimple.flores.db.entity.NackMessage;
+import org.chimple.flores.db.entity.P2PLatestInfoByUserAndDevice;
 import org.chimple.flores.db.entity.P2PSyncInfo;
+import org.chimple.flores.db.entity.ReconcileMessage;
 import org.chimple.flores.db.entity.SyncInfoItem;
+import org.chimple.flores.db.entity.SyncInfoMessage;
 import org.chimple.flores.db.entity.SyncInfoRequestMessage;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -44,9 +46,12 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import static org.chimple.flores.application.P2PContext.messageEvent;
 import static org.chimple.flores.application.P2PContext.newMessageAddedOnDevice;
+import static org.chimple.flores.application.P2PContext.deviceToSyncAdded;
 import static org.chimple.flores.application.P2PContext.refreshDevice;
 import static org.chimple.flores.application.P2PContext.CLEAR_CONSOLE_TYPE;
 import static org.chimple.flores.application.P2PContext.CONSOLE_TYPE;
@@ -64,22 +69,62 @@ public class MulticastManager {
     private static MulticastManager instance;
     private boolean isListening = false;
     private MulticastListenerThread multicastListenerThread;
-    private MulticastSenderThread multicastSenderThread;
+    private volatile MulticastSenderThread multicastSenderThread;
+    private volatile MulticastChannelThread multicastChannelThread;
+    private boolean useChannelTransport = false;
     private WifiManager.MulticastLock wifiLock;
     private String multicastIpAddress;
     private int multicastPort;
     private P2PDBApiImpl p2PDBApiImpl;
     private DBSyncManager dbSyncManager;
     private Map<String, HandShakingMessage> handShakingMessagesInCurrentLoop = new ConcurrentHashMap<>();
-    private Set<String> allSyncInfosReceived = new HashSet<String>();
+    private final ReceivedSequenceTracker receivedSequences = new ReceivedSequenceTracker();
+    private final RateController rateController = new RateController();
+    private final AtomicInteger receivedSyncRecords = new AtomicInteger();
+    private final AtomicInteger duplicateSyncRecords = new AtomicInteger();
+    private final AtomicInteger outOfSyncRecords = new AtomicInteger();
+    private final AtomicLong persistedSyncRecords = new AtomicLong();
+    private final HandShakingDigests handShakingDigests = new HandShakingDigests();
+    private final HandShakingPages handShakingPages = new HandShakingPages();
+    private final AtomicInteger handShakingRounds = new AtomicInteger();
+    private volatile Long idlePlanSignature = null;
 
     public static final String multiCastConnectionChangedEvent = "multicast-connection-changed-event";
 
-    private CountDownTimer waitForHandShakingMessagesTimer = null;
     private CountDownTimer stopMulticastTimer = null;
     private CountDownTimer startMulticastTimer = null;
 
-    private static final int WAIT_FOR_HAND_SHAKING_MESSAGES = 5 * 1000; // 5 sec
+    // a packed message, once enveloped and possibly deflated, still goes out as a single datagram
+    // leaves room in MessageFragmenter.MAX_MESSAGE_SIZE for the other record fields and JSON escaping
+    public static final int MAX_RECORD_MESSAGE_SIZE = MessageFragmenter.MAX_MESSAGE_SIZE / 2;
+    static final int DEFAULT_SYNC_PAYLOAD_BUDGET = MessageFragmenter.MAX_DATAGRAM_SIZE - PacketHeader.HEADER_SIZE - PayloadCompressor.DEFLATE_HEADER_SIZE;
+    private static final long DEFAULT_LIVE_MESSAGE_LINGER = 50; // 50 ms
+    private int syncPayloadBudget = DEFAULT_SYNC_PAYLOAD_BUDGET;
+    private SyncInfoPacker syncInfoPacker;
+    private NackManager nackManager;
+    private HandShakingScheduler handShakingScheduler;
+    private SyncResponder syncResponder;
+    private InboundPipeline inboundPipeline;
+    // CAPABILITY_CATCH_UP is added while catch up is enabled and its server listens
+    private static final int LOCAL_CAPABILITIES = HandShakingMessage.CAPABILITY_DEFLATE | HandShakingMessage.CAPABILITY_BINARY | HandShakingMessage.CAPABILITY_RECONCILE;
+    private final Map<String, Integer> peerCapabilities = new ConcurrentHashMap<String, Integer>();
+    private boolean compressionEnabled = true;
+    private boolean binaryFormatEnabled = true;
+    private volatile boolean binaryFormat = false;
+    private final BinaryMessageCodec binaryCodec = new BinaryMessageCodec();
+    public static final int FEC_ADAPTIVE = -1;
+    private volatile int fecBlockSize = FEC_ADAPTIVE;
+    private volatile boolean reconciliationEnabled = false;
+    private volatile boolean unicastEnabled = true;
+    private volatile boolean catchUpEnabled = true;
+    private final AtomicBoolean catchUpRunning = new AtomicBoolean(false);
+    private CatchUpServer catchUpServer;
+    // records behind a peer, going by its handshake, that switch to a TCP catch up from it
+    private static final long CATCH_UP_MIN_LAG = 50;
+    private PeerMembership peerMembership;
+    private SyncScheduler syncScheduler;
+    private SetReconciler setReconciler;
+
     private static final int STOP_MULTICAST_TIMER = 1 * 1000; // 1 sec
     private static final int START_MULTICAST_TIMER = 3 * 1000; // 3 sec
 
@@ -93,6 +138,8 @@ public class MulticastManager {
                 instance.registerMulticastBroadcasts();
                 instance.dbSyncManager = DBSyncManager.getInstance(context);
                 instance.p2PDBApiImpl = P2PDBApiImpl.getInstance(context);
+                instance.inboundPipeline = new InboundPipeline(context, instance);
+                instance.inboundPipeline.start();
 
                 instance.broadCastRefreshDevice();
             }
@@ -106,8 +153,29 @@ public class MulticastManager {
     }
 
     public void onCleanUp() {
+        if (syncInfoPacker != null) {
+            syncInfoPacker.cancel();
+        }
+        if (nackManager != null) {
+            nackManager.cancel();
+        }
+        if (handShakingScheduler != null) {
+            handShakingScheduler.cancel();
+        }
+        if (syncResponder != null) {
+            syncResponder.cancel();
+        }
+        if (peerMembership != null) {
+            peerMembership.cancel();
+        }
+        if (syncScheduler != null) {
+            syncScheduler.cancel();
+        }
         stopListening();
         stopThreads();
+        if (inboundPipeline != null) {
+            inboundPipeline.stop();
+        }
         if (instance != null) {
             instance.unregisterMulticastBroadcasts();
         }
@@ -117,8 +185,30 @@ public class MulticastManager {
     public void startListening() {
         if (!isListening) {
             setWifiLockAcquired(true);
-            this.multicastListenerThread = new MulticastListenerThread(this.context, getMulticastIP(), getMulticastPort());
-            multicastListenerThread.start();
+            // peers are renegotiated on every network, compression waits for their handshakes
+            peerCapabilities.clear();
+            getPeerMembership().clear();
+            getPeerMembership().start();
+            getSyncScheduler().start();
+            binaryFormat = false;
+            handShakingDigests.clear();
+            handShakingPages.clear();
+            inboundPipeline.setLocalDeviceHash(PacketHeader.deviceHash(P2PContext.getCurrentDevice()));
+            if (useChannelTransport && MulticastChannelThread.isSupported()) {
+                this.multicastChannelThread = new MulticastChannelThread(this.context, rateController, inboundPipeline);
+                multicastChannelThread.addGroup(getMulticastIP(), getMulticastPort());
+                multicastChannelThread.setFecBlockSize(Math.max(0, fecBlockSize));
+                multicastChannelThread.start();
+            } else {
+                this.multicastListenerThread = new MulticastListenerThread(this.context, getMulticastIP(), getMulticastPort(), inboundPipeline);
+                multicastListenerThread.start();
+                this.multicastSenderThread = new MulticastSenderThread(this.context, getMulticastIP(), getMulticastPort(), rateController);
+                multicastSenderThread.setFecBlockSize(Math.max(0, fecBlockSize));
+                multicastSenderThread.start();
+            }
+            if (catchUpEnabled) {
+                startCatchUpServer();
+            }
             isListening = true;
         }
     }
@@ -131,28 +221,327 @@ public class MulticastManager {
         if (isListening) {
             Log.d(TAG, "stopListening called");
             isListening = false;
+            getPeerMembership().cancel();
+            getSyncScheduler().cancel();
             stopThreads();
             setWifiLockAcquired(false);
         }
     }
 
-    public void sendMulticastMessage(String message) {
-        if (this.isListening) {
-            Log.d(TAG, "sending message: " + message);
-            this.multicastSenderThread = new MulticastSenderThread(this.context, getMulticastIP(), getMulticastPort(), message);
-            multicastSenderThread.start();
+    public void sendMulticastPayload(byte[] payload) {
+        if (!this.isListening) {
+            return;
+        }
+        MulticastChannelThread channelThread = this.multicastChannelThread;
+        MulticastSenderThread senderThread = this.multicastSenderThread;
+        if (channelThread != null) {
+            channelThread.send(payload, getMulticastIP(), getMulticastPort());
+        } else if (senderThread != null) {
+            senderThread.enqueue(payload);
+        }
+    }
+
+    public void sendUnicastPayload(byte[] payload, String ip) {
+        if (!this.isListening) {
+            return;
+        }
+        MulticastChannelThread channelThread = this.multicastChannelThread;
+        MulticastSenderThread senderThread = this.multicastSenderThread;
+        if (channelThread != null) {
+            channelThread.sendUnicast(payload, ip, getMulticastPort());
+        } else if (senderThread != null) {
+            try {
+                senderThread.enqueue(payload, InetAddress.getByName(ip));
+            } catch (UnknownHostException e) {
+                Log.d(TAG, "unknown unicast address " + ip + ", sending to the group");
+                senderThread.enqueue(payload);
+            }
+        }
+    }
+
+    public int getSendQueueDepth() {
+        MulticastChannelThread channelThread = this.multicastChannelThread;
+        if (channelThread != null) {
+            return channelThread.getQueueDepth();
+        }
+        MulticastSenderThread senderThread = this.multicastSenderThread;
+        return senderThread != null ? senderThread.getQueueDepth() : 0;
+    }
+
+    public float getSendRate() {
+        MulticastSenderThread senderThread = this.multicastSenderThread;
+        return senderThread != null ? senderThread.getSendRate() : 0;
+    }
+
+    public double getPacingRate() {
+        return rateController.getRate();
+    }
+
+    public int getSyncPayloadBudget() {
+        return syncPayloadBudget;
+    }
+
+    // upper bound in bytes for a packed SyncInfoMessage, records are never split across messages
+    public void setSyncPayloadBudget(int syncPayloadBudget) {
+        this.syncPayloadBudget = syncPayloadBudget;
+    }
+
+    public void setLiveMessageLinger(long lingerMillis) {
+        getSyncInfoPacker().setLingerMillis(lingerMillis);
+    }
+
+    synchronized NackManager getNackManager() {
+        if (nackManager == null) {
+            nackManager = new NackManager(this, p2PDBApiImpl);
+        }
+        return nackManager;
+    }
+
+    synchronized SyncResponder getSyncResponder() {
+        if (syncResponder == null) {
+            syncResponder = new SyncResponder(this, p2PDBApiImpl);
+        }
+        return syncResponder;
+    }
+
+    synchronized HandShakingScheduler getHandShakingScheduler() {
+        if (handShakingScheduler == null) {
+            handShakingScheduler = new HandShakingScheduler(this);
+        }
+        return handShakingScheduler;
+    }
+
+    synchronized SetReconciler getSetReconciler() {
+        if (setReconciler == null) {
+            setReconciler = new SetReconciler(this, p2PDBApiImpl);
+        }
+        return setReconciler;
+    }
+
+    // responses and repairs only one device needs go to its address over unicast instead of the group
+    public void setUnicastEnabled(boolean unicastEnabled) {
+        this.unicastEnabled = unicastEnabled;
+    }
+
+    synchronized PeerMembership getPeerMembership() {
+        if (peerMembership == null) {
+            peerMembership = new PeerMembership(this, p2PDBApiImpl);
+        }
+        return peerMembership;
+    }
+
+    synchronized SyncScheduler getSyncScheduler() {
+        if (syncScheduler == null) {
+            syncScheduler = new SyncScheduler(this, p2PDBApiImpl);
+        }
+        return syncScheduler;
+    }
+
+    // devices queued for sync are synced this many at a time
+    public void setMaxConcurrentSyncs(int maxConcurrentSyncs) {
+        getSyncScheduler().setMaxConcurrent(maxConcurrentSyncs);
+    }
+
+    List<String> getLivePeers() {
+        return getPeerMembership().liveDeviceIds();
+    }
+
+    // one round of a scheduled sync: sync requests sent to pull what the device holds, -1 while its handshake is awaited
+    int syncWith(String deviceId) {
+        HandShakingMessage message = handShakingMessagesInCurrentLoop.get(deviceId);
+        if (message == null) {
+            requestHandShake(deviceId);
+            return -1;
+        }
+        // planning only, the handshake loop keeps its own idle signature, catch up and reconciliation
+        List<SyncInfoRequestMessage> requests = planSyncInfoPullRequest(Collections.singletonMap(deviceId, message));
+        sendSyncRequestMessages(requests);
+        return requests.size();
+    }
+
+    // devices heard from on this network within PeerMembership.PEER_TIMEOUT
+    int getPeerCount() {
+        return getPeerMembership().size();
+    }
+
+    // null unless unicast is enabled and the device is a live peer
+    private String unicastAddressOf(String deviceId) {
+        return unicastEnabled ? getPeerMembership().addressOf(deviceId) : null;
+    }
+
+    // a peer gone quiet no longer counts for negotiation or planning
+    void onPeerExpired(String deviceId) {
+        peerCapabilities.remove(deviceId);
+        handShakingMessagesInCurrentLoop.remove(deviceId);
+        applyNegotiatedFormats();
+    }
+
+    // this device's heartbeat after a quiet spell, peers learn its state and digest without replying
+    void sendHeartbeat() {
+        Log.d(TAG, "nothing sent for a while, sending handshake as heartbeat");
+        sendInitialHandShakingMessage(false);
+    }
+
+    // a device far behind a peer pulls everything it lacks from that peer over TCP, disabled it neither pulls nor serves
+    public void setCatchUpEnabled(boolean catchUpEnabled) {
+        this.catchUpEnabled = catchUpEnabled;
+        if (!catchUpEnabled) {
+            stopCatchUpServer();
+        } else if (isListening) {
+            startCatchUpServer();
+        }
+    }
+
+    private synchronized void startCatchUpServer() {
+        if (catchUpServer == null) {
+            catchUpServer = new CatchUpServer(p2PDBApiImpl, binaryCodec, getCatchUpPort());
+            catchUpServer.start();
+        }
+    }
+
+    private synchronized void stopCatchUpServer() {
+        if (catchUpServer != null) {
+            catchUpServer.stopRunning();
+            catchUpServer = null;
+        }
+    }
+
+    private int localCapabilities() {
+        return catchUpEnabled ? LOCAL_CAPABILITIES | HandShakingMessage.CAPABILITY_CATCH_UP : LOCAL_CAPABILITIES;
+    }
+
+    private int getCatchUpPort() {
+        return getMulticastPort() + 1;
+    }
+
+    // picks the peer this device lags most and catches up from it, one session at a time
+    private void startCatchUpIfFarBehind(Map<String, HandShakingMessage> messages) {
+        if (!catchUpEnabled || catchUpRunning.get()) {
+            return;
+        }
+        P2PLatestInfoByUserAndDevice[] latest = p2PDBApiImpl.fetchLatestInfos();
+        HandShakingMessage ahead = null;
+        long maxLag = CATCH_UP_MIN_LAG - 1;
+        for (HandShakingMessage message : messages.values()) {
+            Integer capabilities = peerCapabilities.get(message.getFrom());
+            if (capabilities == null || (capabilities & HandShakingMessage.CAPABILITY_CATCH_UP) == 0 || getPeerMembership().addressOf(message.getFrom()) == null) {
+                continue;
+            }
+            long lag = CatchUpClient.lag(message, latest);
+            if (lag > maxLag) {
+                maxLag = lag;
+                ahead = message;
+            }
+        }
+        if (ahead == null || !catchUpRunning.compareAndSet(false, true)) {
+            return;
+        }
+        Log.d(TAG, maxLag + " records behind " + ahead.getFrom() + ", starting catch up");
+        final CatchUpClient client = new CatchUpClient(p2PDBApiImpl, binaryCodec, ahead, getPeerMembership().addressOf(ahead.getFrom()), getCatchUpPort());
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    client.run();
+                } finally {
+                    catchUpRunning.set(false);
+                    // the next handshake advertises what was caught up
+                    persistedSyncRecords.incrementAndGet();
+                }
+            }
+        }, "CatchUpClient").start();
+    }
+
+    // every handshake round also reconciles the full record sets with peers that support it
+    public void setReconciliationEnabled(boolean reconciliationEnabled) {
+        this.reconciliationEnabled = reconciliationEnabled;
+    }
+
+    synchronized SyncInfoPacker getSyncInfoPacker() {
+        if (syncInfoPacker == null) {
+            syncInfoPacker = new SyncInfoPacker(this, DEFAULT_LIVE_MESSAGE_LINGER);
+        }
+        return syncInfoPacker;
+    }
+
+    /*
+        Datagrams per XOR parity frame, 0 turns FEC off. FEC_ADAPTIVE (the default) starts
+        without parity and picks the block size from the loss peers report in handshakes.
+     */
+    public void setForwardErrorCorrection(int blockSize) {
+        this.fecBlockSize = blockSize;
+        applyFecBlockSize(Math.max(0, blockSize));
+    }
+
+    private void applyFecBlockSize(int blockSize) {
+        MulticastChannelThread channelThread = this.multicastChannelThread;
+        if (channelThread != null) {
+            channelThread.setFecBlockSize(blockSize);
+        }
+        MulticastSenderThread senderThread = this.multicastSenderThread;
+        if (senderThread != null) {
+            senderThread.setFecBlockSize(blockSize);
+        }
+    }
+
+    // payloads are compressed only while every peer heard from so far advertises CAPABILITY_DEFLATE
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+        applyNegotiatedFormats();
+    }
+
+    // binary messages replace JSON only while every peer heard from so far advertises CAPABILITY_BINARY
+    public void setBinaryFormatEnabled(boolean binaryFormatEnabled) {
+        this.binaryFormatEnabled = binaryFormatEnabled;
+        applyNegotiatedFormats();
+    }
+
+    private boolean allPeersSupport(int capability) {
+        if (peerCapabilities.isEmpty()) {
+            return false;
+        }
+        for (Integer capabilities : peerCapabilities.values()) {
+            if ((capabilities & capability) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void applyNegotiatedFormats() {
+        binaryFormat = binaryFormatEnabled && allPeersSupport(HandShakingMessage.CAPABILITY_BINARY);
+        boolean compress = compressionEnabled && allPeersSupport(HandShakingMessage.CAPABILITY_DEFLATE);
+        MulticastChannelThread channelThread = this.multicastChannelThread;
+        if (channelThread != null) {
+            channelThread.setCompressionEnabled(compress);
         }
+        MulticastSenderThread senderThread = this.multicastSenderThread;
+        if (senderThread != null) {
+            senderThread.setCompressionEnabled(compress);
+        }
+    }
+
+    // takes effect on the next startListening
+    public void setUseChannelTransport(boolean useChannelTransport) {
+        this.useChannelTransport = useChannelTransport;
     }
 
     private void stopThreads() {
+        if (this.multicastChannelThread != null) {
+            this.multicastChannelThread.stopRunning();
+            this.multicastChannelThread = null;
+        }
         if (this.multicastListenerThread != null) {
             this.multicastListenerThread.stopRunning();
             this.multicastListenerThread.cleanUp();
         }
         if (this.multicastSenderThread != null) {
+            this.multicastSenderThread.stopRunning();
             this.multicastSenderThread.interrupt();
             this.multicastSenderThread.cleanUp();
+            this.multicastSenderThread = null;
         }
+        stopCatchUpServer();
     }
 
     private void setWifiLockAcquired(boolean acquired) {
@@ -193,11 +582,6 @@ public class MulticastManager {
             netWorkChangerReceiver = null;
         }
 
-        if (mMessageEventReceiver != null) {
-            LocalBroadcastManager.getInstance(this.context).unregisterReceiver(mMessageEventReceiver);
-            mMessageEventReceiver = null;
-        }
-
         if (newMessageAddedReceiver != null) {
             LocalBroadcastManager.getInstance(this.context).unregisterReceiver(newMessageAddedReceiver);
             newMessageAddedReceiver = null;
@@ -208,13 +592,18 @@ public class MulticastManager {
             refreshDeviceReceiver = null;
         }
 
+        if (deviceToSyncAddedReceiver != null) {
+            LocalBroadcastManager.getInstance(this.context).unregisterReceiver(deviceToSyncAddedReceiver);
+            deviceToSyncAddedReceiver = null;
+        }
+
     }
 
     private void registerMulticastBroadcasts() {
         LocalBroadcastManager.getInstance(this.context).registerReceiver(netWorkChangerReceiver, new IntentFilter(multiCastConnectionChangedEvent));
-        LocalBroadcastManager.getInstance(this.context).registerReceiver(mMessageEventReceiver, new IntentFilter(messageEvent));
         LocalBroadcastManager.getInstance(this.context).registerReceiver(newMessageAddedReceiver, new IntentFilter(newMessageAddedOnDevice));
         LocalBroadcastManager.getInstance(this.context).registerReceiver(refreshDeviceReceiver, new IntentFilter(refreshDevice));
+        LocalBroadcastManager.getInstance(this.context).registerReceiver(deviceToSyncAddedReceiver, new IntentFilter(deviceToSyncAdded));
     }
 
 
@@ -298,7 +687,7 @@ public class MulticastManager {
                             Iterator<P2PSyncInfo> allInfosIt = allInfos.iterator();
                             while (allInfosIt.hasNext()) {
                                 P2PSyncInfo p = allInfosIt.next();
-                                instance.getAllSyncInfosReceived().add(p.getDeviceId() + "_" + p.getUserId() + "_" + Long.valueOf(p.getSequence().longValue()));
+                                instance.receivedSequences.add(p.getUserId(), p.getDeviceId(), p.getSequence());
                                 String sender = p.getSender().equals(P2PContext.getCurrentDevice()) ? "You" : p.getSender();
                                 notifyUI(p.message, sender, CONSOLE_TYPE);
                             }
@@ -316,23 +705,20 @@ public class MulticastManager {
         public void onReceive(Context context, Intent intent) {
             P2PSyncInfo info = (P2PSyncInfo) intent.getSerializableExtra(NEW_MESSAGE_ADDED);
             if (info != null) {
-                String syncMessage = p2PDBApiImpl.convertSingleP2PSyncInfoToJsonUsingStreaming(info);
-                instance.sendMulticastMessage(syncMessage);
+                instance.getSyncInfoPacker().add(info);
             }
         }
     };
 
-    private BroadcastReceiver mMessageEventReceiver = new BroadcastReceiver() {
+    private BroadcastReceiver deviceToSyncAddedReceiver = new BroadcastReceiver() {
 
         public void onReceive(Context context, Intent intent) {
-            // Get extra data included in the Intent
-            String message = intent.getStringExtra("message");
-            String fromIP = intent.getStringExtra("fromIP");
-            processInComingMessage(message, fromIP);
+            if (instance != null && instance.isListening) {
+                instance.getSyncScheduler().kick();
+            }
         }
     };
 
-
     public void notifyUI(String message, String fromIP, String type) {
 
         final String consoleMessage = "[" + fromIP + "]: " + message + "\n";
@@ -340,7 +726,11 @@ public class MulticastManager {
         Intent intent = new Intent(uiMessageEvent);
         intent.putExtra("message", consoleMessage);
         intent.putExtra("type", type);
-        LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
+        // only log lines may be dropped under load, chat lines and clears always reach the console
+        InboundPipeline pipeline = inboundPipeline;
+        if (!LOG_TYPE.equals(type) || pipeline == null || !pipeline.notify(intent)) {
+            LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
+        }
     }
 
 
@@ -369,32 +759,254 @@ public class MulticastManager {
     }
 
 
+    private boolean isNackMessage(String message) {
+        String messageType = "\"mt\":\"" + NackMessage.MESSAGE_TYPE + "\"";
+        return message != null && message.contains(messageType);
+    }
+
     private void sendInitialHandShakingMessage(boolean needAck) {
+        sendInitialHandShakingMessage(needAck, Collections.<Long>emptySet());
+    }
+
+    // answers the handshakes asking for one unless a handshake with this device's digest was heard since
+    void sendHandShakingReply(Set<Long> heardDigests) {
+        Log.d(TAG, "replying back with initial hand shaking message with needAck => false");
+        notifyUI("handshaking message sent with ack false", " ------> ", LOG_TYPE);
+        sendInitialHandShakingMessage(false, heardDigests);
+    }
+
+    private void sendInitialHandShakingMessage(boolean needAck, Set<Long> suppressingDigests) {
         // construct handshaking message(s)
         // put in queue - TBD
         // send one by one from queue - TBD
-        String serializedHandShakingMessage = instance.p2PDBApiImpl.serializeHandShakingMessage(needAck);
-        Log.d(TAG, "sending initial handshaking message: " + serializedHandShakingMessage);
-        instance.sendMulticastMessage(serializedHandShakingMessage);
+        // report what this device received since the last handshake so senders can pace themselves
+        int received = receivedSyncRecords.get();
+        int duplicates = duplicateSyncRecords.get();
+        int outOfSync = outOfSyncRecords.get();
+        HandShakingMessage handShakingMessage = instance.p2PDBApiImpl.buildHandShakingMessage(needAck, localCapabilities(), received, duplicates, outOfSync);
+        if (handShakingMessage == null) {
+            return;
+        }
+        if (!suppressingDigests.isEmpty() && suppressingDigests.contains(HandShakingDigests.digest(handShakingMessage.getInfos()))) {
+            Log.d(TAG, "equivalent handshake already heard, suppressing ours");
+            return;
+        }
+        receivedSyncRecords.addAndGet(-received);
+        duplicateSyncRecords.addAndGet(-duplicates);
+        outOfSyncRecords.addAndGet(-outOfSync);
+        long now = System.currentTimeMillis();
+        handShakingMessage = handShakingDigests.prepareOutgoing(handShakingMessage, now);
+        getPeerMembership().stamp(handShakingMessage, now);
+        sendHandShakingPages(handShakingMessage, null);
     }
 
+    // asks one device for its handshake, every other device drops the request on the header
+    private void requestHandShake(String deviceId) {
+        // no reception report or echoes, those are meant for the whole group
+        HandShakingMessage handShakingMessage = p2PDBApiImpl.buildHandShakingMessage(true, localCapabilities(), 0, 0, 0);
+        if (handShakingMessage == null) {
+            return;
+        }
+        Log.d(TAG, "asking " + deviceId + " for its handshake");
+        sendHandShakingPages(handShakingDigests.prepareOutgoing(handShakingMessage, System.currentTimeMillis()), deviceId);
+    }
+
+    // more infos than fit a datagram go out as pages of one round, each usable on its own
+    private void sendHandShakingPages(HandShakingMessage handShakingMessage, String targetDeviceId) {
+        int round = handShakingRounds.incrementAndGet();
+        if (binaryFormat) {
+            List<byte[]> pages = binaryCodec.encodeHandShakingPages(handShakingMessage, round, syncPayloadBudget);
+            Log.d(TAG, "sending initial handshaking message in binary format, " + pages.size() + " page(s)");
+            for (byte[] page : pages) {
+                instance.sendPacket(PacketHeader.TYPE_HANDSHAKE, targetDeviceId, page);
+            }
+        } else {
+            for (String serializedHandShakingMessage : instance.p2PDBApiImpl.serializeHandShakingPages(handShakingMessage, round, syncPayloadBudget)) {
+                Log.d(TAG, "sending initial handshaking message: " + serializedHandShakingMessage);
+                instance.sendPacket(PacketHeader.TYPE_HANDSHAKE, targetDeviceId, serializedHandShakingMessage);
+            }
+        }
+    }
+
+    void sendSyncInfos(List<P2PSyncInfo> infos) {
+        sendSyncInfos(infos, null);
+    }
+
+    // to the one device that needs them over unicast when its address is known, to the group otherwise,
+    // true when they were addressed to that device alone
+    boolean sendSyncInfos(List<P2PSyncInfo> infos, String targetDeviceId) {
+        String address = unicastAddressOf(targetDeviceId);
+        String target = address != null ? targetDeviceId : null;
+        if (binaryFormat) {
+            for (byte[] payload : binaryCodec.encodeSyncInfoPackets(infos, syncPayloadBudget)) {
+                sendPacket(PacketHeader.TYPE_SYNC_INFO, target, payload, address);
+            }
+        } else {
+            for (String json : p2PDBApiImpl.convertP2PSyncInfosToJsonPackets(infos, syncPayloadBudget)) {
+                sendPacket(PacketHeader.TYPE_SYNC_INFO, target, json, address);
+            }
+        }
+        return target != null;
+    }
+
+    void sendNackMessage(NackMessage nack) {
+        if (binaryFormat) {
+            sendPacket(PacketHeader.TYPE_NACK, null, binaryCodec.encodeNackMessage(nack));
+        } else {
+            sendPacket(PacketHeader.TYPE_NACK, null, p2PDBApiImpl.serializeNackMessage(nack));
+        }
+    }
+
+    void sendReconcileMessage(String peer, ReconcileMessage message) {
+        if (binaryFormat) {
+            sendPacket(PacketHeader.TYPE_RECONCILE, peer, binaryCodec.encodeReconcileMessage(message), unicastAddressOf(peer));
+        } else {
+            sendPacket(PacketHeader.TYPE_RECONCILE, peer, p2PDBApiImpl.serializeReconcileMessage(message), unicastAddressOf(peer));
+        }
+    }
+
+    // requests are addressed to the device asked to answer, every other device drops them on the header
+    private void sendSyncRequestMessages(List<SyncInfoRequestMessage> requests) {
+        for (SyncInfoRequestMessage request : requests) {
+            if (binaryFormat) {
+                sendPacket(PacketHeader.TYPE_SYNC_REQUEST, request.getmDeviceId(), binaryCodec.encodeSyncInfoRequestMessage(request));
+            } else {
+                sendPacket(PacketHeader.TYPE_SYNC_REQUEST, request.getmDeviceId(), p2PDBApiImpl.serializeSyncRequestMessage(request));
+            }
+        }
+    }
+
+    private void sendPacket(byte type, String targetDeviceId, byte[] binaryMessage) {
+        sendPacket(type, targetDeviceId, binaryMessage, null);
+    }
+
+    private void sendPacket(byte type, String targetDeviceId, String json) {
+        sendPacket(type, targetDeviceId, json, null);
+    }
+
+    // unicastAddress null sends to the group
+    private void sendPacket(byte type, String targetDeviceId, byte[] binaryMessage, String unicastAddress) {
+        if (binaryMessage != null) {
+            sendPayload(PacketHeader.wrap(type, PacketHeader.FLAG_BINARY, P2PContext.getCurrentDevice(), targetDeviceId, binaryMessage), unicastAddress);
+        }
+    }
+
+    private void sendPacket(byte type, String targetDeviceId, String json, String unicastAddress) {
+        if (json != null) {
+            sendPayload(PacketHeader.wrap(type, P2PContext.getCurrentDevice(), targetDeviceId, json), unicastAddress);
+        }
+    }
+
+    private void sendPayload(byte[] payload, String unicastAddress) {
+        getPeerMembership().onSent(System.currentTimeMillis());
+        if (unicastAddress != null) {
+            sendUnicastPayload(payload, unicastAddress);
+        } else {
+            sendMulticastPayload(payload);
+        }
+    }
+
+    // unenveloped JSON, as sent by peers that predate PacketHeader
     public void processInComingMessage(String message, String fromIP) {
-        AsyncTask.execute(new Runnable() {
-            @Override
-            public void run() {
-                if (instance.isHandShakingMessage(message)) {
-                    instance.processInComingHandShakingMessage(message);
-                } else if (instance.isSyncRequestMessage(message)) {
-                    List<String> syncInfoMessages = instance.processInComingSyncRequestMessage(message);
-                    instance.sendMessages(syncInfoMessages);
-                } else if (instance.isSyncInfoMessage(message)) {
-                    instance.processInComingSyncInfoMessage(message, fromIP);
-                }
+        inboundPipeline.receive(message, fromIP);
+    }
+
+    public void processInComingPayload(byte[] payload, String fromIP) {
+        inboundPipeline.receive(payload, fromIP);
+    }
+
+    public InboundPipeline getInboundPipeline() {
+        return inboundPipeline;
+    }
+
+    // decode stage, the receiving thread already checked target and checksum
+    Object decodePacket(PacketHeader header, byte[] packet) {
+        if (header.isBinary()) {
+            return binaryCodec.decode(packet, PacketHeader.HEADER_SIZE, header.getPayloadLength());
+        }
+        return parseJsonPacket(header.getType(), header.json(packet));
+    }
+
+    // decode stage, unenveloped JSON is still classified by its message type
+    Object decodeLegacyMessage(String message) {
+        if (isHandShakingMessage(message)) {
+            return parseJsonPacket(PacketHeader.TYPE_HANDSHAKE, message);
+        } else if (isSyncRequestMessage(message)) {
+            return parseJsonPacket(PacketHeader.TYPE_SYNC_REQUEST, message);
+        } else if (isSyncInfoMessage(message)) {
+            return parseJsonPacket(PacketHeader.TYPE_SYNC_INFO, message);
+        } else if (isNackMessage(message)) {
+            return parseJsonPacket(PacketHeader.TYPE_NACK, message);
+        }
+        return null;
+    }
+
+    private Object parseJsonPacket(byte type, String json) {
+        switch (type) {
+            case PacketHeader.TYPE_HANDSHAKE:
+                return p2PDBApiImpl.deSerializeHandShakingInformationFromJson(json);
+            case PacketHeader.TYPE_SYNC_REQUEST:
+                return p2PDBApiImpl.buildSyncRequstMessage(json);
+            case PacketHeader.TYPE_SYNC_INFO:
+                return p2PDBApiImpl.deSerializeSyncInfoMessageFromJson(json);
+            case PacketHeader.TYPE_NACK:
+                return p2PDBApiImpl.deSerializeNackMessageFromJson(json);
+            case PacketHeader.TYPE_RECONCILE:
+                return p2PDBApiImpl.deSerializeReconcileMessageFromJson(json);
+            default:
+                return null;
+        }
+    }
+
+    // dispatch stage, control messages are handled here, sync records fan out to their sender's apply lane
+    void dispatchInbound(Object message, String fromIP) {
+        getPeerMembership().onHeard(senderOf(message), fromIP, System.currentTimeMillis());
+        if (message instanceof HandShakingMessage) {
+            HandShakingMessage handShakingMessage = handShakingDigests.applyIncoming(handShakingPages.add((HandShakingMessage) message), P2PContext.getCurrentDevice(), System.currentTimeMillis());
+            if (handShakingMessage == null) {
+                // the delta builds on a state we do not hold, our next handshake leaves the sender without
+                // our acknowledgement and it sends everything then
+                Log.d(TAG, "handshake delta from " + ((HandShakingMessage) message).getFrom() + " not applicable, waiting for a full handshake");
+                return;
             }
-        });
+            notifyUI("handshaking message received", " ------> ", LOG_TYPE);
+            storeHandShakingMessage(handShakingMessage);
+            processInComingHandShakingMessage(handShakingMessage);
+        } else if (message instanceof SyncInfoRequestMessage || message instanceof ReconcileMessage) {
+            inboundPipeline.respond(message);
+        } else if (message instanceof SyncInfoMessage) {
+            dispatchInComingSyncInfos(((SyncInfoMessage) message).getInfos());
+        } else if (message instanceof NackMessage) {
+            getNackManager().onNackReceived((NackMessage) message);
+        }
+    }
 
+    // device that sent a control message, sync records carry their author rather than whoever relayed them
+    private static String senderOf(Object message) {
+        if (message instanceof HandShakingMessage) {
+            return ((HandShakingMessage) message).getFrom();
+        } else if (message instanceof SyncInfoRequestMessage) {
+            return ((SyncInfoRequestMessage) message).getSender();
+        } else if (message instanceof NackMessage) {
+            return ((NackMessage) message).getFrom();
+        } else if (message instanceof ReconcileMessage) {
+            return ((ReconcileMessage) message).getFrom();
+        }
+        return null;
     }
 
+    // respond stage
+    void respondToPeer(Object message) {
+        if (message instanceof SyncInfoRequestMessage) {
+            SyncInfoRequestMessage request = (SyncInfoRequestMessage) message;
+            if (request.getmDeviceId() != null && request.getmDeviceId().equalsIgnoreCase(P2PContext.getCurrentDevice())) {
+                notifyUI("sync request message received", " ------> ", LOG_TYPE);
+                getSyncResponder().onSyncRequest(request);
+            }
+        } else if (message instanceof ReconcileMessage) {
+            getSetReconciler().onReconcileMessage((ReconcileMessage) message);
+        }
+    }
 
     public void addNewMessage(String message) {
         dbSyncManager.addMessage(P2PContext.getLoggedInUser(), null, "Chat", message);
@@ -406,137 +1018,159 @@ public class MulticastManager {
         notifyUI("handshaking message received", " ------> ", LOG_TYPE);
         //parse message and add to all messages
         HandShakingMessage handShakingMessage = instance.parseHandShakingMessage(message);
-        boolean shouldSendAck = shouldSendAckForHandShakingMessage(handShakingMessage);
-
-        // send handshaking information if message received "from" first time
-        if (shouldSendAck) {
-            Log.d(TAG, "replying back with initial hand shaking message with needAck => false");
-            notifyUI("handshaking message sent with ack false", " ------> ", LOG_TYPE);
-            sendInitialHandShakingMessage(false);
+        if (handShakingMessage != null) {
+            processInComingHandShakingMessage(handShakingMessage);
         }
+    }
 
-        synchronized (MulticastManager.class) {
-            if (waitForHandShakingMessagesTimer == null) {
-                Log.d(TAG, "waitForHandShakingMessagesTimer => created to process Incoming handshaking requests");
-                new Handler(Looper.getMainLooper()).post(new Runnable() {
-                    @Override
-                    public void run() {
-                        waitForHandShakingMessagesTimer = new CountDownTimer(WAIT_FOR_HAND_SHAKING_MESSAGES, 1000) {
-                            public void onTick(long millisUntilFinished) {
-                            }
-
-                            public void onFinish() {
-                                Log.d(TAG, "waitForHandShakingMessagesTimer finished ... processing sync information ...");
-                                instance.generateSyncInfoPullRequest(instance.getAllHandShakeMessagesInCurrentLoop());
-                                if (waitForHandShakingMessagesTimer != null) {
-                                    waitForHandShakingMessagesTimer.cancel();
-                                    Log.d(TAG, "waitForHandShakingMessagesTimer => reset to cancelled");
-                                    waitForHandShakingMessagesTimer = null;
-                                }
-                            }
-                        }.start();
-                    }
-                });
-
-            } else {
-                Log.d(TAG, "waitForHandShakingMessagesTimer => already started ...");
+    private void processInComingHandShakingMessage(HandShakingMessage handShakingMessage) {
+        if (handShakingMessage != null) {
+            peerCapabilities.put(handShakingMessage.getFrom(), handShakingMessage.getCapabilities());
+            applyNegotiatedFormats();
+            getPeerMembership().onHandShake(handShakingMessage, System.currentTimeMillis());
+        }
+        if (handShakingMessage != null && handShakingMessage.getReceivedCount() != null) {
+            double loss = rateController.onFeedback(handShakingMessage.getReceivedCount(), handShakingMessage.getDuplicateCount(), handShakingMessage.getOutOfSyncCount());
+            if (fecBlockSize == FEC_ADAPTIVE && loss >= 0) {
+                applyFecBlockSize(FecEncoder.blockSizeForLoss(loss));
             }
         }
+        boolean shouldSendAck = shouldSendAckForHandShakingMessage(handShakingMessage);
+
+        // send handshaking information if message received "from" first time, after a delay that lets
+        // an equivalent handshake from another peer make ours redundant
+        int peers = getPeerCount();
+        if (shouldSendAck) {
+            getHandShakingScheduler().requestReply(peers);
+        }
+        getHandShakingScheduler().onHandShake(handShakingMessage, peers);
     }
 
     public List<String> generateSyncInfoPullRequest(final Map<String, HandShakingMessage> messages) {
         List<String> jsons = new ArrayList<String>();
+        // nothing to ask last time and neither peers' states nor ours changed since
+        Long signature = HandShakingDigests.signature(messages);
+        if (signature != null) {
+            signature = 31 * signature + persistedSyncRecords.get();
+            if (signature.equals(idlePlanSignature)) {
+                Log.d(TAG, "generateSyncInfoPullRequest -> states unchanged since last round, skipping");
+                return jsons;
+            }
+        }
         final Collection<HandShakingInfo> pullSyncInfo = instance.computeSyncInfoRequired(messages);
+        idlePlanSignature = pullSyncInfo.isEmpty() ? signature : null;
+        if (reconciliationEnabled) {
+            for (String peer : messages.keySet()) {
+                Integer capabilities = peerCapabilities.get(peer);
+                if (capabilities != null && (capabilities & HandShakingMessage.CAPABILITY_RECONCILE) != 0) {
+                    getSetReconciler().start(peer);
+                }
+            }
+        }
+        startCatchUpIfFarBehind(messages);
         Log.d(TAG, "generateSyncInfoPullRequest -> computeSyncInfoRequired ->" + pullSyncInfo.size());
         notifyUI("generateSyncInfoPullRequest -> computeSyncInfoRequired ->" + pullSyncInfo.size(), " ------> ", LOG_TYPE);
         if (pullSyncInfo != null) {
-            jsons = p2PDBApiImpl.serializeSyncRequestMessages(pullSyncInfo);
-            instance.sendMessages(jsons);
+            List<SyncInfoRequestMessage> requests = p2PDBApiImpl.buildSyncInfoRequestMessages(pullSyncInfo);
+            for (SyncInfoRequestMessage request : requests) {
+                jsons.add(p2PDBApiImpl.serializeSyncRequestMessage(request));
+            }
+            instance.sendSyncRequestMessages(requests);
         }
         return jsons;
     }
 
+    // sync requests for what the handshakes hold that this device misses, nothing sent or started
+    private List<SyncInfoRequestMessage> planSyncInfoPullRequest(Map<String, HandShakingMessage> messages) {
+        return p2PDBApiImpl.buildSyncInfoRequestMessages(computeSyncInfoRequired(messages));
+    }
+
     private MessageStatus validIncomingSyncMessage(P2PSyncInfo info, MessageStatus status) {
         // DON'T reject out of order message, send handshaking request for only missing data
         // reject duplicate messages if any
-        boolean isValid = true;
-        String iKey = info.getDeviceId() + "_" + info.getUserId() + "_" + Long.valueOf(info.getSequence().longValue());
-        String iPreviousKey = info.getDeviceId() + "_" + info.getUserId() + "_" + Long.valueOf(info.getSequence().longValue() - 1);
-        Log.d(TAG, "validIncomingSyncMessage previousKey" + iPreviousKey);
-        // remove duplicates
-        if (allSyncInfosReceived.contains(iKey)) {
-            Log.d(TAG, "sync data message as key already found" + iKey);
+        long sequence = info.getSequence().longValue();
+        boolean previousReceived = (sequence - 1) == 0
+                || receivedSequences.contains(info.getUserId(), info.getDeviceId(), sequence - 1);
+        // remove duplicates, claiming the sequence keeps a record catch up applies meanwhile from being written twice
+        if (!receivedSequences.add(info.getUserId(), info.getDeviceId(), sequence)) {
+            Log.d(TAG, "sync data message already received: " + info.getUserId() + "_" + info.getDeviceId() + "_" + sequence);
             status.setDuplicateMessage(true);
             status.setOutOfSyncMessage(false);
-            isValid = false;
-        } else if ((info.getSequence().longValue() - 1) != 0
-                && !allSyncInfosReceived.contains(iPreviousKey)) {
-            Log.d(TAG, "found sync data message as out of sequence => previous key not found " + iPreviousKey + " for key:" + iKey);
-            isValid = false;
+        } else if (!previousReceived) {
+            Log.d(TAG, "found sync data message as out of sequence => previous sequence not received for " + info.getUserId() + "_" + info.getDeviceId() + "_" + sequence);
             status.setDuplicateMessage(false);
             status.setOutOfSyncMessage(true);
         }
 
-        if (isValid) {
-            Log.d(TAG, "validIncomingSyncMessage adding to allSyncInfosReceived for key:" + iKey);
-            allSyncInfosReceived.add(iKey);
-        }
-
         return status;
     }
 
     public void processInComingSyncInfoMessage(String message, String fromIP) {
-        AsyncTask.execute(new Runnable() {
+        inboundPipeline.receive(message, fromIP);
+    }
+
+    private void dispatchInComingSyncInfos(List<P2PSyncInfo> syncInfos) {
+        if (syncInfos == null) {
+            return;
+        }
+        // repairs and packed records may arrive in any order, each lane gets its sender's in sequence
+        List<P2PSyncInfo> sorted = new ArrayList<P2PSyncInfo>(syncInfos);
+        Collections.sort(sorted, new Comparator<P2PSyncInfo>() {
             @Override
-            public void run() {
-//                Log.d(TAG, "processInComingSyncInfoMessage -> " + message + " fromIP -> " + fromIP);
-                Iterator<P2PSyncInfo> infos = p2PDBApiImpl.deSerializeP2PSyncInfoFromJson(message).iterator();
-                while (infos.hasNext()) {
-                    P2PSyncInfo info = infos.next();
-                    MessageStatus status = new MessageStatus(false, false);
-                    status = instance.validIncomingSyncMessage(info, status);
-                    if (status.isDuplicateMessage()) {
-                        notifyUI(info.message + " ---------> duplicate - rejected ", info.getSender(), LOG_TYPE);
-                        infos.remove();
-                    } else if (status.isOutOfSyncMessage()) {
-                        notifyUI(info.message + " with sequence " + info.getSequence() + " ---------> out of sync processed with filling Missing type message ", info.getSender(), LOG_TYPE);
-                        String key = info.getDeviceId() + "_" + info.getUserId() + "_" + Long.valueOf(info.getSequence().longValue());
-                        Log.d(TAG, "processing out of sync data message for key:" + key + " and sequence:" + info.sequence);
-                        String rMessage = p2PDBApiImpl.persistOutOfSyncP2PSyncMessage(info);
-                        // generate handshaking request
-                        if (status.isOutOfSyncMessage()) {
-                            Log.d(TAG, "validIncomingSyncMessage -> out of order -> sendInitialHandShakingMessage");
-                            sendInitialHandShakingMessage(true);
-                        }
-                    } else if (!status.isOutOfSyncMessage() && !status.isDuplicateMessage()) {
-                        String key = info.getDeviceId() + "_" + info.getUserId() + "_" + Long.valueOf(info.getSequence().longValue());
-                        Log.d(TAG, "processing sync data message for key:" + key + " and message:" + info.message);
-                        String rMessage = p2PDBApiImpl.persistP2PSyncInfo(info);
-                    } else {
-                        infos.remove();
-                    }
-                }
+            public int compare(P2PSyncInfo o1, P2PSyncInfo o2) {
+                return Long.compare(o1.getSequence(), o2.getSequence());
             }
         });
+        for (P2PSyncInfo info : sorted) {
+            inboundPipeline.apply(info);
+        }
+    }
 
+    // apply lane of the record's user and device, no other thread sees this sender's records
+    void applyInComingSyncRecord(P2PSyncInfo info) {
+        MessageStatus status = new MessageStatus(false, false);
+        status = instance.validIncomingSyncMessage(info, status);
+        receivedSyncRecords.incrementAndGet();
+        instance.getNackManager().onRecordSeen(info.getUserId(), info.getDeviceId(), info.getSequence());
+        instance.getSyncResponder().onRecordSeen(info.getUserId(), info.getDeviceId(), info.getSequence());
+        String key = info.getDeviceId() + "_" + info.getUserId() + "_" + Long.valueOf(info.getSequence().longValue());
+        if (status.isDuplicateMessage()) {
+            duplicateSyncRecords.incrementAndGet();
+            notifyUI(info.message + " ---------> duplicate - rejected ", info.getSender(), LOG_TYPE);
+        } else if (status.isOutOfSyncMessage()) {
+            outOfSyncRecords.incrementAndGet();
+            notifyUI(info.message + " with sequence " + info.getSequence() + " ---------> out of sync processed with filling Missing type message ", info.getSender(), LOG_TYPE);
+            Log.d(TAG, "processing out of sync data message for key:" + key + " and sequence:" + info.sequence);
+            p2PDBApiImpl.persistOutOfSyncP2PSyncMessage(info);
+            persistedSyncRecords.incrementAndGet();
+            // NACK only the gaps of this user and device instead of a full handshake
+            Log.d(TAG, "validIncomingSyncMessage -> out of order -> requesting repair of missing ranges");
+            instance.getNackManager().requestRepair(p2PDBApiImpl.findMissingRanges(info.getUserId(), info.getDeviceId()));
+        } else {
+            Log.d(TAG, "processing sync data message for key:" + key + " and message:" + info.message);
+            p2PDBApiImpl.persistP2PSyncInfo(info);
+            persistedSyncRecords.incrementAndGet();
+        }
     }
 
     public List<String> processInComingSyncRequestMessage(String message) {
         Log.d(TAG, "processInComingSyncRequestMessage => " + message);
         List<String> jsonRequests = new CopyOnWriteArrayList<String>();
         SyncInfoRequestMessage request = p2PDBApiImpl.buildSyncRequstMessage(message);
+        jsonRequests.addAll(p2PDBApiImpl.convertP2PSyncInfosToJsonPackets(processInComingSyncRequest(request), syncPayloadBudget));
+        return jsonRequests;
+    }
+
+    private List<P2PSyncInfo> processInComingSyncRequest(SyncInfoRequestMessage request) {
         // process only if matching current device id
         if (request != null && request.getmDeviceId().equalsIgnoreCase(P2PContext.getCurrentDevice())) {
             Log.d(TAG, "processInComingSyncRequestMessage => device id matches with: " + P2PContext.getCurrentDevice());
             notifyUI("sync request message received", " ------> ", LOG_TYPE);
             List<SyncInfoItem> items = request.getItems();
-            for (SyncInfoItem a : items) {
-                Log.d(TAG, "processInComingSyncRequestMessage => adding to jsonRequest for sync messages");
-                jsonRequests.addAll(p2PDBApiImpl.fetchP2PSyncInfoBySyncRequest(a));
-            }
+            Log.d(TAG, "processInComingSyncRequestMessage => packing sync messages for items: " + items.size());
+            return p2PDBApiImpl.fetchP2PSyncInfosBySyncRequest(items);
         }
-
-        return jsonRequests;
+        return Collections.emptyList();
     }
 
 
@@ -558,197 +1192,157 @@ public class MulticastManager {
         Iterator<Map.Entry<String, HandShakingMessage>> entries = messages.entrySet().iterator();
         while (entries.hasNext()) {
             Map.Entry<String, HandShakingMessage> entry = entries.next();
+            // planning marks up the infos, the handshakes held for later rounds stay as received
             Iterator<HandShakingInfo> it = entry.getValue().getInfos().iterator();
             while (it.hasNext()) {
-                HandShakingInfo i = it.next();
+                HandShakingInfo i = new HandShakingInfo(it.next());
                 i.setFrom(entry.getKey());
+                allHandShakingInfos.add(i);
             }
-
-            allHandShakingInfos.addAll(entry.getValue().getInfos());
         }
         return allHandShakingInfos;
     }
 
 
     private Collection<HandShakingInfo> computeSyncInfoRequired(final Map<String, HandShakingMessage> messages) {
-        // sort by device id and sequence desc order
-        synchronized (MulticastManager.class) {
-            final Set<HandShakingInfo> allHandShakingInfos = sortHandShakingInfos(messages);
-            Iterator<HandShakingInfo> itReceived = allHandShakingInfos.iterator();
-            final Map<String, HandShakingInfo> uniqueHandShakeInfosReceived = new ConcurrentHashMap<String, HandShakingInfo>();
-            final Map<String, HandShakingInfo> photoProfileUpdateInfosReceived = new ConcurrentHashMap<String, HandShakingInfo>();
-
-            while (itReceived.hasNext()) {
-                HandShakingInfo info = itReceived.next();
-                HandShakingInfo existingInfo = uniqueHandShakeInfosReceived.get(info.getUserId());
-                if (existingInfo == null) {
+        // sort by device id and sequence desc order, on copies of the held handshakes so no lock is needed
+        final Set<HandShakingInfo> allHandShakingInfos = sortHandShakingInfos(messages);
+        Iterator<HandShakingInfo> itReceived = allHandShakingInfos.iterator();
+        final Map<String, HandShakingInfo> uniqueHandShakeInfosReceived = new ConcurrentHashMap<String, HandShakingInfo>();
+        final Map<String, HandShakingInfo> photoProfileUpdateInfosReceived = new ConcurrentHashMap<String, HandShakingInfo>();
+
+        while (itReceived.hasNext()) {
+            HandShakingInfo info = itReceived.next();
+            HandShakingInfo existingInfo = uniqueHandShakeInfosReceived.get(info.getUserId());
+            if (existingInfo == null) {
+                uniqueHandShakeInfosReceived.put(info.getUserId(), info);
+            } else {
+                if (existingInfo.getSequence().longValue() < info.getSequence().longValue()) {
                     uniqueHandShakeInfosReceived.put(info.getUserId(), info);
-                } else {
-                    if (existingInfo.getSequence().longValue() < info.getSequence().longValue()) {
+                } else if (existingInfo.getSequence().longValue() == info.getSequence().longValue()) {
+
+                    if (missingCount(existingInfo) > missingCount(info)) {
+                        uniqueHandShakeInfosReceived.put(info.getUserId(), info);
+                    } else if (missingCount(existingInfo) == missingCount(info) && getPeerMembership().isHealthier(info.getFrom(), existingInfo.getFrom())) {
+                        // equally complete, ask the peer that answers sooner
                         uniqueHandShakeInfosReceived.put(info.getUserId(), info);
-                    } else if (existingInfo.getSequence().longValue() == info.getSequence().longValue()) {
-
-                        String myMissingMessageSequences = existingInfo.getMissingMessages();
-                        String otherDeviceMissingMessageSequences = info.getMissingMessages();
-                        List<String> list1 = new ArrayList<String>();
-                        List<String> list2 = new ArrayList<String>();
-                        if (myMissingMessageSequences != null) {
-                            list1 = Lists.newArrayList(Splitter.on(",").split(myMissingMessageSequences));
-                        }
-                        if (otherDeviceMissingMessageSequences != null) {
-                            list2 = Lists.newArrayList(Splitter.on(",").split(otherDeviceMissingMessageSequences));
-                        }
-                        if (list1.size() > list2.size()) {
-                            uniqueHandShakeInfosReceived.put(info.getUserId(), info);
-                        }
                     }
                 }
             }
+        }
 
-            final Map<String, HandShakingInfo> myHandShakingMessages = p2PDBApiImpl.handShakingInformationFromCurrentDevice();
+        final Map<String, HandShakingInfo> myHandShakingMessages = p2PDBApiImpl.handShakingInformationFromCurrentDevice();
 
-            Iterator<String> keys = uniqueHandShakeInfosReceived.keySet().iterator();
-            while (keys.hasNext()) {
-                String userKey = keys.next();
-                Log.d(TAG, "computeSyncInfoRequired user key:" + userKey);
-                if (myHandShakingMessages.keySet().contains(userKey)) {
-                    HandShakingInfo infoFromOtherDevice = uniqueHandShakeInfosReceived.get(userKey);
-                    HandShakingInfo infoFromMyDevice = myHandShakingMessages.get(userKey);
+        Iterator<String> keys = uniqueHandShakeInfosReceived.keySet().iterator();
+        while (keys.hasNext()) {
+            String userKey = keys.next();
+            Log.d(TAG, "computeSyncInfoRequired user key:" + userKey);
+            if (myHandShakingMessages.keySet().contains(userKey)) {
+                HandShakingInfo infoFromOtherDevice = uniqueHandShakeInfosReceived.get(userKey);
+                HandShakingInfo infoFromMyDevice = myHandShakingMessages.get(userKey);
 
-                    if(infoFromMyDevice != null && infoFromOtherDevice != null) {
-                        Long latestProfilePhotoInfo = infoFromOtherDevice.getProfileSequence();
-                        Long latestUserProfileId = p2PDBApiImpl.findLatestProfilePhotoId(infoFromOtherDevice.getUserId(), infoFromOtherDevice.getDeviceId());
+                if(infoFromMyDevice != null && infoFromOtherDevice != null) {
+                    Long latestProfilePhotoInfo = infoFromOtherDevice.getProfileSequence();
+                    Long latestUserProfileId = p2PDBApiImpl.findLatestProfilePhotoId(infoFromOtherDevice.getUserId(), infoFromOtherDevice.getDeviceId());
 
-                        if (latestUserProfileId != null && latestUserProfileId != null
-                                && latestUserProfileId.longValue() < latestProfilePhotoInfo.longValue()) {
-                            photoProfileUpdateInfosReceived.put(infoFromOtherDevice.getUserId(), infoFromOtherDevice);
-                        }
+                    if (latestUserProfileId != null && latestUserProfileId != null
+                            && latestUserProfileId.longValue() < latestProfilePhotoInfo.longValue()) {
+                        photoProfileUpdateInfosReceived.put(infoFromOtherDevice.getUserId(), infoFromOtherDevice);
+                    }
 
-                        long askedThreshold = infoFromMyDevice.getSequence().longValue() > SYNC_NUMBER_OF_LAST_MESSAGES ? infoFromMyDevice.getSequence().longValue() + 1 - SYNC_NUMBER_OF_LAST_MESSAGES : -1;
-                        if (infoFromMyDevice.getSequence().longValue() > infoFromOtherDevice.getSequence().longValue()) {
+                    long askedThreshold = infoFromMyDevice.getSequence().longValue() > SYNC_NUMBER_OF_LAST_MESSAGES ? infoFromMyDevice.getSequence().longValue() + 1 - SYNC_NUMBER_OF_LAST_MESSAGES : -1;
+                    if (infoFromMyDevice.getSequence().longValue() > infoFromOtherDevice.getSequence().longValue()) {
+                        Log.d(TAG, "removing from uniqueHandShakeInfosReceived for key:" + userKey + " as infoFromMyDevice.getSequence()" + infoFromMyDevice.getSequence() + " infoFromOtherDevice.getSequence()" + infoFromOtherDevice.getSequence());
+                        uniqueHandShakeInfosReceived.remove(userKey);
+                    } else if (infoFromMyDevice.getSequence().longValue() == infoFromOtherDevice.getSequence().longValue()) {
+                        //check for missing keys, if the same then remove otherwise only add missing key for infoFromMyDevice
+                        SequenceRanges missingSequencesToAsk = missingSequencesToAsk(infoFromMyDevice, infoFromOtherDevice, askedThreshold);
+                        if (!missingSequencesToAsk.isEmpty()) {
+                            infoFromOtherDevice.setMissingSequences(missingSequencesToAsk);
+                            infoFromOtherDevice.setStartingSequence(infoFromOtherDevice.getSequence() + 1);
+                        } else {
                             Log.d(TAG, "removing from uniqueHandShakeInfosReceived for key:" + userKey + " as infoFromMyDevice.getSequence()" + infoFromMyDevice.getSequence() + " infoFromOtherDevice.getSequence()" + infoFromOtherDevice.getSequence());
                             uniqueHandShakeInfosReceived.remove(userKey);
-                        } else if (infoFromMyDevice.getSequence().longValue() == infoFromOtherDevice.getSequence().longValue()) {
-                            //check for missing keys, if the same then remove otherwise only add missing key for infoFromMyDevice
-                            String myMissingMessageSequences = infoFromMyDevice.getMissingMessages();
-                            String otherDeviceMissingMessageSequences = infoFromOtherDevice.getMissingMessages();
-                            List<String> list1 = new ArrayList<String>();
-                            List<String> list2 = new ArrayList<String>();
-                            if (myMissingMessageSequences != null) {
-                                list1 = Lists.newArrayList(Splitter.on(",").split(myMissingMessageSequences));
-                            }
-                            if (otherDeviceMissingMessageSequences != null) {
-                                list2 = Lists.newArrayList(Splitter.on(",").split(otherDeviceMissingMessageSequences));
-                            }
-                            List<String> missingSequencesToAsk = new ArrayList<>(CollectionUtils.subtract(list1, list2));
-                            if (askedThreshold > -1) {
-                                CollectionUtils.filter(missingSequencesToAsk, new Predicate<String>() {
-                                    @Override
-                                    public boolean evaluate(String o) {
-                                        return o.compareTo(String.valueOf(askedThreshold)) >= 0;
-                                    }
-                                });
-                            }
-                            Set<String> missingMessagesSetToAsk = ImmutableSet.copyOf(missingSequencesToAsk);
-                            if (missingMessagesSetToAsk != null && missingMessagesSetToAsk.size() > 0) {
-                                infoFromOtherDevice.setMissingMessages(StringUtils.join(missingMessagesSetToAsk, ","));
-                                infoFromOtherDevice.setStartingSequence(infoFromOtherDevice.getSequence() + 1);
-                            } else {
-                                Log.d(TAG, "removing from uniqueHandShakeInfosReceived for key:" + userKey + " as infoFromMyDevice.getSequence()" + infoFromMyDevice.getSequence() + " infoFromOtherDevice.getSequence()" + infoFromOtherDevice.getSequence());
-                                uniqueHandShakeInfosReceived.remove(userKey);
-                            }
-                            missingSequencesToAsk = null;
-                            missingMessagesSetToAsk = null;
+                        }
 
+                    } else {
+                        Log.d(TAG, "uniqueHandShakeInfosReceived for key:" + userKey + " as infoFromOtherDevice.setStartingSequence" + infoFromMyDevice.getSequence().longValue());
+                        // take other device's missing keys remove
+                        // take my missing keys and remove if the same as other device's missing keys
+                        // ask for all messages my sequence + 1
+                        // ask for all my missing keys messages also
+
+                        SequenceRanges missingSequencesToAsk = missingSequencesToAsk(infoFromMyDevice, infoFromOtherDevice, askedThreshold);
+                        infoFromOtherDevice.setMissingSequences(missingSequencesToAsk.isEmpty() ? null : missingSequencesToAsk);
+                        //infoFromOtherDevice.setStartingSequence(infoFromMyDevice.getSequence().longValue() + 1);
+                        if (infoFromOtherDevice.getSequence() > SYNC_NUMBER_OF_LAST_MESSAGES) {
+                            infoFromOtherDevice.setStartingSequence(infoFromOtherDevice.getSequence() - SYNC_NUMBER_OF_LAST_MESSAGES + 1);
                         } else {
-                            Log.d(TAG, "uniqueHandShakeInfosReceived for key:" + userKey + " as infoFromOtherDevice.setStartingSequence" + infoFromMyDevice.getSequence().longValue());
-                            // take other device's missing keys remove
-                            // take my missing keys and remove if the same as other device's missing keys
-                            // ask for all messages my sequence + 1
-                            // ask for all my missing keys messages also
-
-                            String myMissingMessageSequences = infoFromMyDevice.getMissingMessages();
-                            String otherDeviceMissingMessageSequences = infoFromOtherDevice.getMissingMessages();
-                            List<String> list1 = new ArrayList<String>();
-                            List<String> list2 = new ArrayList<String>();
-                            if (myMissingMessageSequences != null) {
-                                list1 = Lists.newArrayList(Splitter.on(",").split(myMissingMessageSequences));
-                            }
-                            if (otherDeviceMissingMessageSequences != null) {
-                                list2 = Lists.newArrayList(Splitter.on(",").split(otherDeviceMissingMessageSequences));
-                            }
-                            List<String> missingSequencesToAsk = new ArrayList<>(CollectionUtils.subtract(list1, list2));
-                            if (askedThreshold > -1) {
-                                CollectionUtils.filter(missingSequencesToAsk, new Predicate<String>() {
-                                    @Override
-                                    public boolean evaluate(String o) {
-                                        return o.compareTo(String.valueOf(askedThreshold)) >= 0;
-                                    }
-                                });
-                            }
-                            Set<String> missingMessagesSetToAsk = ImmutableSet.copyOf(missingSequencesToAsk);
-                            if (missingMessagesSetToAsk != null && missingMessagesSetToAsk.size() > 0) {
-                                infoFromOtherDevice.setMissingMessages(StringUtils.join(missingMessagesSetToAsk, ","));
-                            }
-                            //infoFromOtherDevice.setStartingSequence(infoFromMyDevice.getSequence().longValue() + 1);
-                            if (infoFromOtherDevice.getSequence() > SYNC_NUMBER_OF_LAST_MESSAGES) {
-                                infoFromOtherDevice.setStartingSequence(infoFromOtherDevice.getSequence() - SYNC_NUMBER_OF_LAST_MESSAGES + 1);
-                            } else {
-                                infoFromOtherDevice.setStartingSequence(infoFromMyDevice.getSequence().longValue() + 1);
-                            }
-
-                            missingSequencesToAsk = null;
-                            missingMessagesSetToAsk = null;
+                            infoFromOtherDevice.setStartingSequence(infoFromMyDevice.getSequence().longValue() + 1);
                         }
                     }
                 }
             }
+        }
 
 
-            List<HandShakingInfo> valuesToSend = new ArrayList<HandShakingInfo>();
-
-            Collection<HandShakingInfo> photoValues = photoProfileUpdateInfosReceived.values();
-            Iterator itPhotoValues = photoValues.iterator();
-            while (itPhotoValues.hasNext()) {
-                HandShakingInfo t = (HandShakingInfo) itPhotoValues.next();
-                HandShakingInfo n = new HandShakingInfo(t.getUserId(), t.getDeviceId(), t.getProfileSequence(), null, null);
-                n.setFrom(t.getFrom());
-                n.setStartingSequence(Long.valueOf(t.getProfileSequence()));
-                n.setSequence(Long.valueOf(t.getProfileSequence()));
-                valuesToSend.add(n);
-            }
+        List<HandShakingInfo> valuesToSend = new ArrayList<HandShakingInfo>();
 
-            Collection<HandShakingInfo> values = uniqueHandShakeInfosReceived.values();
-            Iterator itValues = values.iterator();
-            while (itValues.hasNext()) {
-                HandShakingInfo t = (HandShakingInfo) itValues.next();
-                Log.d(TAG, "validating : " + t.getUserId() + " " + t.getDeviceId() + " " + t.getStartingSequence() + " " + t.getSequence());
-
-                if (t.getMissingMessages() != null && t.getMissingMessages().length() > 0) {
+        Collection<HandShakingInfo> photoValues = photoProfileUpdateInfosReceived.values();
+        Iterator itPhotoValues = photoValues.iterator();
+        while (itPhotoValues.hasNext()) {
+            HandShakingInfo t = (HandShakingInfo) itPhotoValues.next();
+            HandShakingInfo n = new HandShakingInfo(t.getUserId(), t.getDeviceId(), t.getProfileSequence(), null, null);
+            n.setFrom(t.getFrom());
+            n.setStartingSequence(Long.valueOf(t.getProfileSequence()));
+            n.setSequence(Long.valueOf(t.getProfileSequence()));
+            valuesToSend.add(n);
+        }
 
-                    List<String> missingMessages = Lists.newArrayList(Splitter.on(",").split(t.getMissingMessages()));
-                    Set<String> missingMessagesSet = ImmutableSet.copyOf(missingMessages);
-                    missingMessages = null;
-                    for (String m : missingMessagesSet) {
-                        HandShakingInfo n = new HandShakingInfo(t.getUserId(), t.getDeviceId(), t.getSequence(), null, null);
-                        n.setFrom(t.getFrom());
-                        n.setStartingSequence(Long.valueOf(m));
-                        n.setSequence(Long.valueOf(m));
-                        valuesToSend.add(n);
-                    }
+        Collection<HandShakingInfo> values = uniqueHandShakeInfosReceived.values();
+        Iterator itValues = values.iterator();
+        while (itValues.hasNext()) {
+            HandShakingInfo t = (HandShakingInfo) itValues.next();
+            Log.d(TAG, "validating : " + t.getUserId() + " " + t.getDeviceId() + " " + t.getStartingSequence() + " " + t.getSequence());
+
+            // one request item per missing range
+            SequenceRanges missingSequences = t.getMissingSequences();
+            if (missingSequences != null) {
+                for (int r = 0; r < missingSequences.getRangeCount(); r++) {
+                    HandShakingInfo n = new HandShakingInfo(t.getUserId(), t.getDeviceId(), t.getSequence(), null, null);
+                    n.setFrom(t.getFrom());
+                    n.setStartingSequence(missingSequences.startOf(r));
+                    n.setSequence(missingSequences.endOf(r));
+                    valuesToSend.add(n);
                 }
+            }
 
 
-                if (t.getStartingSequence() == null) {
-                    t.setMissingMessages(null);
-                    valuesToSend.add(t);
-                } else if (t.getStartingSequence() != null && t.getStartingSequence().longValue() <= t.getSequence().longValue()) {
-                    t.setMissingMessages(null);
-                    valuesToSend.add(t);
-                }
+            if (t.getStartingSequence() == null) {
+                t.setMissingSequences(null);
+                valuesToSend.add(t);
+            } else if (t.getStartingSequence() != null && t.getStartingSequence().longValue() <= t.getSequence().longValue()) {
+                t.setMissingSequences(null);
+                valuesToSend.add(t);
             }
-            return valuesToSend;
         }
+        return valuesToSend;
+    }
+
+    private static long missingCount(HandShakingInfo info) {
+        return info.getMissingSequences() != null ? info.getMissingSequences().size() : 0;
+    }
+
+    // sequences this device misses that the other device holds, from askedThreshold on
+    private static SequenceRanges missingSequencesToAsk(HandShakingInfo infoFromMyDevice, HandShakingInfo infoFromOtherDevice, long askedThreshold) {
+        SequenceRanges toAsk = infoFromMyDevice.getMissingSequences() != null ? new SequenceRanges(infoFromMyDevice.getMissingSequences()) : new SequenceRanges();
+        if (infoFromOtherDevice.getMissingSequences() != null) {
+            toAsk.removeAll(infoFromOtherDevice.getMissingSequences());
+        }
+        if (askedThreshold > -1) {
+            toAsk.removeThrough(askedThreshold - 1);
+        }
+        return toAsk;
     }
 
     /*
@@ -807,16 +1401,6 @@ public class MulticastManager {
         return computedMessages;
     }
 
-    private void sendMessages(List<String> computedMessages) {
-        if (computedMessages != null && computedMessages.size() > 0) {
-            Iterator<String> it = computedMessages.iterator();
-            while (it.hasNext()) {
-                String p = it.next();
-                instance.sendMulticastMessage(p);
-            }
-        }
-    }
-
     private boolean shouldSendAckForHandShakingMessage(HandShakingMessage handShakingMessage) {
         boolean sendAck = handShakingMessage.getReply().equalsIgnoreCase("true");
         Log.d(TAG, "shouldSendAckForHandShaking: " + handShakingMessage.getFrom() + " sendAck:" + sendAck);
@@ -826,15 +1410,22 @@ public class MulticastManager {
 
     public HandShakingMessage parseHandShakingMessage(String message) {
         HandShakingMessage handShakingMessage = p2PDBApiImpl.deSerializeHandShakingInformationFromJson(message);
+        if (handShakingMessage != null) {
+            handShakingMessage = handShakingDigests.applyIncoming(handShakingPages.add(handShakingMessage), P2PContext.getCurrentDevice(), System.currentTimeMillis());
+        }
+        storeHandShakingMessage(handShakingMessage);
+        return handShakingMessage;
+    }
+
+    private void storeHandShakingMessage(HandShakingMessage handShakingMessage) {
         if (handShakingMessage != null) {
             Log.d(TAG, "storing handShakingMessage from : " + handShakingMessage.getFrom() + " in handShakingMessagesInCurrentLoop");
             instance.handShakingMessagesInCurrentLoop.put(handShakingMessage.getFrom(), handShakingMessage);
         }
-        return handShakingMessage;
     }
 
-    public Set<String> getAllSyncInfosReceived() {
-        return allSyncInfosReceived;
+    public ReceivedSequenceTracker getReceivedSequences() {
+        return receivedSequences;
     }
 
     public void sendFindBuddyMessage() {
@@ -3,35 +3,204 @@ package org.chimple.flores.multicast;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MulticastSenderThread extends MulticastThread {
 
     private static final String TAG = MulticastSenderThread.class.getSimpleName();
-    private String messageToSend;
+    // the largest message with a parity frame after every fragment, twice over
+    private static final int MAX_QUEUED_DATAGRAMS = 4 * MessageFragmenter.MAX_FRAGMENTS;
+    private static final long SEND_RATE_WINDOW = 1000; // 1 sec
 
-    public MulticastSenderThread(Context context, String multicastIP, int multicastPort, String messageToSend) {
-        super("MulticastSenderThread", context, multicastIP, multicastPort, new Handler(Looper.getMainLooper()));
-        this.messageToSend = messageToSend;
+    private final BlockingQueue<OutgoingDatagram> sendQueue = new ArrayBlockingQueue<OutgoingDatagram>(MAX_QUEUED_DATAGRAMS);
+    private final AtomicLong sentPackets = new AtomicLong();
+    private final AtomicLong droppedPackets = new AtomicLong();
+    private final MessageFragmenter fragmenter = new MessageFragmenter();
+    private final FecEncoder fecEncoder = new FecEncoder(0);
+    private final PayloadCompressor compressor = new PayloadCompressor();
+    private volatile boolean compressionEnabled = false;
+    private final RateController rateController;
+
+    private long rateWindowStart = 0;
+    private long packetsInRateWindow = 0;
+    private volatile float sendRate = 0;
+    private volatile long lastSentAt = 0;
+
+    public MulticastSenderThread(Context context, String multicastIP, int multicastPort, RateController rateController) {
+        super(TAG, context, multicastIP, multicastPort, new Handler(Looper.getMainLooper()));
+        this.rateController = rateController;
+    }
+
+    public boolean enqueue(byte[] payload) {
+        return enqueue(payload, null);
+    }
+
+    /*
+        A target address sends the message to that device alone over unicast, which Wi-Fi retries at
+        the link layer and sends at a higher rate, so it goes without FEC parity. null sends it to the group.
+     */
+    public boolean enqueue(byte[] payload, InetAddress target) {
+        if (payload == null || !running.get()) {
+            return false;
+        }
+        byte[] message = compressionEnabled ? compressor.compress(payload) : payload;
+        if (message.length > MessageFragmenter.MAX_MESSAGE_SIZE) {
+            Log.e(TAG, "message of " + message.length + " bytes is over MAX_MESSAGE_SIZE, not sending it");
+            return false;
+        }
+        List<byte[]> fragments = fragmenter.fragment(message);
+        synchronized (sendQueue) {
+            // a message is queued with all of its fragments or not at all, worst case a parity frame follows each
+            if (sendQueue.remainingCapacity() < 2 * fragments.size()) {
+                droppedPackets.addAndGet(fragments.size());
+                Log.d(TAG, "send queue full, dropping message. dropped so far: " + droppedPackets.get());
+                return false;
+            }
+            for (byte[] datagram : target != null ? fragments : fecEncoder.encode(fragments)) {
+                sendQueue.add(new OutgoingDatagram(datagram, target));
+            }
+        }
+        return true;
     }
 
+    /*
+        Sends only, from an ephemeral port outside the group. A second socket on the group port would
+        share unicast sent to it with the listener, and the kernel hands each datagram to one of them.
+     */
+    @Override
+    MulticastSocket openSocket(NetworkInterface networkInterface) throws IOException {
+        MulticastSocket socket = new MulticastSocket();
+        socket.setNetworkInterface(networkInterface);
+        return socket;
+    }
 
     public void run() {
         super.run();
+        if (multicastSocket == null) {
+            return;
+        }
+
+        InetAddress groupAddress;
         try {
-            if(messageToSend != null) {
-                byte[] bytesToSend = messageToSend.getBytes();
-                multicastSocket.send(new DatagramPacket(bytesToSend, bytesToSend.length, InetAddress.getByName(multicastIP), multicastPort));
-                multicastSocket.close();
-            }
+            groupAddress = InetAddress.getByName(multicastIP);
         } catch (IOException e) {
             e.printStackTrace();
+            return;
+        }
+        DatagramPacket packet = new DatagramPacket(new byte[0], 0, groupAddress, multicastPort);
+
+        while (running.get()) {
+            OutgoingDatagram next;
+            try {
+                next = nextToSend();
+                rateController.acquire();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            try {
+                packet.setData(next.data);
+                packet.setAddress(next.target != null ? next.target : groupAddress);
+                multicastSocket.send(packet);
+                recordPacketSent();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        Log.d(TAG, "MulticastSenderThread stopped with pending messages: " + sendQueue.size());
+    }
+
+    // once the queue drains, the partially filled FEC block is closed with its parity
+    private OutgoingDatagram nextToSend() throws InterruptedException {
+        synchronized (sendQueue) {
+            OutgoingDatagram next = sendQueue.poll();
+            if (next != null) {
+                return next;
+            }
+            byte[] parity = fecEncoder.flush();
+            if (parity != null) {
+                return new OutgoingDatagram(parity, null);
+            }
+        }
+        return sendQueue.take();
+    }
+
+    // only once every peer has advertised it can inflate
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    public void setFecBlockSize(int blockSize) {
+        fecEncoder.setBlockSize(blockSize);
+    }
+
+    private void recordPacketSent() {
+        sentPackets.incrementAndGet();
+        long now = SystemClock.elapsedRealtime();
+        lastSentAt = now;
+        if (rateWindowStart == 0) {
+            rateWindowStart = now;
+        }
+        packetsInRateWindow++;
+        long elapsed = now - rateWindowStart;
+        if (elapsed >= SEND_RATE_WINDOW) {
+            sendRate = packetsInRateWindow * 1000f / elapsed;
+            rateWindowStart = now;
+            packetsInRateWindow = 0;
+        }
+    }
+
+    public int getQueueDepth() {
+        return sendQueue.size();
+    }
+
+    public long getSentPackets() {
+        return sentPackets.get();
+    }
+
+    public long getDroppedPackets() {
+        return droppedPackets.get();
+    }
+
+    // packets per second measured over the last completed window
+    public float getSendRate() {
+        if (SystemClock.elapsedRealtime() - lastSentAt > 2 * SEND_RATE_WINDOW) {
+            return 0;
+        }
+        return sendRate;
+    }
+
+    // target null for the group
+    private static class OutgoingDatagram {
+        final byte[] data;
+        final InetAddress target;
+
+        OutgoingDatagram(byte[] data, InetAddress target) {
+            this.data = data;
+            this.target = target;
         }
     }
 
     public void cleanUp() {
+        sendQueue.clear();
+        if (multicastSocket != null && !running.get() && !multicastSocket.isClosed()) {
+            try {
+                Log.d(TAG, "MulticastSenderThread -> multicastSocket -> closed");
+                this.multicastSocket.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
     }
 }
@@ -34,20 +34,10 @@ public class MulticastThread extends Thread {
 
     public void run() {
         try {
-            WifiManager wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
-            WifiInfo wifiInfo = wifiManager.getConnectionInfo();
-            int wifiIPInt = wifiInfo.getIpAddress();
-            byte[] wifiIPByte = new byte[]{
-                    (byte) (wifiIPInt & 0xff),
-                    (byte) (wifiIPInt >> 8 & 0xff),
-                    (byte) (wifiIPInt >> 16 & 0xff),
-                    (byte) (wifiIPInt >> 24 & 0xff)};
-            this.inetAddress = InetAddress.getByAddress(wifiIPByte);
+            this.inetAddress = getWifiAddress(context);
             NetworkInterface networkInterface = NetworkInterface.getByInetAddress(inetAddress);
 
-            this.multicastSocket = new MulticastSocket(multicastPort);
-            multicastSocket.setNetworkInterface(networkInterface);
-            multicastSocket.joinGroup(InetAddress.getByName(multicastIP));
+            this.multicastSocket = openSocket(networkInterface);
         } catch (BindException e) {
             e.printStackTrace();
             handler.post(new Runnable() {
@@ -75,10 +65,34 @@ public class MulticastThread extends Thread {
         }
     }
 
+    // bound to the group port and joined, receives the group and unicast sent to the port
+    MulticastSocket openSocket(NetworkInterface networkInterface) throws IOException {
+        MulticastSocket socket = new MulticastSocket(multicastPort);
+        socket.setNetworkInterface(networkInterface);
+        socket.joinGroup(InetAddress.getByName(multicastIP));
+        return socket;
+    }
+
+    static InetAddress getWifiAddress(Context context) throws IOException {
+        WifiManager wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+        WifiInfo wifiInfo = wifiManager.getConnectionInfo();
+        int wifiIPInt = wifiInfo.getIpAddress();
+        byte[] wifiIPByte = new byte[]{
+                (byte) (wifiIPInt & 0xff),
+                (byte) (wifiIPInt >> 8 & 0xff),
+                (byte) (wifiIPInt >> 16 & 0xff),
+                (byte) (wifiIPInt >> 24 & 0xff)};
+        return InetAddress.getByAddress(wifiIPByte);
+    }
+
     public String getLocalIP() {
         return this.inetAddress.getHostAddress();
     }
 
+    InetAddress getLocalAddress() {
+        return this.inetAddress;
+    }
+
     void stopRunning() {
         this.running.set(false);
     }
@@ -0,0 +1,224 @@
+package org.chimple.flores.multicast;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.chimple.flores.application.P2PContext;
+import org.chimple.flores.db.P2PDBApiImpl;
+import org.chimple.flores.db.SequenceRanges;
+import org.chimple.flores.db.entity.NackMessage;
+import org.chimple.flores.db.entity.NackRange;
+import org.chimple.flores.db.entity.P2PSyncInfo;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/*
+    Receivers NACK only the sequence ranges they are missing, after a random delay so that
+    a NACK overheard from another peer for the same ranges suppresses theirs. Any peer
+    holding the data schedules the repair the same way and drops whatever it overhears
+    someone else repairing first, so one lost packet costs one NACK and one repair.
+ */
+public class NackManager {
+
+    private static final String TAG = NackManager.class.getSimpleName();
+
+    private static final int NACK_DELAY_MIN = 20; // ms
+    private static final int NACK_DELAY_MAX = 200;
+    // the originating device answers first, other holders back off longer
+    private static final int OWN_REPAIR_DELAY_MAX = 20;
+    private static final int REPAIR_DELAY_MIN = 40;
+    private static final int REPAIR_DELAY_MAX = 250;
+
+    private final MulticastManager manager;
+    private final P2PDBApiImpl p2PDBApiImpl;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Random random = new Random();
+
+    private final Map<String, PendingRanges> pendingNacks = new LinkedHashMap<String, PendingRanges>();
+    private final Map<String, PendingRanges> pendingRepairs = new LinkedHashMap<String, PendingRanges>();
+    // devices whose NACKs the pending repairs answer
+    private final Set<String> repairRequesters = new HashSet<String>();
+    private boolean nackScheduled = false;
+    private boolean repairScheduled = false;
+
+    private final Runnable nackRunnable = new Runnable() {
+        @Override
+        public void run() {
+            AsyncTask.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sendNacks();
+                }
+            });
+        }
+    };
+
+    private final Runnable repairRunnable = new Runnable() {
+        @Override
+        public void run() {
+            AsyncTask.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sendRepairs();
+                }
+            });
+        }
+    };
+
+    public NackManager(MulticastManager manager, P2PDBApiImpl p2PDBApiImpl) {
+        this.manager = manager;
+        this.p2PDBApiImpl = p2PDBApiImpl;
+    }
+
+    public void requestRepair(List<NackRange> missing) {
+        if (missing == null || missing.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            for (NackRange r : missing) {
+                rangesFor(pendingNacks, r.getUserId(), r.getDeviceId()).add(r.getStartingSequence(), r.getEndingSequence());
+            }
+            if (nackScheduled) {
+                return;
+            }
+            nackScheduled = true;
+        }
+        handler.postDelayed(nackRunnable, randomDelay(NACK_DELAY_MIN, NACK_DELAY_MAX));
+    }
+
+    public void onNackReceived(NackMessage nack) {
+        if (nack == null || nack.getRanges() == null || P2PContext.getCurrentDevice().equals(nack.getFrom())) {
+            return;
+        }
+        boolean ownData = false;
+        boolean schedule;
+        synchronized (this) {
+            for (NackRange r : nack.getRanges()) {
+                if (r.getUserId() == null || r.getDeviceId() == null || r.getStartingSequence() == null || r.getEndingSequence() == null) {
+                    continue;
+                }
+                // someone else already asked for this, our own NACK would be redundant
+                PendingRanges ownNack = pendingNacks.get(key(r.getUserId(), r.getDeviceId()));
+                if (ownNack != null) {
+                    ownNack.remove(r.getStartingSequence(), r.getEndingSequence());
+                }
+                rangesFor(pendingRepairs, r.getUserId(), r.getDeviceId()).add(r.getStartingSequence(), r.getEndingSequence());
+                ownData = ownData || P2PContext.getCurrentDevice().equals(r.getDeviceId());
+            }
+            repairRequesters.add(nack.getFrom());
+            schedule = !repairScheduled && !pendingRepairs.isEmpty();
+            repairScheduled = repairScheduled || schedule;
+        }
+        if (schedule) {
+            long delay = ownData ? randomDelay(0, OWN_REPAIR_DELAY_MAX) : randomDelay(REPAIR_DELAY_MIN, REPAIR_DELAY_MAX);
+            handler.postDelayed(repairRunnable, delay);
+        }
+    }
+
+    // a record on the wire answers both our NACK for it and any repair we were about to send
+    public synchronized void onRecordSeen(String userId, String deviceId, long sequence) {
+        String key = key(userId, deviceId);
+        PendingRanges nack = pendingNacks.get(key);
+        if (nack != null) {
+            nack.remove(sequence, sequence);
+        }
+        PendingRanges repair = pendingRepairs.get(key);
+        if (repair != null) {
+            repair.remove(sequence, sequence);
+        }
+    }
+
+    public void cancel() {
+        handler.removeCallbacks(nackRunnable);
+        handler.removeCallbacks(repairRunnable);
+        synchronized (this) {
+            pendingNacks.clear();
+            pendingRepairs.clear();
+            repairRequesters.clear();
+            nackScheduled = false;
+            repairScheduled = false;
+        }
+    }
+
+    private void sendNacks() {
+        List<NackRange> ranges;
+        synchronized (this) {
+            nackScheduled = false;
+            ranges = drain(pendingNacks);
+        }
+        if (ranges.isEmpty()) {
+            Log.d(TAG, "NACK suppressed, every range was requested or repaired by a peer");
+            return;
+        }
+        Log.d(TAG, "sending NACK for ranges: " + ranges);
+        manager.sendNackMessage(new NackMessage(P2PContext.getCurrentDevice(), ranges));
+    }
+
+    private void sendRepairs() {
+        List<NackRange> ranges;
+        String requester;
+        synchronized (this) {
+            repairScheduled = false;
+            ranges = drain(pendingRepairs);
+            // peers that overheard a NACK suppressed theirs and expect the repair on the group, so only
+            // a repair for the single other device on the network goes over unicast
+            requester = repairRequesters.size() == 1 && manager.getPeerCount() <= 1 ? repairRequesters.iterator().next() : null;
+            repairRequesters.clear();
+        }
+        if (ranges.isEmpty()) {
+            Log.d(TAG, "repair suppressed, a peer already repaired every range");
+            return;
+        }
+        List<P2PSyncInfo> repairs = p2PDBApiImpl.fetchP2PSyncInfosByNackRanges(ranges);
+        Log.d(TAG, "repairing ranges: " + ranges + " with records: " + repairs.size());
+        manager.sendSyncInfos(repairs, requester);
+    }
+
+    private static List<NackRange> drain(Map<String, PendingRanges> pending) {
+        List<NackRange> ranges = new ArrayList<NackRange>();
+        for (PendingRanges p : pending.values()) {
+            for (int i = 0; i < p.getRangeCount(); i++) {
+                ranges.add(new NackRange(p.userId, p.deviceId, p.startOf(i), p.endOf(i)));
+            }
+        }
+        pending.clear();
+        return ranges;
+    }
+
+    private static PendingRanges rangesFor(Map<String, PendingRanges> pending, String userId, String deviceId) {
+        String key = key(userId, deviceId);
+        PendingRanges ranges = pending.get(key);
+        if (ranges == null) {
+            ranges = new PendingRanges(userId, deviceId);
+            pending.put(key, ranges);
+        }
+        return ranges;
+    }
+
+    private static String key(String userId, String deviceId) {
+        return userId + "_" + deviceId;
+    }
+
+    private long randomDelay(int min, int max) {
+        return min + random.nextInt(max - min + 1);
+    }
+
+    // pending sequence ranges of one user and device
+    private static class PendingRanges extends SequenceRanges {
+        final String userId;
+        final String deviceId;
+
+        PendingRanges(String userId, String deviceId) {
+            this.userId = userId;
+            this.deviceId = deviceId;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.chimple.flores.multicast;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PacketBufferPool {
+
+    public static final int MAX_PACKET_SIZE = 61440;
+
+    // array backed so that acquire/release do not allocate queue nodes
+    private final BlockingQueue<byte[]> freeBuffers;
+    private final int bufferSize;
+    private final AtomicLong allocatedBuffers = new AtomicLong();
+
+    public PacketBufferPool(int poolSize, int bufferSize) {
+        this.freeBuffers = new ArrayBlockingQueue<byte[]>(poolSize);
+        this.bufferSize = bufferSize;
+        for (int i = 0; i < poolSize; i++) {
+            freeBuffers.offer(allocate());
+        }
+    }
+
+    public byte[] acquire() {
+        byte[] buffer = freeBuffers.poll();
+        return buffer != null ? buffer : allocate();
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer != null && buffer.length == bufferSize) {
+            // extra buffers allocated under pressure are left to the GC
+            freeBuffers.offer(buffer);
+        }
+    }
+
+    public int getAvailableBuffers() {
+        return freeBuffers.size();
+    }
+
+    public long getAllocatedBuffers() {
+        return allocatedBuffers.get();
+    }
+
+    private byte[] allocate() {
+        allocatedBuffers.incrementAndGet();
+        return new byte[bufferSize];
+    }
+}
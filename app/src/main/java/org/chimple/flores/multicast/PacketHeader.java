@@ -0,0 +1,147 @@
+package org.chimple.flores.multicast;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+import static org.chimple.flores.multicast.MessageFragmenter.FRAME_MAGIC;
+
+/*
+    Fixed envelope in front of every protocol message, so a receiver can dispatch or drop
+    a packet from its first bytes without parsing the JSON or binary body.
+    [FRAME_MAGIC][FRAME_PACKET][version: byte][type: byte][flags: byte]
+    [sender hash: int][target hash: int][payload length: int][crc32 of payload: int][payload]
+    Device hashes are case insensitive, like device id comparisons elsewhere. BROADCAST targets everyone.
+ */
+public class PacketHeader {
+
+    public static final byte FRAME_PACKET = 0x06;
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 21;
+
+    public static final byte TYPE_HANDSHAKE = 1;
+    public static final byte TYPE_SYNC_REQUEST = 2;
+    public static final byte TYPE_SYNC_INFO = 3;
+    public static final byte TYPE_NACK = 4;
+    public static final byte TYPE_RECONCILE = 5;
+
+    // payload is a BinaryMessageCodec message, otherwise UTF-8 JSON
+    public static final byte FLAG_BINARY = 0x01;
+
+    public static final int BROADCAST = 0;
+
+    private final byte type;
+    private final byte flags;
+    private final int senderHash;
+    private final int targetHash;
+    private final int payloadLength;
+    private final int checksum;
+
+    private PacketHeader(byte type, byte flags, int senderHash, int targetHash, int payloadLength, int checksum) {
+        this.type = type;
+        this.flags = flags;
+        this.senderHash = senderHash;
+        this.targetHash = targetHash;
+        this.payloadLength = payloadLength;
+        this.checksum = checksum;
+    }
+
+    public static byte[] wrap(byte type, byte flags, String senderDeviceId, String targetDeviceId, byte[] payload) {
+        ByteBuffer packet = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        packet.put(FRAME_MAGIC)
+                .put(FRAME_PACKET)
+                .put(VERSION)
+                .put(type)
+                .put(flags)
+                .putInt(deviceHash(senderDeviceId))
+                .putInt(deviceHash(targetDeviceId))
+                .putInt(payload.length)
+                .putInt(checksum(payload, 0, payload.length))
+                .put(payload);
+        return packet.array();
+    }
+
+    public static byte[] wrap(byte type, String senderDeviceId, String targetDeviceId, String json) {
+        return wrap(type, (byte) 0, senderDeviceId, targetDeviceId, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // reads the header only, returns null for anything that is not an envelope of a version this device speaks
+    public static PacketHeader read(byte[] packet, int length) {
+        if (!isPacket(packet, length) || packet[2] != VERSION) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.wrap(packet, 3, HEADER_SIZE - 3);
+        byte type = header.get();
+        byte flags = header.get();
+        int senderHash = header.getInt();
+        int targetHash = header.getInt();
+        int payloadLength = header.getInt();
+        int checksum = header.getInt();
+        if (payloadLength != length - HEADER_SIZE) {
+            return null;
+        }
+        return new PacketHeader(type, flags, senderHash, targetHash, payloadLength, checksum);
+    }
+
+    public static boolean isPacket(byte[] packet, int length) {
+        return length >= HEADER_SIZE && packet[0] == FRAME_MAGIC && packet[1] == FRAME_PACKET;
+    }
+
+    // 0 is reserved for BROADCAST
+    public static int deviceHash(String deviceId) {
+        if (deviceId == null) {
+            return BROADCAST;
+        }
+        int hash = deviceId.toLowerCase(Locale.ROOT).hashCode();
+        return hash != BROADCAST ? hash : 1;
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    public boolean isValid(byte[] packet) {
+        return checksum(packet, HEADER_SIZE, payloadLength) == checksum;
+    }
+
+    public boolean isFrom(int deviceHash) {
+        return senderHash == deviceHash;
+    }
+
+    public boolean isFor(int deviceHash) {
+        return targetHash == BROADCAST || targetHash == deviceHash;
+    }
+
+    public String json(byte[] packet) {
+        return new String(packet, HEADER_SIZE, payloadLength, StandardCharsets.UTF_8);
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public boolean isBinary() {
+        return (flags & FLAG_BINARY) != 0;
+    }
+
+    public int getSenderHash() {
+        return senderHash;
+    }
+
+    public int getTargetHash() {
+        return targetHash;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    @Override
+    public String toString() {
+        return "PacketHeader{type=" + type + ", flags=" + flags + ", sender=" + senderHash
+                + ", target=" + targetHash + ", length=" + payloadLength + "}";
+    }
+}
@@ -0,0 +1,105 @@
+package org.chimple.flores.multicast;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.chimple.flores.multicast.MessageFragmenter.FRAME_MAGIC;
+
+/*
+    DEFLATE with a preset dictionary of the protocol's own JSON, so even a single small
+    record compresses: [FRAME_MAGIC][FRAME_DEFLATE][inflated length: int][deflate stream]
+    Payloads that do not shrink are sent unchanged.
+ */
+public class PayloadCompressor {
+
+    private static final String TAG = PayloadCompressor.class.getSimpleName();
+
+    public static final byte FRAME_DEFLATE = 0x04;
+    static final int DEFLATE_HEADER_SIZE = 6;
+    static final int MIN_COMPRESS_SIZE = 128;
+    static final int MAX_INFLATED_SIZE = 4 * 1024 * 1024;
+
+    // zlib favours matches near the end of the dictionary, so the most repeated strings go last
+    static final byte[] DICTIONARY = ("\"mt\":\"nack\",\"l\":[{\"u\":\"\",\"d\":\"\",\"s\":,\"e\":}]"
+            + "{\"mt\":\"syncInfoRequestMessage\",\"md\":\"\",\"s\":\"\",\"l\":[{\"d\":\"\",\"u\":\"\",\"s\":,\"ss\":}]}"
+            + "{\"mt\":\"handshaking\",\"r\":\"false\",\"r\":\"true\",\"f\":\"\",\"rc\":,\"dc\":,\"oc\":,"
+            + "\"i\":[{\"u\":\"\",\"d\":\"\",\"s\":,\"ms\":\"111111111111\",\"ps\":},"
+            + "\"messageType\":\"Photo\",\"messageType\":\"Game\",\"messageType\":\"missing\","
+            + "{\"mt\":\"syncInfoMessage\",\"i\":[{\"id\":,\"userId\":\"\",\"deviceId\":\"\",\"sequence\":,"
+            + "\"messageType\":\"Chat\",\"recipientUserId\":\"\",\"message\":\"\",\"status\":true,"
+            + "\"sessionId\":\"\",\"step\":,\"createdAt\":\"20\",\"sender\":\"\"},"
+            + "{\"userId\":\"-\",\"deviceId\":\"-\",\"sequence\":\"messageType\":\"Chat\",\"recipientUserId\":\"\",\"message\":\"\"}],\"s\":\"\"}")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    private final Inflater inflater = new Inflater();
+    private final byte[] chunk = new byte[4096];
+
+    // returns the compressed frame, or the payload itself when compressing would not save anything
+    public synchronized byte[] compress(byte[] payload) {
+        if (payload.length < MIN_COMPRESS_SIZE) {
+            return payload;
+        }
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(payload);
+        deflater.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 2 + DEFLATE_HEADER_SIZE);
+        out.write(FRAME_MAGIC);
+        out.write(FRAME_DEFLATE);
+        out.write(ByteBuffer.allocate(4).putInt(payload.length).array(), 0, 4);
+        while (!deflater.finished()) {
+            int n = deflater.deflate(chunk);
+            out.write(chunk, 0, n);
+            if (out.size() >= payload.length) {
+                return payload;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // returns null for a corrupt or oversized frame
+    public synchronized byte[] decompress(byte[] frame, int length) {
+        int inflatedLength = ByteBuffer.wrap(frame, 2, 4).getInt();
+        if (inflatedLength < 0 || inflatedLength > MAX_INFLATED_SIZE) {
+            Log.d(TAG, "dropping compressed payload with length " + inflatedLength);
+            return null;
+        }
+        byte[] payload = new byte[inflatedLength];
+        inflater.reset();
+        inflater.setInput(frame, DEFLATE_HEADER_SIZE, length - DEFLATE_HEADER_SIZE);
+        try {
+            int offset = 0;
+            while (offset < inflatedLength) {
+                int n = inflater.inflate(payload, offset, inflatedLength - offset);
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        break;
+                    }
+                }
+                offset += n;
+            }
+            if (offset != inflatedLength) {
+                Log.d(TAG, "compressed payload truncated at " + offset + " of " + inflatedLength);
+                return null;
+            }
+        } catch (DataFormatException e) {
+            Log.d(TAG, "dropping corrupt compressed payload: " + e.getMessage());
+            return null;
+        }
+        return payload;
+    }
+
+    public static boolean isCompressed(byte[] payload, int length) {
+        return length > DEFLATE_HEADER_SIZE && payload[0] == FRAME_MAGIC && payload[1] == FRAME_DEFLATE;
+    }
+}
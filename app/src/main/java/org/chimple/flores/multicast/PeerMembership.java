@@ -0,0 +1,251 @@
+package org.chimple.flores.multicast;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.chimple.flores.application.P2PContext;
+import org.chimple.flores.db.P2PDBApiImpl;
+import org.chimple.flores.db.entity.HandShakingMessage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    Devices heard on the group: the address each last sent from and when, the digest of its state,
+    the round trip to it and the loss it reports. Any message from a peer is its heartbeat, this device
+    sends a handshake as its own only after HEARTBEAT_INTERVAL without sending anything, and peers
+    unheard for PEER_TIMEOUT are dropped. Round trips come from the "ts" of each handshake, echoed back
+    in the peer's next one moved on by the time the peer held it, so clocks need not agree.
+    Membership is written to P2PSyncDeviceStatus at most every PERSIST_INTERVAL per peer.
+ */
+public class PeerMembership {
+
+    private static final String TAG = PeerMembership.class.getSimpleName();
+
+    static final long HEARTBEAT_INTERVAL = 10 * 1000; // 10 sec
+    static final long PEER_TIMEOUT = 3 * HEARTBEAT_INTERVAL;
+    private static final long PERSIST_INTERVAL = 30 * 1000; // 30 sec
+    private static final double RTT_WEIGHT = 0.125;
+    private static final double LOSS_WEIGHT = 0.25;
+    // reception reports over fewer records say little about loss
+    private static final int MIN_REPORTED_RECORDS = 8;
+    // assumed for peers not timed yet
+    private static final long DEFAULT_RTT = 100; // ms
+    private static final double MAX_LOSS = 0.9;
+
+    private final MulticastManager manager;
+    private final P2PDBApiImpl p2PDBApiImpl;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Map<String, Peer> peers = new ConcurrentHashMap<String, Peer>();
+    private volatile long lastSentAt = 0;
+
+    private final Runnable heartbeatRunnable = new Runnable() {
+        @Override
+        public void run() {
+            long now = System.currentTimeMillis();
+            expire(now);
+            if (now - lastSentAt >= HEARTBEAT_INTERVAL) {
+                AsyncTask.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        manager.sendHeartbeat();
+                    }
+                });
+            }
+            handler.postDelayed(this, HEARTBEAT_INTERVAL);
+        }
+    };
+
+    public PeerMembership(MulticastManager manager, P2PDBApiImpl p2PDBApiImpl) {
+        this.manager = manager;
+        this.p2PDBApiImpl = p2PDBApiImpl;
+    }
+
+    public void start() {
+        handler.removeCallbacks(heartbeatRunnable);
+        handler.postDelayed(heartbeatRunnable, HEARTBEAT_INTERVAL);
+    }
+
+    public void cancel() {
+        handler.removeCallbacks(heartbeatRunnable);
+    }
+
+    // peers are relearnt on every network
+    public void clear() {
+        peers.clear();
+    }
+
+    // anything this device sent stands in for its heartbeat
+    public void onSent(long now) {
+        lastSentAt = now;
+    }
+
+    // any message from a peer, the address is null when the transport did not give one
+    public void onHeard(String deviceId, String address, long now) {
+        if (deviceId == null || deviceId.equals(P2PContext.getCurrentDevice())) {
+            return;
+        }
+        Peer peer = peers.get(deviceId);
+        boolean changed = false;
+        if (peer == null) {
+            peer = new Peer(deviceId);
+            peers.put(deviceId, peer);
+            Log.d(TAG, deviceId + " joined from " + address);
+            changed = true;
+        }
+        synchronized (peer) {
+            if (address != null && !address.equals(peer.address)) {
+                peer.address = address;
+                changed = true;
+            }
+            peer.lastSeen = now;
+        }
+        persistIfDue(peer, now, changed);
+    }
+
+    public void onHandShake(HandShakingMessage message, long now) {
+        onHeard(message.getFrom(), null, now);
+        Peer peer = peers.get(message.getFrom());
+        if (peer == null) {
+            return;
+        }
+        synchronized (peer) {
+            if (message.getDigest() != null && message.isComplete()) {
+                peer.digest = message.getDigest();
+            }
+            if (message.getSentAt() != null) {
+                peer.heardSentAt = message.getSentAt();
+                peer.heardAt = now;
+            }
+            Long echo = message.getEchoes() != null ? message.getEchoes().get(P2PContext.getCurrentDevice()) : null;
+            if (echo != null && echo <= now) {
+                long sample = now - echo;
+                peer.rtt = peer.rtt < 0 ? sample : (1 - RTT_WEIGHT) * peer.rtt + RTT_WEIGHT * sample;
+            }
+            Integer received = message.getReceivedCount();
+            if (received != null && received >= MIN_REPORTED_RECORDS) {
+                int duplicates = message.getDuplicateCount() != null ? message.getDuplicateCount() : 0;
+                int outOfSync = message.getOutOfSyncCount() != null ? message.getOutOfSyncCount() : 0;
+                double sample = Math.min(1, (double) (duplicates + outOfSync) / received);
+                peer.loss = peer.loss < 0 ? sample : (1 - LOSS_WEIGHT) * peer.loss + LOSS_WEIGHT * sample;
+            }
+        }
+        persistIfDue(peer, now, false);
+    }
+
+    // stamps an outgoing handshake with this device's clock and echoes the clocks of peers heard since the last one
+    public void stamp(HandShakingMessage message, long now) {
+        Map<String, Long> echoes = new HashMap<String, Long>();
+        for (Peer peer : peers.values()) {
+            synchronized (peer) {
+                if (peer.heardSentAt >= 0) {
+                    echoes.put(peer.deviceId, peer.heardSentAt + (now - peer.heardAt));
+                    peer.heardSentAt = -1;
+                }
+            }
+        }
+        message.setSentAt(now);
+        message.setEchoes(echoes.isEmpty() ? null : echoes);
+    }
+
+    // live peers
+    public int size() {
+        return liveDeviceIds().size();
+    }
+
+    // peers heard within PEER_TIMEOUT, the sweep drops the others every HEARTBEAT_INTERVAL
+    public List<String> liveDeviceIds() {
+        long now = System.currentTimeMillis();
+        List<String> deviceIds = new ArrayList<String>();
+        for (Peer peer : peers.values()) {
+            if (now - peer.lastSeen <= PEER_TIMEOUT) {
+                deviceIds.add(peer.deviceId);
+            }
+        }
+        return deviceIds;
+    }
+
+    public String addressOf(String deviceId) {
+        Peer peer = deviceId != null ? peers.get(deviceId) : null;
+        return peer != null ? peer.address : null;
+    }
+
+    // true when a request to the first peer is expected to be answered sooner than one to the second
+    public boolean isHealthier(String deviceId, String otherDeviceId) {
+        return expectedDelay(deviceId) < expectedDelay(otherDeviceId);
+    }
+
+    // round trips until an answer gets through, in ms
+    private double expectedDelay(String deviceId) {
+        Peer peer = deviceId != null ? peers.get(deviceId) : null;
+        if (peer == null) {
+            return Double.MAX_VALUE;
+        }
+        synchronized (peer) {
+            double rtt = peer.rtt < 0 ? DEFAULT_RTT : peer.rtt;
+            double loss = peer.loss < 0 ? 0 : Math.min(MAX_LOSS, peer.loss);
+            return rtt / (1 - loss);
+        }
+    }
+
+    private void expire(long now) {
+        Iterator<Peer> it = peers.values().iterator();
+        while (it.hasNext()) {
+            Peer peer = it.next();
+            if (now - peer.lastSeen > PEER_TIMEOUT) {
+                it.remove();
+                Log.d(TAG, peer.deviceId + " not heard for " + (now - peer.lastSeen) + " ms, dropping it");
+                manager.onPeerExpired(peer.deviceId);
+            }
+        }
+    }
+
+    private void persistIfDue(Peer peer, long now, boolean changed) {
+        final String deviceId = peer.deviceId;
+        final String address;
+        final long lastSeen;
+        final Long digest;
+        final Long rtt;
+        final Double loss;
+        synchronized (peer) {
+            if (!changed && now - peer.persistedAt < PERSIST_INTERVAL) {
+                return;
+            }
+            peer.persistedAt = now;
+            address = peer.address;
+            lastSeen = peer.lastSeen;
+            digest = peer.digest;
+            rtt = peer.rtt < 0 ? null : Math.round(peer.rtt);
+            loss = peer.loss < 0 ? null : peer.loss;
+        }
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                p2PDBApiImpl.updatePeerMembership(deviceId, address, lastSeen, digest, rtt, loss);
+            }
+        });
+    }
+
+    private static class Peer {
+        final String deviceId;
+        String address;
+        volatile long lastSeen;
+        Long digest;
+        double rtt = -1;
+        double loss = -1;
+        // "ts" of the peer's last handshake not yet echoed, and when it arrived
+        long heardSentAt = -1;
+        long heardAt;
+        long persistedAt;
+
+        Peer(String deviceId) {
+            this.deviceId = deviceId;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package org.chimple.flores.multicast;
+
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    One step of the inbound pipeline: a bounded queue drained in order by a single worker thread.
+    What happens to an item offered to a full queue is the stage's OverloadPolicy.
+ */
+public class PipelineStage<T> {
+
+    private static final String TAG = PipelineStage.class.getSimpleName();
+    private static final long BLOCK_POLL_INTERVAL = 100; // ms, so a blocked producer notices stop()
+
+    public enum OverloadPolicy {
+        // the offered item is dropped, for stages fed straight from the network
+        DROP_NEWEST,
+        // the eldest queued item makes room, for stages where only recent items matter
+        DROP_OLDEST,
+        // the producer waits for room, for stages that must not lose what earlier stages accounted for
+        BLOCK
+    }
+
+    public interface Handler<T> {
+        void handle(T item);
+    }
+
+    private final String name;
+    private final BlockingQueue<T> queue;
+    private final Handler<T> handler;
+    private volatile OverloadPolicy overloadPolicy;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private Thread worker;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    // queued or being handled, counted before an item is queued so the worker never sees it uncounted
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private volatile int maxDepth = 0;
+
+    public PipelineStage(String name, int capacity, OverloadPolicy overloadPolicy, Handler<T> handler) {
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<T>(capacity);
+        this.overloadPolicy = overloadPolicy;
+        this.handler = handler;
+    }
+
+    public synchronized void start() {
+        if (running.getAndSet(true)) {
+            return;
+        }
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "inbound-" + name);
+        worker.start();
+    }
+
+    public synchronized void stop() {
+        running.set(false);
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+        queue.clear();
+        outstanding.set(0);
+    }
+
+    // returns false when the item was dropped
+    public boolean offer(T item) {
+        if (!running.get()) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        boolean queued;
+        outstanding.incrementAndGet();
+        switch (overloadPolicy) {
+            case DROP_OLDEST:
+                while (!(queued = queue.offer(item))) {
+                    if (queue.poll() != null) {
+                        dropped.incrementAndGet();
+                        outstanding.decrementAndGet();
+                    }
+                }
+                break;
+            case BLOCK:
+                queued = offerBlocking(item);
+                break;
+            default:
+                queued = queue.offer(item);
+                break;
+        }
+        if (!queued) {
+            outstanding.decrementAndGet();
+            dropped.incrementAndGet();
+            Log.d(TAG, name + " stage full, dropped so far: " + dropped.get());
+            return false;
+        }
+        accepted.incrementAndGet();
+        int depth = queue.size();
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+        return true;
+    }
+
+    private boolean offerBlocking(T item) {
+        try {
+            while (running.get()) {
+                if (queue.offer(item, BLOCK_POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private void drain() {
+        while (running.get()) {
+            T item;
+            try {
+                item = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            long start = System.nanoTime();
+            try {
+                handler.handle(item);
+            } catch (RuntimeException e) {
+                failed.incrementAndGet();
+                Log.e(TAG, name + " stage failed to handle item", e);
+            }
+            busyNanos.addAndGet(System.nanoTime() - start);
+            processed.incrementAndGet();
+            outstanding.decrementAndGet();
+        }
+        Log.d(TAG, name + " stage stopped");
+    }
+
+    public void setOverloadPolicy(OverloadPolicy overloadPolicy) {
+        this.overloadPolicy = overloadPolicy;
+    }
+
+    public OverloadPolicy getOverloadPolicy() {
+        return overloadPolicy;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // nothing queued and nothing being handled
+    public boolean isIdle() {
+        return outstanding.get() <= 0;
+    }
+
+    public int getDepth() {
+        return queue.size();
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    // mean time the worker spent on one item
+    public double getAverageServiceMillis() {
+        long count = processed.get();
+        return count == 0 ? 0 : busyNanos.get() / 1000000.0 / count;
+    }
+
+    @Override
+    public String toString() {
+        return name + "{depth=" + getDepth() + ", maxDepth=" + maxDepth + ", accepted=" + getAccepted()
+                + ", dropped=" + getDropped() + ", processed=" + getProcessed() + ", failed=" + getFailed()
+                + ", avgMillis=" + String.format(Locale.ROOT, "%.2f", getAverageServiceMillis()) + ", policy=" + overloadPolicy + "}";
+    }
+}
@@ -0,0 +1,91 @@
+package org.chimple.flores.multicast;
+
+import android.util.Log;
+
+/*
+    Paces outgoing datagrams through a token bucket whose rate follows AIMD on the
+    loss peers report back in their handshakes. Multicast on shared Wi-Fi goes out at
+    the lowest basic rate, bursts overflow the AP queue, so the slowest receiver sets the pace.
+ */
+public class RateController {
+
+    private static final String TAG = RateController.class.getSimpleName();
+
+    public static final double MIN_RATE = 20; // packets per sec
+    public static final double MAX_RATE = 500;
+    public static final double INITIAL_RATE = 100;
+    private static final double BURST_SIZE = 16;
+    private static final double ADDITIVE_INCREASE = 10;
+    private static final double DECREASE_FACTOR = 0.5;
+    private static final double LOSS_THRESHOLD = 0.02;
+    private static final long MIN_DECREASE_INTERVAL = 1000; // 1 sec, one cut per loss episode
+    private static final int MIN_REPORTED_RECORDS = 8;
+
+    private double rate = INITIAL_RATE;
+    private double tokens = BURST_SIZE;
+    private long lastRefillAt = now();
+    private long lastDecreaseAt = 0;
+
+    // returns 0 and consumes a token when a datagram may go out now, otherwise millis to wait
+    public synchronized long reserve() {
+        refill();
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - tokens) * 1000 / rate));
+    }
+
+    // gives back a token reserved for a datagram that could not go out after all
+    public synchronized void release() {
+        tokens = Math.min(BURST_SIZE, tokens + 1);
+    }
+
+    public void acquire() throws InterruptedException {
+        long wait;
+        while ((wait = reserve()) > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+    /*
+        Returns the loss fraction the report implies, or -1 when it covers too few records to judge.
+        received is every sync record the peer got since its last handshake, duplicates and
+        outOfSync are the ones it had already seen or that arrived past a gap.
+     */
+    public synchronized double onFeedback(int received, int duplicates, int outOfSync) {
+        if (received < MIN_REPORTED_RECORDS) {
+            return -1;
+        }
+        double loss = (double) (duplicates + outOfSync) / received;
+        long now = now();
+        if (loss > LOSS_THRESHOLD) {
+            if (now - lastDecreaseAt >= MIN_DECREASE_INTERVAL) {
+                refill();
+                rate = Math.max(MIN_RATE, rate * DECREASE_FACTOR);
+                tokens = Math.min(tokens, 1);
+                lastDecreaseAt = now;
+                Log.d(TAG, "loss " + loss + " reported, pacing rate cut to " + rate);
+            }
+        } else {
+            refill();
+            rate = Math.min(MAX_RATE, rate + ADDITIVE_INCREASE);
+            Log.d(TAG, "loss " + loss + " reported, pacing rate raised to " + rate);
+        }
+        return loss;
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    private void refill() {
+        long now = now();
+        tokens = Math.min(BURST_SIZE, tokens + (now - lastRefillAt) * rate / 1000);
+        lastRefillAt = now;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,108 @@
+package org.chimple.flores.multicast;
+
+import org.chimple.flores.db.SequenceRanges;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    Which sync records have been received, per user and device: every sequence up to a contiguous
+    watermark plus the ranges seen beyond it. Memory depends on the number of gaps, not on history.
+    Lookups of a sender are lock free, each sender's state is guarded by its own monitor.
+ */
+public class ReceivedSequenceTracker {
+
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Sender>> usersById = new ConcurrentHashMap<String, ConcurrentHashMap<String, Sender>>();
+
+    public boolean contains(String userId, String deviceId, long sequence) {
+        Sender sender = find(userId, deviceId);
+        return sender != null && sender.contains(sequence);
+    }
+
+    // returns false when the sequence had already been received
+    public boolean add(String userId, String deviceId, long sequence) {
+        return sender(userId, deviceId).add(sequence);
+    }
+
+    // gives up a sequence claimed by add whose record was not stored after all
+    public void remove(String userId, String deviceId, long sequence) {
+        Sender sender = find(userId, deviceId);
+        if (sender != null) {
+            sender.remove(sequence);
+        }
+    }
+
+    // highest sequence below which nothing is missing
+    public long getWatermark(String userId, String deviceId) {
+        Sender sender = find(userId, deviceId);
+        return sender != null ? sender.getWatermark() : 0;
+    }
+
+    public void clear() {
+        usersById.clear();
+    }
+
+    private Sender find(String userId, String deviceId) {
+        ConcurrentHashMap<String, Sender> devices = usersById.get(userId);
+        return devices != null ? devices.get(deviceId) : null;
+    }
+
+    private Sender sender(String userId, String deviceId) {
+        ConcurrentHashMap<String, Sender> devices = usersById.get(userId);
+        if (devices == null) {
+            ConcurrentHashMap<String, Sender> created = new ConcurrentHashMap<String, Sender>();
+            devices = usersById.putIfAbsent(userId, created);
+            if (devices == null) {
+                devices = created;
+            }
+        }
+        Sender sender = devices.get(deviceId);
+        if (sender == null) {
+            Sender created = new Sender();
+            sender = devices.putIfAbsent(deviceId, created);
+            if (sender == null) {
+                sender = created;
+            }
+        }
+        return sender;
+    }
+
+    private static class Sender {
+        private long watermark = 0;
+        private final SequenceRanges beyondWatermark = new SequenceRanges();
+
+        synchronized boolean contains(long sequence) {
+            return sequence <= watermark || beyondWatermark.contains(sequence);
+        }
+
+        synchronized boolean add(long sequence) {
+            if (sequence <= watermark) {
+                return false;
+            }
+            if (sequence != watermark + 1) {
+                return beyondWatermark.add(sequence);
+            }
+            watermark = sequence;
+            // the gap just closed, ranges that now follow on are folded into the watermark
+            if (!beyondWatermark.isEmpty() && beyondWatermark.startOf(0) == watermark + 1) {
+                watermark = beyondWatermark.endOf(0);
+                beyondWatermark.removeThrough(watermark);
+            }
+            return true;
+        }
+
+        synchronized void remove(long sequence) {
+            if (sequence > watermark) {
+                beyondWatermark.remove(sequence, sequence);
+                return;
+            }
+            if (sequence < watermark) {
+                beyondWatermark.add(sequence + 1, watermark);
+            }
+            watermark = sequence - 1;
+        }
+
+        synchronized long getWatermark() {
+            return watermark;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.chimple.flores.multicast;
+
+import android.util.Log;
+
+import org.chimple.flores.application.P2PContext;
+import org.chimple.flores.db.P2PDBApiImpl;
+import org.chimple.flores.db.SequenceRanges;
+import org.chimple.flores.db.entity.NackRange;
+import org.chimple.flores.db.entity.P2PLatestInfoByUserAndDevice;
+import org.chimple.flores.db.entity.P2PSyncInfo;
+import org.chimple.flores.db.entity.ReconcileMessage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    Optional reconciliation of every record two peers hold, old ones included, in traffic proportional
+    to how many records differ. A device sends a peer the InvertibleBloomFilter of its record keys, the
+    peer subtracts its own and lists the difference. It sends the records the device lacks and, when it
+    lacks records itself, answers with its own table of the same size so the device can do the same.
+    A table too small to list the difference is answered with a table twice as large, up to MAX_CELLS,
+    and the size that worked is remembered for the next round with that peer.
+ */
+public class SetReconciler {
+
+    private static final String TAG = SetReconciler.class.getSimpleName();
+
+    static final int MIN_CELLS = 48;
+    static final int MAX_CELLS = 6144;
+
+    private final MulticastManager manager;
+    private final P2PDBApiImpl p2PDBApiImpl;
+    private final Map<String, Integer> cellsByPeer = new ConcurrentHashMap<String, Integer>();
+
+    public SetReconciler(MulticastManager manager, P2PDBApiImpl p2PDBApiImpl) {
+        this.manager = manager;
+        this.p2PDBApiImpl = p2PDBApiImpl;
+    }
+
+    public void start(String peer) {
+        Integer cells = cellsByPeer.get(peer);
+        send(peer, true, new Records(p2PDBApiImpl.fetchAllRecordKeys()).table(cells != null ? cells : MIN_CELLS));
+    }
+
+    public void onReconcileMessage(ReconcileMessage message) {
+        if (message == null || P2PContext.getCurrentDevice().equals(message.getFrom())) {
+            return;
+        }
+        if (message.getCellCount() <= 0 || message.getCellCount() > MAX_CELLS) {
+            Log.d(TAG, "dropping reconcile message from " + message.getFrom() + " with " + message.getCellCount() + " cells");
+            return;
+        }
+        InvertibleBloomFilter theirs = InvertibleBloomFilter.fromBytes(message.getCells(), message.getCellCount());
+        if (theirs == null) {
+            Log.d(TAG, "dropping malformed reconcile message from " + message.getFrom());
+            return;
+        }
+        Records records = new Records(p2PDBApiImpl.fetchAllRecordKeys());
+        InvertibleBloomFilter difference = records.table(message.getCellCount());
+        difference.subtract(theirs);
+        List<Long> onlyHere = new ArrayList<Long>();
+        List<Long> onlyThere = new ArrayList<Long>();
+        if (!difference.decode(onlyHere, onlyThere)) {
+            int larger = 2 * message.getCellCount();
+            if (larger > MAX_CELLS) {
+                Log.d(TAG, "difference with " + message.getFrom() + " exceeds " + MAX_CELLS + " cells, leaving it to handshakes");
+                return;
+            }
+            Log.d(TAG, "difference with " + message.getFrom() + " did not decode from " + message.getCellCount() + " cells, retrying with " + larger);
+            send(message.getFrom(), true, records.table(larger));
+            return;
+        }
+        Log.d(TAG, "reconciled with " + message.getFrom() + ": " + onlyHere.size() + " records to send, " + onlyThere.size() + " to receive");
+        cellsByPeer.put(message.getFrom(), Math.max(MIN_CELLS, 3 * (onlyHere.size() + onlyThere.size())));
+        if (!onlyHere.isEmpty()) {
+            List<P2PSyncInfo> infos = p2PDBApiImpl.fetchP2PSyncInfosByNackRanges(records.ranges(onlyHere));
+            manager.sendSyncInfos(infos, message.getFrom());
+        }
+        if (message.isReply() && !onlyThere.isEmpty()) {
+            send(message.getFrom(), false, records.table(message.getCellCount()));
+        }
+    }
+
+    private void send(String peer, boolean reply, InvertibleBloomFilter table) {
+        manager.sendReconcileMessage(peer, new ReconcileMessage(P2PContext.getCurrentDevice(), reply, table.getCellCount(), table.toBytes()));
+    }
+
+    // record keys held by this device and the records they stand for
+    private static class Records {
+        final Map<Long, P2PLatestInfoByUserAndDevice> byKey;
+
+        Records(P2PLatestInfoByUserAndDevice[] keys) {
+            byKey = new HashMap<Long, P2PLatestInfoByUserAndDevice>(keys.length * 2);
+            for (P2PLatestInfoByUserAndDevice k : keys) {
+                if (k.sequence != null) {
+                    byKey.put(InvertibleBloomFilter.recordKey(k.userId, k.deviceId, k.sequence), k);
+                }
+            }
+        }
+
+        InvertibleBloomFilter table(int cells) {
+            InvertibleBloomFilter table = new InvertibleBloomFilter(cells);
+            for (Long key : byKey.keySet()) {
+                table.add(key);
+            }
+            return table;
+        }
+
+        List<NackRange> ranges(List<Long> keys) {
+            Map<String, SequenceRanges> sequences = new LinkedHashMap<String, SequenceRanges>();
+            Map<String, P2PLatestInfoByUserAndDevice> senders = new HashMap<String, P2PLatestInfoByUserAndDevice>();
+            for (Long key : keys) {
+                P2PLatestInfoByUserAndDevice k = byKey.get(key);
+                if (k == null) {
+                    continue;
+                }
+                String sender = k.userId + "_" + k.deviceId;
+                SequenceRanges ranges = sequences.get(sender);
+                if (ranges == null) {
+                    ranges = new SequenceRanges();
+                    sequences.put(sender, ranges);
+                    senders.put(sender, k);
+                }
+                ranges.add(k.sequence);
+            }
+            List<NackRange> result = new ArrayList<NackRange>();
+            for (Map.Entry<String, SequenceRanges> entry : sequences.entrySet()) {
+                P2PLatestInfoByUserAndDevice k = senders.get(entry.getKey());
+                SequenceRanges ranges = entry.getValue();
+                for (int i = 0; i < ranges.getRangeCount(); i++) {
+                    result.add(new NackRange(k.userId, k.deviceId, ranges.startOf(i), ranges.endOf(i)));
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.chimple.flores.multicast;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    A fixed set of PipelineStage lanes. Items with equal keys always land on the same lane,
+    so they are handled in the order offered, while different keys run in parallel.
+ */
+public class StripedStage<T> {
+
+    private final List<PipelineStage<T>> lanes;
+
+    public StripedStage(String name, int laneCount, int laneCapacity, PipelineStage.OverloadPolicy overloadPolicy, PipelineStage.Handler<T> handler) {
+        List<PipelineStage<T>> lanes = new ArrayList<PipelineStage<T>>(laneCount);
+        for (int i = 0; i < laneCount; i++) {
+            lanes.add(new PipelineStage<T>(name + "-" + i, laneCapacity, overloadPolicy, handler));
+        }
+        this.lanes = Collections.unmodifiableList(lanes);
+    }
+
+    public boolean offer(Object key, T item) {
+        return lanes.get(laneFor(key)).offer(item);
+    }
+
+    int laneFor(Object key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % lanes.size();
+    }
+
+    public void start() {
+        for (PipelineStage<T> lane : lanes) {
+            lane.start();
+        }
+    }
+
+    public void stop() {
+        for (PipelineStage<T> lane : lanes) {
+            lane.stop();
+        }
+    }
+
+    public void setOverloadPolicy(PipelineStage.OverloadPolicy overloadPolicy) {
+        for (PipelineStage<T> lane : lanes) {
+            lane.setOverloadPolicy(overloadPolicy);
+        }
+    }
+
+    public List<PipelineStage<T>> getLanes() {
+        return lanes;
+    }
+}
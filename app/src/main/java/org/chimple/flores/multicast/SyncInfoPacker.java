@@ -0,0 +1,86 @@
+package org.chimple.flores.multicast;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.chimple.flores.db.entity.P2PSyncInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Holds live messages for a short linger so that records created close together
+    share a datagram instead of going out one per packet. Only the linger timer runs on the
+    main looper, packing, encoding and fragmenting a flush run on a background thread.
+ */
+public class SyncInfoPacker {
+
+    private static final String TAG = SyncInfoPacker.class.getSimpleName();
+    private static final int MAX_PENDING_RECORDS = 32;
+
+    private final MulticastManager manager;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final List<P2PSyncInfo> pending = new ArrayList<P2PSyncInfo>();
+
+    private long lingerMillis;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            AsyncTask.execute(flushTask);
+        }
+    };
+
+    public SyncInfoPacker(MulticastManager manager, long lingerMillis) {
+        this.manager = manager;
+        this.lingerMillis = lingerMillis;
+    }
+
+    public void add(P2PSyncInfo info) {
+        boolean flushNow;
+        synchronized (pending) {
+            pending.add(info);
+            flushNow = lingerMillis <= 0 || pending.size() >= MAX_PENDING_RECORDS;
+            if (!flushNow && pending.size() == 1) {
+                handler.postDelayed(flushRunnable, lingerMillis);
+            }
+        }
+        if (flushNow) {
+            handler.removeCallbacks(flushRunnable);
+            AsyncTask.execute(flushTask);
+        }
+    }
+
+    public void flush() {
+        List<P2PSyncInfo> toSend;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            toSend = new ArrayList<P2PSyncInfo>(pending);
+            pending.clear();
+        }
+        Log.d(TAG, "flushing " + toSend.size() + " live records");
+        manager.sendSyncInfos(toSend);
+    }
+
+    public void setLingerMillis(long lingerMillis) {
+        this.lingerMillis = lingerMillis;
+    }
+
+    public void cancel() {
+        handler.removeCallbacks(flushRunnable);
+        synchronized (pending) {
+            pending.clear();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.chimple.flores.multicast;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.chimple.flores.db.P2PDBApiImpl;
+import org.chimple.flores.db.SequenceRanges;
+import org.chimple.flores.db.entity.NackRange;
+import org.chimple.flores.db.entity.P2PSyncInfo;
+import org.chimple.flores.db.entity.SyncInfoItem;
+import org.chimple.flores.db.entity.SyncInfoRequestMessage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/*
+    Answers the sync requests addressed to this device after a short random delay. Requests arriving
+    before the answer goes out are merged into it, so overlapping ranges asked for by several
+    requesters are answered once with their union, and ranges served within SERVED_HOLDOFF are not
+    served again, those answered over unicast only not again to the device that got them. Records
+    of the queued answer heard on the group from another peer in the meantime are dropped from it,
+    so records that overlapping plans asked several devices for cross the air about once per round.
+    An answer only one device asked for goes to it over unicast when its address is known.
+ */
+public class SyncResponder {
+
+    private static final String TAG = SyncResponder.class.getSimpleName();
+
+    private static final int RESPONSE_DELAY_MIN = 10; // ms
+    private static final int RESPONSE_DELAY_MAX = 120;
+    private static final long SERVED_HOLDOFF = 1000; // 1 sec
+
+    private final MulticastManager manager;
+    private final P2PDBApiImpl p2PDBApiImpl;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Random random = new Random();
+
+    private final Map<String, SenderRanges> pendingRanges = new LinkedHashMap<String, SenderRanges>();
+    private final Set<String> requesters = new LinkedHashSet<String>();
+    private boolean responseScheduled = false;
+    // ranges answered recently, eldest first
+    private final ArrayDeque<Served> served = new ArrayDeque<Served>();
+
+    private final Runnable responseRunnable = new Runnable() {
+        @Override
+        public void run() {
+            AsyncTask.execute(new Runnable() {
+                @Override
+                public void run() {
+                    send();
+                }
+            });
+        }
+    };
+
+    public SyncResponder(MulticastManager manager, P2PDBApiImpl p2PDBApiImpl) {
+        this.manager = manager;
+        this.p2PDBApiImpl = p2PDBApiImpl;
+    }
+
+    public void onSyncRequest(SyncInfoRequestMessage request) {
+        if (request == null || request.getItems() == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        boolean added = false;
+        synchronized (this) {
+            while (!served.isEmpty() && now - served.peekFirst().time > SERVED_HOLDOFF) {
+                served.pollFirst();
+            }
+            for (SyncInfoItem item : request.getItems()) {
+                if (item.getUserId() == null || item.getDeviceId() == null || item.getSequence() == null) {
+                    continue;
+                }
+                SenderRanges asked = new SenderRanges(item.getUserId(), item.getDeviceId());
+                asked.add(item.getStartingSequence() != null ? item.getStartingSequence() : 1, item.getSequence());
+                String key = key(item.getUserId(), item.getDeviceId());
+                for (Served s : served) {
+                    if (s.requester != null && !s.requester.equals(request.getSender())) {
+                        // only that requester heard the answer
+                        continue;
+                    }
+                    SequenceRanges r = s.ranges.get(key);
+                    if (r != null) {
+                        asked.removeAll(r);
+                    }
+                }
+                if (!asked.isEmpty()) {
+                    rangesFor(pendingRanges, item.getUserId(), item.getDeviceId()).addAll(asked);
+                    added = true;
+                }
+            }
+            if (!added) {
+                Log.d(TAG, "request from " + request.getSender() + " repeats ranges just served, dropping it");
+                return;
+            }
+            requesters.add(request.getSender());
+            if (responseScheduled) {
+                return;
+            }
+            responseScheduled = true;
+        }
+        handler.postDelayed(responseRunnable, RESPONSE_DELAY_MIN + random.nextInt(RESPONSE_DELAY_MAX - RESPONSE_DELAY_MIN + 1));
+    }
+
+    // a record on the wire from another peer answers that part of the queued response
+    public synchronized void onRecordSeen(String userId, String deviceId, long sequence) {
+        SenderRanges ranges = pendingRanges.get(key(userId, deviceId));
+        if (ranges != null) {
+            ranges.remove(sequence, sequence);
+        }
+    }
+
+    public void cancel() {
+        handler.removeCallbacks(responseRunnable);
+        synchronized (this) {
+            pendingRanges.clear();
+            requesters.clear();
+            served.clear();
+            responseScheduled = false;
+        }
+    }
+
+    private void send() {
+        List<NackRange> ranges = new ArrayList<NackRange>();
+        Set<String> answered;
+        String target;
+        Map<String, SequenceRanges> sent = new HashMap<String, SequenceRanges>();
+        synchronized (this) {
+            responseScheduled = false;
+            answered = new LinkedHashSet<String>(requesters);
+            requesters.clear();
+            // a single requester gets them over unicast
+            target = answered.size() == 1 ? answered.iterator().next() : null;
+            for (Map.Entry<String, SenderRanges> entry : pendingRanges.entrySet()) {
+                SenderRanges r = entry.getValue();
+                for (int i = 0; i < r.getRangeCount(); i++) {
+                    ranges.add(new NackRange(r.userId, r.deviceId, r.startOf(i), r.endOf(i)));
+                }
+                if (!r.isEmpty()) {
+                    sent.put(entry.getKey(), r);
+                }
+            }
+            pendingRanges.clear();
+        }
+        if (ranges.isEmpty()) {
+            Log.d(TAG, "response to " + answered + " suppressed, peers already sent every record");
+            return;
+        }
+        List<P2PSyncInfo> infos = p2PDBApiImpl.fetchP2PSyncInfosByNackRanges(ranges);
+        Log.d(TAG, "answering " + answered + " for ranges: " + ranges + " with records: " + infos.size());
+        // without its address the answer went to the group, every device heard it
+        boolean unicast = manager.sendSyncInfos(infos, target);
+        synchronized (this) {
+            served.addLast(new Served(System.currentTimeMillis(), unicast ? target : null, sent));
+        }
+    }
+
+    private static SenderRanges rangesFor(Map<String, SenderRanges> pending, String userId, String deviceId) {
+        String key = key(userId, deviceId);
+        SenderRanges ranges = pending.get(key);
+        if (ranges == null) {
+            ranges = new SenderRanges(userId, deviceId);
+            pending.put(key, ranges);
+        }
+        return ranges;
+    }
+
+    private static String key(String userId, String deviceId) {
+        return userId + "_" + deviceId;
+    }
+
+    private static class Served {
+        final long time;
+        // device the answer went to, null when sent to the group
+        final String requester;
+        final Map<String, SequenceRanges> ranges;
+
+        Served(long time, String requester, Map<String, SequenceRanges> ranges) {
+            this.time = time;
+            this.requester = requester;
+            this.ranges = ranges;
+        }
+    }
+
+    private static class SenderRanges extends SequenceRanges {
+        final String userId;
+        final String deviceId;
+
+        SenderRanges(String userId, String deviceId) {
+            this.userId = userId;
+            this.deviceId = deviceId;
+        }
+    }
+}
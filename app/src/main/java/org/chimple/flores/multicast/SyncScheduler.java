@@ -0,0 +1,140 @@
+package org.chimple.flores.multicast;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.chimple.flores.db.P2PDBApiImpl;
+import org.chimple.flores.db.entity.P2PSyncDeviceStatus;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Drains the queue of devices to sync kept in P2PSyncDeviceStatus, sync_immediately first and then
+    by discover_time, among the peers live on the group. At most maxConcurrent syncs run at once.
+    A sync plans a pull from the device's last handshake, asking for one first when none is held,
+    and is checked again every SYNC_ROUND until there is nothing left to ask or MAX_ROUNDS ran out.
+    Either way it ends with syncCompleted, whose record holds the device off for SYNC_COOL_DOWN.
+ */
+public class SyncScheduler {
+
+    private static final String TAG = SyncScheduler.class.getSimpleName();
+
+    static final int DEFAULT_MAX_CONCURRENT = 2;
+    static final long SYNC_ROUND = 3 * 1000; // 3 sec
+    static final int MAX_ROUNDS = 3;
+    private static final long DRAIN_INTERVAL = 5 * 1000; // 5 sec
+
+    private final MulticastManager manager;
+    private final P2PDBApiImpl p2PDBApiImpl;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private volatile int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+    // device id to the rounds its sync has run
+    private final Map<String, Integer> running = new HashMap<String, Integer>();
+
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            AsyncTask.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+            handler.postDelayed(this, DRAIN_INTERVAL);
+        }
+    };
+
+    public SyncScheduler(MulticastManager manager, P2PDBApiImpl p2PDBApiImpl) {
+        this.manager = manager;
+        this.p2PDBApiImpl = p2PDBApiImpl;
+    }
+
+    public void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+    }
+
+    public void start() {
+        handler.removeCallbacks(drainRunnable);
+        handler.postDelayed(drainRunnable, DRAIN_INTERVAL);
+    }
+
+    // an urgent device was queued, drain now rather than on the next interval
+    public void kick() {
+        handler.removeCallbacks(drainRunnable);
+        handler.post(drainRunnable);
+    }
+
+    public void cancel() {
+        handler.removeCallbacksAndMessages(null);
+        synchronized (this) {
+            running.clear();
+        }
+    }
+
+    private void drain() {
+        List<String> started = new ArrayList<String>();
+        synchronized (this) {
+            while (running.size() < maxConcurrent) {
+                List<String> candidates = manager.getLivePeers();
+                candidates.removeAll(running.keySet());
+                if (candidates.isEmpty()) {
+                    break;
+                }
+                P2PSyncDeviceStatus next = p2PDBApiImpl.getLatestDeviceToSyncFromDevices(candidates);
+                if (next == null) {
+                    break;
+                }
+                Log.d(TAG, "syncing with " + next.getDeviceId() + (Boolean.TRUE.equals(next.getSyncImmediately()) ? ", urgent" : ""));
+                running.put(next.getDeviceId(), 0);
+                started.add(next.getDeviceId());
+            }
+        }
+        for (String deviceId : started) {
+            round(deviceId);
+        }
+    }
+
+    private void round(final String deviceId) {
+        int rounds;
+        synchronized (this) {
+            Integer ran = running.get(deviceId);
+            if (ran == null) {
+                return;
+            }
+            rounds = ran + 1;
+            running.put(deviceId, rounds);
+        }
+        int asked = manager.syncWith(deviceId);
+        if (asked == 0 || rounds >= MAX_ROUNDS) {
+            complete(deviceId, asked == 0 ? "nothing left to ask" : "still asking after " + rounds + " rounds");
+            return;
+        }
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                AsyncTask.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        round(deviceId);
+                    }
+                });
+            }
+        }, SYNC_ROUND);
+    }
+
+    private void complete(String deviceId, String reason) {
+        synchronized (this) {
+            if (running.remove(deviceId) == null) {
+                return;
+            }
+        }
+        Log.d(TAG, "sync with " + deviceId + " done, " + reason);
+        p2PDBApiImpl.syncCompleted(deviceId);
+        drain();
+    }
+}
@@ -0,0 +1,257 @@
+package org.chimple.flores.db;
+
+import org.chimple.flores.db.entity.HandShakingInfo;
+import org.chimple.flores.db.entity.HandShakingMessage;
+import org.chimple.flores.db.entity.NackMessage;
+import org.chimple.flores.db.entity.NackRange;
+import org.chimple.flores.db.entity.P2PSyncInfo;
+import org.chimple.flores.db.entity.ReconcileMessage;
+import org.chimple.flores.db.entity.SyncInfoItem;
+import org.chimple.flores.db.entity.SyncInfoMessage;
+import org.chimple.flores.db.entity.SyncInfoRequestMessage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryMessageCodecTest {
+
+    private static final String DEVICE = "0f74666c-0492-4285-a17f-fc67503940a6";
+    private static final String OTHER_DEVICE = "5b1b0b7e-2a2d-4c1f-9d43-8a2f6b1c9e10";
+    private static final String USER = "eeddae92-c43c-4e4e-a0b5-e9d9af957e52";
+    // ids that are not UUIDs go as plain strings
+    private static final String LEGACY_USER = "user-1";
+
+    private final BinaryMessageCodec codec = new BinaryMessageCodec();
+
+    @Test
+    public void handShakingMessageRoundTrips() {
+        HandShakingInfo info = new HandShakingInfo(USER, DEVICE, 42L, SequenceRanges.parse("3-7,9,20-21"), 5L);
+        info.setStartingSequence(2L);
+        HandShakingInfo bare = new HandShakingInfo(LEGACY_USER, OTHER_DEVICE, 1L, null, null);
+        HandShakingMessage message = new HandShakingMessage(DEVICE, "handshaking", "true", Arrays.asList(info, bare));
+        message.setCapabilities(HandShakingMessage.CAPABILITY_BINARY | HandShakingMessage.CAPABILITY_DEFLATE);
+        message.setReceptionReport(100, 3, 2);
+        message.setDigest(0x1234567890abcdefL);
+        message.setDelta(true);
+        message.setAcknowledgements(Collections.singletonMap(OTHER_DEVICE, -7L));
+        message.setSentAt(1500000000000L);
+        message.setEchoes(Collections.singletonMap(OTHER_DEVICE, 1499999999000L));
+        message.setPage(3, 1, 2);
+
+        HandShakingMessage decoded = (HandShakingMessage) decode(codec.encodeHandShakingMessage(message));
+        assertEquals(DEVICE, decoded.getFrom());
+        assertEquals("true", decoded.getReply());
+        assertEquals(message.getCapabilities(), decoded.getCapabilities());
+        assertEquals(100, (int) decoded.getReceivedCount());
+        assertEquals(3, (int) decoded.getDuplicateCount());
+        assertEquals(2, (int) decoded.getOutOfSyncCount());
+        assertEquals(message.getDigest(), decoded.getDigest());
+        assertTrue(decoded.isDelta());
+        assertEquals(message.getAcknowledgements(), decoded.getAcknowledgements());
+        assertEquals(message.getSentAt(), decoded.getSentAt());
+        assertEquals(message.getEchoes(), decoded.getEchoes());
+        assertEquals(3, (int) decoded.getRound());
+        assertEquals(1, (int) decoded.getPage());
+        assertEquals(2, (int) decoded.getPageCount());
+        assertEquals(message.getInfos(), decoded.getInfos());
+        assertEquals(2L, (long) decoded.getInfos().get(0).getStartingSequence());
+    }
+
+    @Test
+    public void minimalHandShakingMessageRoundTrips() {
+        HandShakingMessage message = new HandShakingMessage(DEVICE, "handshaking", "false", new ArrayList<HandShakingInfo>());
+
+        HandShakingMessage decoded = (HandShakingMessage) decode(codec.encodeHandShakingMessage(message));
+        assertEquals("false", decoded.getReply());
+        assertNull(decoded.getDigest());
+        assertFalse(decoded.isDelta());
+        assertNull(decoded.getAcknowledgements());
+        assertNull(decoded.getReceivedCount());
+        assertNull(decoded.getSentAt());
+        assertNull(decoded.getEchoes());
+        assertNull(decoded.getPageCount());
+        assertTrue(decoded.getInfos().isEmpty());
+    }
+
+    @Test
+    public void syncInfoRequestMessageRoundTrips() {
+        List<SyncInfoItem> items = Arrays.asList(new SyncInfoItem(USER, DEVICE, 3L, 9L), new SyncInfoItem(LEGACY_USER, OTHER_DEVICE, null, 4L));
+        SyncInfoRequestMessage message = new SyncInfoRequestMessage(DEVICE, OTHER_DEVICE, items);
+
+        SyncInfoRequestMessage decoded = (SyncInfoRequestMessage) decode(codec.encodeSyncInfoRequestMessage(message));
+        assertEquals(DEVICE, decoded.getSender());
+        assertEquals(OTHER_DEVICE, decoded.getmDeviceId());
+        assertEquals(2, decoded.getItems().size());
+        for (int i = 0; i < items.size(); i++) {
+            SyncInfoItem item = items.get(i);
+            SyncInfoItem decodedItem = decoded.getItems().get(i);
+            assertEquals(item.getUserId(), decodedItem.getUserId());
+            assertEquals(item.getDeviceId(), decodedItem.getDeviceId());
+            assertEquals(item.getStartingSequence(), decodedItem.getStartingSequence());
+            assertEquals(item.getSequence(), decodedItem.getSequence());
+        }
+    }
+
+    @Test
+    public void syncInfoPacketsRoundTrip() {
+        List<P2PSyncInfo> infos = new ArrayList<P2PSyncInfo>();
+        P2PSyncInfo chat = new P2PSyncInfo(USER, DEVICE, 7L, OTHER_DEVICE, "hello \u00e9\u4e16", "Chat", new Date(1500000000123L));
+        chat.setSessionId("session");
+        chat.setStatus(true);
+        chat.setStep(4L);
+        chat.setSender(DEVICE);
+        infos.add(chat);
+        P2PSyncInfo bare = new P2PSyncInfo(LEGACY_USER, DEVICE, 8L, null, "", "Photo", null);
+        bare.setSender(DEVICE);
+        infos.add(bare);
+        P2PSyncInfo relayed = new P2PSyncInfo(USER, OTHER_DEVICE, 1L, null, "relayed", "Chat", new Date(0));
+        relayed.setStatus(false);
+        relayed.setSender(OTHER_DEVICE);
+        infos.add(relayed);
+
+        List<byte[]> packets = codec.encodeSyncInfoPackets(infos, 1400);
+        // one packet per sender
+        assertEquals(2, packets.size());
+        List<P2PSyncInfo> decoded = new ArrayList<P2PSyncInfo>();
+        for (byte[] packet : packets) {
+            SyncInfoMessage message = (SyncInfoMessage) decode(packet);
+            assertEquals("syncInfoMessage", message.getMessageType());
+            decoded.addAll(message.getInfos());
+        }
+        assertEquals(infos.size(), decoded.size());
+        for (int i = 0; i < infos.size(); i++) {
+            assertSyncInfoEquals(infos.get(i), decoded.get(i));
+        }
+    }
+
+    @Test
+    public void syncInfoPacketsStayUnderBudget() {
+        List<P2PSyncInfo> infos = new ArrayList<P2PSyncInfo>();
+        for (long sequence = 1; sequence <= 100; sequence++) {
+            P2PSyncInfo info = new P2PSyncInfo(USER, DEVICE, sequence, null, "message number " + sequence, "Chat", new Date());
+            info.setSender(DEVICE);
+            infos.add(info);
+        }
+        int budget = 500;
+        List<byte[]> packets = codec.encodeSyncInfoPackets(infos, budget);
+        assertTrue(packets.size() > 1);
+        long next = 1;
+        for (byte[] packet : packets) {
+            assertTrue(packet.length <= budget);
+            for (P2PSyncInfo info : ((SyncInfoMessage) decode(packet)).getInfos()) {
+                assertEquals(next++, (long) info.getSequence());
+            }
+        }
+        assertEquals(101, next);
+    }
+
+    @Test
+    public void nackMessageRoundTrips() {
+        List<NackRange> ranges = Arrays.asList(new NackRange(USER, DEVICE, 3L, 9L), new NackRange(LEGACY_USER, OTHER_DEVICE, 1L, 1L));
+        NackMessage decoded = (NackMessage) decode(codec.encodeNackMessage(new NackMessage(DEVICE, ranges)));
+        assertEquals(DEVICE, decoded.getFrom());
+        assertEquals(2, decoded.getRanges().size());
+        for (int i = 0; i < ranges.size(); i++) {
+            assertEquals(ranges.get(i).getUserId(), decoded.getRanges().get(i).getUserId());
+            assertEquals(ranges.get(i).getDeviceId(), decoded.getRanges().get(i).getDeviceId());
+            assertEquals(ranges.get(i).getStartingSequence(), decoded.getRanges().get(i).getStartingSequence());
+            assertEquals(ranges.get(i).getEndingSequence(), decoded.getRanges().get(i).getEndingSequence());
+        }
+    }
+
+    @Test
+    public void reconcileMessageRoundTrips() {
+        byte[] cells = new byte[96];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = (byte) (i * 31);
+        }
+        ReconcileMessage decoded = (ReconcileMessage) decode(codec.encodeReconcileMessage(new ReconcileMessage(DEVICE, true, 3, cells)));
+        assertEquals(DEVICE, decoded.getFrom());
+        assertTrue(decoded.isReply());
+        assertEquals(3, decoded.getCellCount());
+        assertArrayEquals(cells, decoded.getCells());
+    }
+
+    @Test
+    public void otherVersionsAreRejected() {
+        for (byte[] payload : encodedMessages()) {
+            assertTrue(BinaryMessageCodec.isBinary(payload, payload.length));
+            assertEquals(BinaryMessageCodec.VERSION, payload[2]);
+            for (int version = 0; version < 256; version++) {
+                if (version == BinaryMessageCodec.VERSION) {
+                    continue;
+                }
+                byte[] other = Arrays.copyOf(payload, payload.length);
+                other[2] = (byte) version;
+                assertNull("version " + version, codec.decode(other, other.length));
+            }
+        }
+    }
+
+    @Test
+    public void truncatedMessagesAreRejected() {
+        for (byte[] payload : encodedMessages()) {
+            for (int length = 0; length < payload.length; length++) {
+                assertNull("truncated at " + length, codec.decode(payload, length));
+            }
+        }
+    }
+
+    @Test
+    public void unknownTypeIsRejected() {
+        byte[] payload = codec.encodeNackMessage(new NackMessage(DEVICE, new ArrayList<NackRange>()));
+        payload[3] = 42;
+        assertNull(codec.decode(payload, payload.length));
+    }
+
+    private List<byte[]> encodedMessages() {
+        Map<String, Long> acknowledgements = new HashMap<String, Long>();
+        acknowledgements.put(OTHER_DEVICE, 1L);
+        HandShakingMessage handShake = new HandShakingMessage(DEVICE, "handshaking", "false",
+                Collections.singletonList(new HandShakingInfo(USER, DEVICE, 4L, SequenceRanges.parse("2"), null)));
+        handShake.setAcknowledgements(acknowledgements);
+        P2PSyncInfo info = new P2PSyncInfo(USER, DEVICE, 1L, null, "hello", "Chat", new Date());
+        info.setSender(DEVICE);
+
+        List<byte[]> payloads = new ArrayList<byte[]>();
+        payloads.add(codec.encodeHandShakingMessage(handShake));
+        payloads.add(codec.encodeSyncInfoRequestMessage(new SyncInfoRequestMessage(DEVICE, OTHER_DEVICE,
+                Collections.singletonList(new SyncInfoItem(USER, DEVICE, 1L, 2L)))));
+        payloads.addAll(codec.encodeSyncInfoPackets(Collections.singletonList(info), 1400));
+        payloads.add(codec.encodeNackMessage(new NackMessage(DEVICE, Collections.singletonList(new NackRange(USER, DEVICE, 1L, 2L)))));
+        payloads.add(codec.encodeReconcileMessage(new ReconcileMessage(DEVICE, false, 3, new byte[12])));
+        return payloads;
+    }
+
+    private Object decode(byte[] payload) {
+        Object message = codec.decode(payload, payload.length);
+        assertTrue("undecodable", message != null);
+        return message;
+    }
+
+    private static void assertSyncInfoEquals(P2PSyncInfo expected, P2PSyncInfo actual) {
+        assertEquals(expected.getUserId(), actual.getUserId());
+        assertEquals(expected.getDeviceId(), actual.getDeviceId());
+        assertEquals(expected.getSequence(), actual.getSequence());
+        assertEquals(expected.getRecipientUserId(), actual.getRecipientUserId());
+        assertEquals(expected.getMessage(), actual.getMessage());
+        assertEquals(expected.getMessageType(), actual.getMessageType());
+        assertEquals(expected.getSessionId(), actual.getSessionId());
+        assertEquals(expected.getStatus(), actual.getStatus());
+        assertEquals(expected.getStep(), actual.getStep());
+        assertEquals(expected.getCreatedAt(), actual.getCreatedAt());
+        assertEquals(expected.getSender(), actual.getSender());
+    }
+}
@@ -0,0 +1,162 @@
+package org.chimple.flores.db;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SequenceRangesTest {
+
+    private static final int MAX_SEQUENCE = 200;
+
+    @Test
+    public void addMergesTouchingRanges() {
+        SequenceRanges ranges = new SequenceRanges();
+        assertTrue(ranges.add(3, 5));
+        assertTrue(ranges.add(9));
+        assertTrue(ranges.add(6, 8));
+        assertEquals("3-9", ranges.toString());
+        assertEquals(1, ranges.getRangeCount());
+        assertFalse(ranges.add(4, 7));
+        assertFalse(ranges.add(5, 4));
+        assertEquals(7, ranges.size());
+    }
+
+    @Test
+    public void removeSplitsRanges() {
+        SequenceRanges ranges = SequenceRanges.parse("1-10");
+        assertTrue(ranges.remove(4, 6));
+        assertEquals("1-3,7-10", ranges.toString());
+        assertFalse(ranges.remove(4, 6));
+        assertTrue(ranges.remove(3, 7));
+        assertEquals("1-2,8-10", ranges.toString());
+        ranges.removeThrough(8);
+        assertEquals("9-10", ranges.toString());
+    }
+
+    @Test
+    public void textFormRoundTrips() {
+        assertEquals("3-7,9,20-21", SequenceRanges.parse("3-7,9,20-21").toString());
+        assertEquals("1-3", SequenceRanges.parse("1,2,3").toString());
+        assertTrue(SequenceRanges.parse("").isEmpty());
+        assertTrue(SequenceRanges.parse(null).isEmpty());
+        assertNull(SequenceRanges.parse("3-x"));
+        assertNull(SequenceRanges.parse("1,,2"));
+    }
+
+    @Test
+    public void fromSortedBuildsRanges() {
+        SequenceRanges ranges = SequenceRanges.fromSorted(Arrays.asList(1L, 2L, 3L, null, 5L, 7L, 8L));
+        assertEquals("1-3,5,7-8", ranges.toString());
+    }
+
+    @Test
+    public void matchesTreeSet() {
+        Random random = new Random(17);
+        for (int round = 0; round < 200; round++) {
+            SequenceRanges ranges = new SequenceRanges();
+            TreeSet<Long> expected = new TreeSet<Long>();
+            for (int op = 0; op < 100; op++) {
+                long start = 1 + random.nextInt(MAX_SEQUENCE);
+                long end = start + random.nextInt(random.nextBoolean() ? 3 : 30);
+                switch (random.nextInt(4)) {
+                    case 0:
+                        assertEquals(addAll(expected, start, start), ranges.add(start));
+                        break;
+                    case 1:
+                        assertEquals(addAll(expected, start, end), ranges.add(start, end));
+                        break;
+                    case 2:
+                        assertEquals(removeAll(expected, start, end), ranges.remove(start, end));
+                        break;
+                    default:
+                        ranges.removeThrough(start / 4);
+                        removeAll(expected, Long.MIN_VALUE, start / 4);
+                        break;
+                }
+                assertMatches(expected, ranges);
+            }
+            assertEquals(ranges, SequenceRanges.parse(ranges.toString()));
+            assertEquals(ranges, SequenceRanges.fromSorted(new ArrayList<Long>(expected)));
+        }
+    }
+
+    @Test
+    public void setOperationsMatchTreeSet() {
+        Random random = new Random(23);
+        for (int round = 0; round < 200; round++) {
+            TreeSet<Long> first = randomSet(random);
+            TreeSet<Long> second = randomSet(random);
+            SequenceRanges firstRanges = SequenceRanges.fromSorted(new ArrayList<Long>(first));
+            SequenceRanges secondRanges = SequenceRanges.fromSorted(new ArrayList<Long>(second));
+
+            SequenceRanges union = new SequenceRanges(firstRanges);
+            union.addAll(secondRanges);
+            TreeSet<Long> expectedUnion = new TreeSet<Long>(first);
+            expectedUnion.addAll(second);
+            assertMatches(expectedUnion, union);
+
+            SequenceRanges difference = new SequenceRanges(firstRanges);
+            difference.removeAll(secondRanges);
+            TreeSet<Long> expectedDifference = new TreeSet<Long>(first);
+            expectedDifference.removeAll(second);
+            assertMatches(expectedDifference, difference);
+
+            SequenceRanges intersection = new SequenceRanges(firstRanges);
+            intersection.retainAll(secondRanges);
+            TreeSet<Long> expectedIntersection = new TreeSet<Long>(first);
+            expectedIntersection.retainAll(second);
+            assertMatches(expectedIntersection, intersection);
+
+            // copies do not share storage
+            assertMatches(first, firstRanges);
+        }
+    }
+
+    private static TreeSet<Long> randomSet(Random random) {
+        TreeSet<Long> set = new TreeSet<Long>();
+        int count = random.nextInt(MAX_SEQUENCE / 2);
+        for (int i = 0; i < count; i++) {
+            set.add((long) (1 + random.nextInt(MAX_SEQUENCE)));
+        }
+        return set;
+    }
+
+    private static boolean addAll(TreeSet<Long> set, long start, long end) {
+        boolean added = false;
+        for (long sequence = start; sequence <= end; sequence++) {
+            added |= set.add(sequence);
+        }
+        return added;
+    }
+
+    private static boolean removeAll(TreeSet<Long> set, long start, long end) {
+        NavigableSet<Long> removed = set.subSet(start, true, end, true);
+        boolean any = !removed.isEmpty();
+        removed.clear();
+        return any;
+    }
+
+    private static void assertMatches(TreeSet<Long> expected, SequenceRanges ranges) {
+        assertEquals(expected.size(), ranges.size());
+        assertEquals(expected.isEmpty(), ranges.isEmpty());
+        for (long sequence = 0; sequence <= 2 * MAX_SEQUENCE; sequence++) {
+            assertEquals("sequence " + sequence, expected.contains(sequence), ranges.contains(sequence));
+        }
+        // ranges stay sorted, disjoint and non adjacent
+        for (int i = 0; i < ranges.getRangeCount(); i++) {
+            assertTrue(ranges.startOf(i) <= ranges.endOf(i));
+            if (i > 0) {
+                assertTrue(ranges.endOf(i - 1) + 1 < ranges.startOf(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.chimple.flores.multicast;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FecTest {
+
+    private static final String SENDER = "192.168.1.10";
+    private static final int BLOCK_SIZE = 8;
+
+    private final Random random = new Random(5);
+
+    @Test
+    public void everyDatagramOfABlockCanBeRecovered() {
+        List<byte[]> datagrams = datagrams(BLOCK_SIZE);
+        for (int lost = 0; lost < BLOCK_SIZE; lost++) {
+            List<byte[]> frames = new FecEncoder(BLOCK_SIZE).encode(datagrams);
+            assertEquals(BLOCK_SIZE + 1, frames.size());
+            frames.remove(lost);
+
+            FecDecoder decoder = new FecDecoder();
+            List<byte[]> received = receive(decoder, frames);
+            assertEquals(BLOCK_SIZE, received.size());
+            assertArrayEquals(datagrams.get(lost), received.get(received.size() - 1));
+            assertEquals(1, decoder.getRecoveredDatagrams());
+        }
+    }
+
+    @Test
+    public void parityAheadOfDataStillRecovers() {
+        List<byte[]> datagrams = datagrams(BLOCK_SIZE);
+        List<byte[]> frames = new FecEncoder(BLOCK_SIZE).encode(datagrams);
+        frames.remove(3);
+        Collections.reverse(frames);
+
+        List<byte[]> received = receive(new FecDecoder(), frames);
+        assertEquals(BLOCK_SIZE, received.size());
+        assertArrayEquals(datagrams.get(3), received.get(received.size() - 1));
+    }
+
+    @Test
+    public void nothingIsRecoveredWithoutLoss() {
+        List<byte[]> datagrams = datagrams(2 * BLOCK_SIZE);
+        List<byte[]> frames = new FecEncoder(BLOCK_SIZE).encode(datagrams);
+        assertEquals(2 * BLOCK_SIZE + 2, frames.size());
+
+        FecDecoder decoder = new FecDecoder();
+        List<byte[]> received = receive(decoder, frames);
+        // duplicates are dropped
+        received.addAll(receive(decoder, frames));
+        assertEquals(datagrams.size(), received.size());
+        for (int i = 0; i < datagrams.size(); i++) {
+            assertArrayEquals(datagrams.get(i), received.get(i));
+        }
+        assertEquals(0, decoder.getRecoveredDatagrams());
+    }
+
+    @Test
+    public void twoLossesInABlockAreNotRecovered() {
+        List<byte[]> frames = new FecEncoder(BLOCK_SIZE).encode(datagrams(BLOCK_SIZE));
+        frames.remove(5);
+        frames.remove(1);
+
+        FecDecoder decoder = new FecDecoder();
+        assertEquals(BLOCK_SIZE - 2, receive(decoder, frames).size());
+        assertEquals(0, decoder.getRecoveredDatagrams());
+    }
+
+    @Test
+    public void flushedPartialBlockRecovers() {
+        List<byte[]> datagrams = datagrams(3);
+        FecEncoder encoder = new FecEncoder(BLOCK_SIZE);
+        List<byte[]> frames = encoder.encode(datagrams);
+        assertEquals(3, frames.size());
+        frames.add(encoder.flush());
+        assertNull(encoder.flush());
+        frames.remove(0);
+
+        List<byte[]> received = receive(new FecDecoder(), frames);
+        assertEquals(3, received.size());
+        assertArrayEquals(datagrams.get(0), received.get(2));
+    }
+
+    @Test
+    public void disabledEncoderPassesDatagramsThrough() {
+        List<byte[]> datagrams = datagrams(BLOCK_SIZE);
+        List<byte[]> frames = new FecEncoder(0).encode(datagrams);
+        assertEquals(datagrams.size(), frames.size());
+        for (int i = 0; i < datagrams.size(); i++) {
+            assertSame(datagrams.get(i), frames.get(i));
+        }
+    }
+
+    private static List<byte[]> receive(FecDecoder decoder, List<byte[]> frames) {
+        List<byte[]> datagrams = new ArrayList<byte[]>();
+        for (byte[] frame : frames) {
+            assertTrue(FecEncoder.isFecFrame(frame, frame.length));
+            datagrams.addAll(decoder.add(SENDER, frame, frame.length));
+        }
+        return datagrams;
+    }
+
+    // of different lengths, so the recovered length is checked too
+    private List<byte[]> datagrams(int count) {
+        List<byte[]> datagrams = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] datagram = new byte[1 + random.nextInt(MessageFragmenter.MAX_DATAGRAM_SIZE)];
+            random.nextBytes(datagram);
+            datagrams.add(datagram);
+        }
+        return datagrams;
+    }
+}
@@ -0,0 +1,143 @@
+package org.chimple.flores.multicast;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.chimple.flores.multicast.InvertibleBloomFilter.CELL_SIZE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InvertibleBloomFilterTest {
+
+    private static final String USER = "eeddae92-c43c-4e4e-a0b5-e9d9af957e52";
+    private static final String DEVICE = "0f74666c-0492-4285-a17f-fc67503940a6";
+    private static final String OTHER_DEVICE = "5b1b0b7e-2a2d-4c1f-9d43-8a2f6b1c9e10";
+
+    @Test
+    public void decodesKnownDifference() {
+        Set<Long> shared = new HashSet<Long>();
+        for (long sequence = 1; sequence <= 1000; sequence++) {
+            shared.add(InvertibleBloomFilter.recordKey(USER, DEVICE, sequence));
+        }
+        Set<Long> here = new HashSet<Long>();
+        for (long sequence = 1001; sequence <= 1020; sequence++) {
+            here.add(InvertibleBloomFilter.recordKey(USER, DEVICE, sequence));
+        }
+        Set<Long> there = new HashSet<Long>();
+        for (long sequence = 1; sequence <= 15; sequence++) {
+            there.add(InvertibleBloomFilter.recordKey(USER, OTHER_DEVICE, sequence));
+        }
+
+        int cells = 3 * (here.size() + there.size());
+        InvertibleBloomFilter local = filter(cells, shared, here);
+        InvertibleBloomFilter remote = filter(cells, shared, there);
+        // the remote table goes over the wire
+        remote = InvertibleBloomFilter.fromBytes(remote.toBytes(), remote.getCellCount());
+        local.subtract(remote);
+
+        List<Long> onlyHere = new ArrayList<Long>();
+        List<Long> onlyThere = new ArrayList<Long>();
+        assertTrue(local.decode(onlyHere, onlyThere));
+        assertEquals(here, new HashSet<Long>(onlyHere));
+        assertEquals(there, new HashSet<Long>(onlyThere));
+        assertEquals(here.size(), onlyHere.size());
+        assertEquals(there.size(), onlyThere.size());
+    }
+
+    @Test
+    public void identicalSetsLeaveNothing() {
+        Set<Long> keys = randomKeys(new Random(1), 500);
+        InvertibleBloomFilter local = filter(30, keys);
+        local.subtract(filter(30, keys));
+        List<Long> onlyHere = new ArrayList<Long>();
+        List<Long> onlyThere = new ArrayList<Long>();
+        assertTrue(local.decode(onlyHere, onlyThere));
+        assertTrue(onlyHere.isEmpty());
+        assertTrue(onlyThere.isEmpty());
+    }
+
+    @Test
+    public void tooSmallTableReportsFailure() {
+        Random random = new Random(2);
+        InvertibleBloomFilter local = filter(12, randomKeys(random, 200));
+        local.subtract(filter(12, randomKeys(random, 200)));
+        assertFalse(local.decode(new ArrayList<Long>(), new ArrayList<Long>()));
+    }
+
+    @Test
+    public void removeUndoesAdd() {
+        InvertibleBloomFilter filter = new InvertibleBloomFilter(30);
+        byte[] empty = filter.toBytes();
+        for (long key : randomKeys(new Random(3), 50)) {
+            filter.add(key);
+            filter.remove(key);
+        }
+        assertArrayEquals(empty, filter.toBytes());
+    }
+
+    @Test
+    public void cellCountIsRoundedToTheHashCount() {
+        assertEquals(30, new InvertibleBloomFilter(29).getCellCount());
+        assertEquals(InvertibleBloomFilter.HASH_COUNT, new InvertibleBloomFilter(0).getCellCount());
+    }
+
+    @Test
+    public void malformedBytesAreRejected() {
+        byte[] bytes = new InvertibleBloomFilter(30).toBytes();
+        assertEquals(30 * CELL_SIZE, bytes.length);
+        assertNull(InvertibleBloomFilter.fromBytes(bytes, 33));
+        assertNull(InvertibleBloomFilter.fromBytes(bytes, 29));
+        assertNull(InvertibleBloomFilter.fromBytes(bytes, 0));
+        assertNull(InvertibleBloomFilter.fromBytes(bytes, -30));
+        assertNull(InvertibleBloomFilter.fromBytes(bytes, Integer.MAX_VALUE - 1));
+        assertNull(InvertibleBloomFilter.fromBytes(null, 30));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void subtractingADifferentSizeFails() {
+        new InvertibleBloomFilter(30).subtract(new InvertibleBloomFilter(60));
+    }
+
+    @Test
+    public void recordKeysDiffer() {
+        Set<Long> keys = new HashSet<Long>();
+        for (long sequence = 1; sequence <= 1000; sequence++) {
+            keys.add(InvertibleBloomFilter.recordKey(USER, DEVICE, sequence));
+            keys.add(InvertibleBloomFilter.recordKey(USER, OTHER_DEVICE, sequence));
+            keys.add(InvertibleBloomFilter.recordKey(DEVICE, USER, sequence));
+        }
+        assertEquals(3000, keys.size());
+    }
+
+    private static InvertibleBloomFilter filter(int cells, Set<Long> keys) {
+        InvertibleBloomFilter filter = new InvertibleBloomFilter(cells);
+        for (long key : keys) {
+            filter.add(key);
+        }
+        return filter;
+    }
+
+    private static InvertibleBloomFilter filter(int cells, Set<Long> keys, Set<Long> moreKeys) {
+        InvertibleBloomFilter filter = filter(cells, keys);
+        for (long key : moreKeys) {
+            filter.add(key);
+        }
+        return filter;
+    }
+
+    private static Set<Long> randomKeys(Random random, int count) {
+        Set<Long> keys = new HashSet<Long>();
+        while (keys.size() < count) {
+            keys.add(random.nextLong());
+        }
+        return keys;
+    }
+}
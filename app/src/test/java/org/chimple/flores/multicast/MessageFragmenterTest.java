@@ -0,0 +1,179 @@
+package org.chimple.flores.multicast;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.chimple.flores.multicast.FragmentReassembler.MAX_PENDING_MESSAGES;
+import static org.chimple.flores.multicast.FragmentReassembler.REASSEMBLY_TIMEOUT;
+import static org.chimple.flores.multicast.MessageFragmenter.FRAGMENT_HEADER_SIZE;
+import static org.chimple.flores.multicast.MessageFragmenter.MAX_DATAGRAM_SIZE;
+import static org.chimple.flores.multicast.MessageFragmenter.MAX_FRAGMENT_PAYLOAD;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MessageFragmenterTest {
+
+    private static final String SENDER = "192.168.1.10";
+    private static final String OTHER_SENDER = "192.168.1.11";
+
+    private final MessageFragmenter fragmenter = new MessageFragmenter();
+    private final Random random = new Random(11);
+
+    @Test
+    public void smallMessageIsSentUnchanged() {
+        byte[] message = message(MAX_DATAGRAM_SIZE);
+        List<byte[]> fragments = fragmenter.fragment(message);
+        assertEquals(1, fragments.size());
+        assertSame(message, fragments.get(0));
+        assertFalse(MessageFragmenter.isFragment(message, message.length));
+    }
+
+    @Test
+    public void fragmentsFitOneDatagram() {
+        byte[] message = message(10 * MAX_FRAGMENT_PAYLOAD + 1);
+        List<byte[]> fragments = fragmenter.fragment(message);
+        assertEquals(11, fragments.size());
+        for (byte[] fragment : fragments) {
+            assertTrue(fragment.length <= MAX_DATAGRAM_SIZE);
+            assertTrue(MessageFragmenter.isFragment(fragment, fragment.length));
+        }
+        assertEquals(FRAGMENT_HEADER_SIZE + 1, fragments.get(10).length);
+    }
+
+    @Test
+    public void reassemblesInOrder() {
+        byte[] message = message(5 * MAX_FRAGMENT_PAYLOAD + 123);
+        assertArrayEquals(message, deliver(new FragmentReassembler(), SENDER, fragmenter.fragment(message), 0));
+    }
+
+    @Test
+    public void reassemblesReorderedAndDuplicated() {
+        byte[] message = message(7 * MAX_FRAGMENT_PAYLOAD);
+        List<byte[]> fragments = new ArrayList<byte[]>(fragmenter.fragment(message));
+        fragments.addAll(fragments.subList(0, 3));
+        Collections.shuffle(fragments, random);
+        FragmentReassembler reassembler = new FragmentReassembler();
+
+        byte[] reassembled = null;
+        for (byte[] fragment : fragments) {
+            byte[] complete = reassembler.add(SENDER, fragment, fragment.length, 0);
+            if (complete != null) {
+                assertNull("completed twice", reassembled);
+                reassembled = complete;
+            }
+        }
+        assertArrayEquals(message, reassembled);
+        assertEquals(0, reassembler.getPendingMessages());
+    }
+
+    @Test
+    public void lostFragmentLeavesMessagePending() {
+        List<byte[]> fragments = new ArrayList<byte[]>(fragmenter.fragment(message(4 * MAX_FRAGMENT_PAYLOAD)));
+        fragments.remove(2);
+        FragmentReassembler reassembler = new FragmentReassembler();
+        assertNull(deliver(reassembler, SENDER, fragments, 0));
+        assertEquals(1, reassembler.getPendingMessages());
+    }
+
+    @Test
+    public void pendingMessageTimesOut() {
+        List<byte[]> fragments = fragmenter.fragment(message(3 * MAX_FRAGMENT_PAYLOAD));
+        FragmentReassembler reassembler = new FragmentReassembler();
+        assertNull(deliver(reassembler, SENDER, fragments.subList(0, 2), 0));
+
+        // the first fragments were dropped, so the last one alone cannot complete the message
+        byte[] last = fragments.get(2);
+        assertNull(reassembler.add(SENDER, last, last.length, REASSEMBLY_TIMEOUT));
+        assertEquals(1, reassembler.getEvictedMessages());
+        assertEquals(1, reassembler.getPendingMessages());
+    }
+
+    @Test
+    public void sendersAreKeptApart() {
+        byte[] message = message(2 * MAX_FRAGMENT_PAYLOAD);
+        List<byte[]> fragments = fragmenter.fragment(message);
+        FragmentReassembler reassembler = new FragmentReassembler();
+        byte[] first = fragments.get(0);
+        byte[] second = fragments.get(1);
+        assertNull(reassembler.add(SENDER, first, first.length, 0));
+        assertNull(reassembler.add(OTHER_SENDER, second, second.length, 0));
+        assertEquals(2, reassembler.getPendingMessages());
+        assertArrayEquals(message, reassembler.add(SENDER, second, second.length, 0));
+    }
+
+    @Test
+    public void eldestMessageIsEvictedWhenFull() {
+        FragmentReassembler reassembler = new FragmentReassembler();
+        for (int i = 0; i <= MAX_PENDING_MESSAGES; i++) {
+            byte[] first = fragmenter.fragment(message(2 * MAX_FRAGMENT_PAYLOAD)).get(0);
+            assertNull(reassembler.add(SENDER, first, first.length, i));
+        }
+        assertEquals(MAX_PENDING_MESSAGES, reassembler.getPendingMessages());
+        assertEquals(1, reassembler.getEvictedMessages());
+    }
+
+    @Test
+    public void largestMessageIsReassembled() {
+        byte[] message = message(MessageFragmenter.MAX_MESSAGE_SIZE);
+        List<byte[]> fragments = fragmenter.fragment(message);
+        assertEquals(MessageFragmenter.MAX_FRAGMENTS, fragments.size());
+        assertArrayEquals(message, deliver(new FragmentReassembler(), SENDER, fragments, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void messageOverTheLimitIsNotFragmented() {
+        fragmenter.fragment(message(MessageFragmenter.MAX_MESSAGE_SIZE + 1));
+    }
+
+    @Test
+    public void oversizedMessageIsRejected() {
+        int count = MessageFragmenter.MAX_FRAGMENTS + 1;
+        byte[] fragment = fragment(42, 0, count, MAX_FRAGMENT_PAYLOAD);
+        FragmentReassembler reassembler = new FragmentReassembler();
+        assertNull(reassembler.add(SENDER, fragment, fragment.length, 0));
+        assertEquals(0, reassembler.getPendingMessages());
+    }
+
+    @Test
+    public void malformedFragmentIsRejected() {
+        FragmentReassembler reassembler = new FragmentReassembler();
+        byte[] outOfRange = fragment(1, 3, 3, 10);
+        byte[] noFragments = fragment(2, 0, 0, 10);
+        assertNull(reassembler.add(SENDER, outOfRange, outOfRange.length, 0));
+        assertNull(reassembler.add(SENDER, noFragments, noFragments.length, 0));
+        assertEquals(0, reassembler.getPendingMessages());
+    }
+
+    private static byte[] deliver(FragmentReassembler reassembler, String fromIP, List<byte[]> fragments, long now) {
+        byte[] message = null;
+        for (byte[] fragment : fragments) {
+            message = reassembler.add(fromIP, fragment, fragment.length, now);
+        }
+        return message;
+    }
+
+    private static byte[] fragment(int messageId, int index, int count, int chunkLength) {
+        return ByteBuffer.allocate(FRAGMENT_HEADER_SIZE + chunkLength)
+                .put(MessageFragmenter.FRAME_MAGIC)
+                .put(MessageFragmenter.FRAME_FRAGMENT)
+                .putInt(messageId)
+                .putShort((short) index)
+                .putShort((short) count)
+                .array();
+    }
+
+    private byte[] message(int length) {
+        byte[] message = new byte[length];
+        random.nextBytes(message);
+        return message;
+    }
+}
@@ -0,0 +1,67 @@
+package org.chimple.flores.multicast;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+public class PacketBufferPoolTest {
+
+    private static final int POOL_SIZE = 4;
+    private static final int BUFFER_SIZE = 1024;
+
+    @Test
+    public void releasedBufferIsReused() {
+        PacketBufferPool pool = new PacketBufferPool(POOL_SIZE, BUFFER_SIZE);
+        assertEquals(POOL_SIZE, pool.getAllocatedBuffers());
+        assertEquals(POOL_SIZE, pool.getAvailableBuffers());
+
+        for (int i = 0; i < 100; i++) {
+            byte[] buffer = pool.acquire();
+            assertEquals(BUFFER_SIZE, buffer.length);
+            assertEquals(POOL_SIZE - 1, pool.getAvailableBuffers());
+            pool.release(buffer);
+        }
+        assertEquals(POOL_SIZE, pool.getAllocatedBuffers());
+        assertEquals(POOL_SIZE, pool.getAvailableBuffers());
+    }
+
+    @Test
+    public void exhaustedPoolAllocates() {
+        PacketBufferPool pool = new PacketBufferPool(POOL_SIZE, BUFFER_SIZE);
+        List<byte[]> held = new ArrayList<byte[]>();
+        for (int i = 0; i < POOL_SIZE; i++) {
+            held.add(pool.acquire());
+        }
+        assertEquals(0, pool.getAvailableBuffers());
+        assertEquals(POOL_SIZE, pool.getAllocatedBuffers());
+
+        byte[] extra = pool.acquire();
+        assertNotNull(extra);
+        assertEquals(BUFFER_SIZE, extra.length);
+        assertEquals(POOL_SIZE + 1, pool.getAllocatedBuffers());
+
+        // the pool keeps no more than it was sized for
+        held.add(extra);
+        for (byte[] buffer : held) {
+            pool.release(buffer);
+        }
+        assertEquals(POOL_SIZE, pool.getAvailableBuffers());
+    }
+
+    @Test
+    public void foreignBuffersAreNotPooled() {
+        PacketBufferPool pool = new PacketBufferPool(1, BUFFER_SIZE);
+        byte[] buffer = pool.acquire();
+        pool.release(new byte[BUFFER_SIZE / 2]);
+        pool.release(null);
+        assertEquals(0, pool.getAvailableBuffers());
+
+        pool.release(buffer);
+        assertSame(buffer, pool.acquire());
+    }
+}
@@ -0,0 +1,105 @@
+package org.chimple.flores.multicast;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.chimple.flores.multicast.PacketHeader.BROADCAST;
+import static org.chimple.flores.multicast.PacketHeader.HEADER_SIZE;
+import static org.chimple.flores.multicast.PacketHeader.deviceHash;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PacketHeaderTest {
+
+    private static final String SENDER = "0f74666c-0492-4285-a17f-fc67503940a6";
+    private static final String TARGET = "5b1b0b7e-2a2d-4c1f-9d43-8a2f6b1c9e10";
+    private static final String OTHER = "eeddae92-c43c-4e4e-a0b5-e9d9af957e52";
+    private static final byte[] PAYLOAD = "{\"mt\":\"syncInfoMessage\"}".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void headerRoundTrips() {
+        byte[] packet = PacketHeader.wrap(PacketHeader.TYPE_SYNC_INFO, PacketHeader.FLAG_BINARY, SENDER, TARGET, PAYLOAD);
+        assertEquals(HEADER_SIZE + PAYLOAD.length, packet.length);
+        assertTrue(PacketHeader.isPacket(packet, packet.length));
+
+        PacketHeader header = PacketHeader.read(packet, packet.length);
+        assertEquals(PacketHeader.TYPE_SYNC_INFO, header.getType());
+        assertTrue(header.isBinary());
+        assertEquals(PAYLOAD.length, header.getPayloadLength());
+        assertTrue(header.isValid(packet));
+        assertArrayEquals(PAYLOAD, Arrays.copyOfRange(packet, HEADER_SIZE, packet.length));
+        assertTrue(header.isFrom(deviceHash(SENDER)));
+        assertEquals(deviceHash(TARGET), header.getTargetHash());
+    }
+
+    @Test
+    public void jsonRoundTrips() {
+        String json = "{\"mt\":\"handshaking\",\"f\":\"" + SENDER + "\"}";
+        byte[] packet = PacketHeader.wrap(PacketHeader.TYPE_HANDSHAKE, SENDER, null, json);
+        PacketHeader header = PacketHeader.read(packet, packet.length);
+        assertFalse(header.isBinary());
+        assertEquals(json, header.json(packet));
+    }
+
+    @Test
+    public void everyCorruptPayloadByteFailsTheChecksum() {
+        byte[] packet = PacketHeader.wrap(PacketHeader.TYPE_SYNC_INFO, (byte) 0, SENDER, null, PAYLOAD);
+        for (int i = HEADER_SIZE; i < packet.length; i++) {
+            packet[i] ^= 0x10;
+            PacketHeader header = PacketHeader.read(packet, packet.length);
+            assertFalse("byte " + i, header.isValid(packet));
+            packet[i] ^= 0x10;
+        }
+        assertTrue(PacketHeader.read(packet, packet.length).isValid(packet));
+    }
+
+    @Test
+    public void lengthMismatchIsRejected() {
+        byte[] packet = PacketHeader.wrap(PacketHeader.TYPE_SYNC_INFO, (byte) 0, SENDER, null, PAYLOAD);
+        assertNull(PacketHeader.read(packet, packet.length - 1));
+        byte[] longer = new byte[packet.length + 1];
+        System.arraycopy(packet, 0, longer, 0, packet.length);
+        assertNull(PacketHeader.read(longer, longer.length));
+        assertNull(PacketHeader.read(packet, HEADER_SIZE - 1));
+    }
+
+    @Test
+    public void otherVersionIsRejected() {
+        byte[] packet = PacketHeader.wrap(PacketHeader.TYPE_SYNC_INFO, (byte) 0, SENDER, null, PAYLOAD);
+        packet[2] = PacketHeader.VERSION + 1;
+        assertNull(PacketHeader.read(packet, packet.length));
+    }
+
+    @Test
+    public void targetedPacketIsOnlyForItsTarget() {
+        byte[] packet = PacketHeader.wrap(PacketHeader.TYPE_SYNC_INFO, (byte) 0, SENDER, TARGET, PAYLOAD);
+        PacketHeader header = PacketHeader.read(packet, packet.length);
+        assertTrue(header.isFor(deviceHash(TARGET)));
+        // device ids compare case insensitively
+        assertTrue(header.isFor(deviceHash(TARGET.toUpperCase())));
+        assertFalse(header.isFor(deviceHash(OTHER)));
+        assertFalse(header.isFor(deviceHash(SENDER)));
+    }
+
+    @Test
+    public void broadcastPacketIsForEveryone() {
+        byte[] packet = PacketHeader.wrap(PacketHeader.TYPE_HANDSHAKE, (byte) 0, SENDER, null, PAYLOAD);
+        PacketHeader header = PacketHeader.read(packet, packet.length);
+        assertEquals(BROADCAST, header.getTargetHash());
+        assertTrue(header.isFor(deviceHash(TARGET)));
+        assertTrue(header.isFor(deviceHash(OTHER)));
+        assertFalse(header.isFrom(deviceHash(OTHER)));
+    }
+
+    @Test
+    public void deviceHashNeverCollidesWithBroadcast() {
+        assertEquals(BROADCAST, deviceHash(null));
+        // "" hashes to 0 as a String
+        assertEquals(1, deviceHash(""));
+    }
+}
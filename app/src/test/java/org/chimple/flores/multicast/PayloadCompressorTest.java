@@ -0,0 +1,98 @@
+package org.chimple.flores.multicast;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.chimple.flores.multicast.PayloadCompressor.DEFLATE_HEADER_SIZE;
+import static org.chimple.flores.multicast.PayloadCompressor.MAX_INFLATED_SIZE;
+import static org.chimple.flores.multicast.PayloadCompressor.MIN_COMPRESS_SIZE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PayloadCompressorTest {
+
+    private static final String SYNC_INFO = "{\"mt\":\"syncInfoMessage\",\"i\":[{\"id\":0,\"userId\":\"eeddae92-c43c-4e4e-a0b5-e9d9af957e52\","
+            + "\"deviceId\":\"0f74666c-0492-4285-a17f-fc67503940a6\",\"sequence\":7,\"messageType\":\"Chat\","
+            + "\"message\":\"hello\",\"status\":true,\"sender\":\"0f74666c-0492-4285-a17f-fc67503940a6\"}],"
+            + "\"s\":\"0f74666c-0492-4285-a17f-fc67503940a6\"}";
+
+    private final PayloadCompressor compressor = new PayloadCompressor();
+
+    @Test
+    public void protocolJsonRoundTrips() {
+        byte[] payload = SYNC_INFO.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = compressor.compress(payload);
+        assertTrue(PayloadCompressor.isCompressed(frame, frame.length));
+        // the dictionary makes even one record worth compressing
+        assertTrue(frame.length < payload.length / 2);
+        assertArrayEquals(payload, compressor.decompress(frame, frame.length));
+    }
+
+    @Test
+    public void largePayloadRoundTrips() {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            json.append(SYNC_INFO);
+        }
+        byte[] payload = json.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] frame = compressor.compress(payload);
+        assertTrue(PayloadCompressor.isCompressed(frame, frame.length));
+        assertArrayEquals(payload, compressor.decompress(frame, frame.length));
+    }
+
+    @Test
+    public void smallPayloadIsSentUnchanged() {
+        byte[] payload = new byte[MIN_COMPRESS_SIZE - 1];
+        assertSame(payload, compressor.compress(payload));
+    }
+
+    @Test
+    public void incompressiblePayloadIsSentUnchanged() {
+        byte[] payload = new byte[1000];
+        new Random(3).nextBytes(payload);
+        payload[0] = '{';
+        byte[] frame = compressor.compress(payload);
+        assertSame(payload, frame);
+        assertFalse(PayloadCompressor.isCompressed(frame, frame.length));
+    }
+
+    @Test
+    public void oversizedLengthIsRejected() {
+        byte[] frame = compressor.compress(SYNC_INFO.getBytes(StandardCharsets.UTF_8));
+        ByteBuffer.wrap(frame, 2, 4).putInt(MAX_INFLATED_SIZE + 1);
+        assertNull(compressor.decompress(frame, frame.length));
+        ByteBuffer.wrap(frame, 2, 4).putInt(-1);
+        assertNull(compressor.decompress(frame, frame.length));
+    }
+
+    @Test
+    public void inflatingStopsAtTheDeclaredLength() {
+        byte[] payload = new byte[100 * 1024];
+        byte[] frame = compressor.compress(payload);
+        assertTrue(frame.length < 1024);
+        ByteBuffer.wrap(frame, 2, 4).putInt(100);
+        byte[] inflated = compressor.decompress(frame, frame.length);
+        assertEquals(100, inflated.length);
+    }
+
+    @Test
+    public void truncatedOrCorruptFrameIsRejected() {
+        byte[] payload = SYNC_INFO.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = compressor.compress(payload);
+        assertNull(compressor.decompress(frame, DEFLATE_HEADER_SIZE + (frame.length - DEFLATE_HEADER_SIZE) / 2));
+
+        byte[] corrupt = Arrays.copyOf(frame, frame.length);
+        Arrays.fill(corrupt, DEFLATE_HEADER_SIZE, corrupt.length, (byte) 0xFF);
+        assertNull(compressor.decompress(corrupt, corrupt.length));
+        // the compressor is still usable afterwards
+        assertArrayEquals(payload, compressor.decompress(frame, frame.length));
+    }
+}
@@ -0,0 +1,112 @@
+package org.chimple.flores.multicast;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.chimple.flores.multicast.PipelineStage.OverloadPolicy.DROP_NEWEST;
+import static org.chimple.flores.multicast.PipelineStage.OverloadPolicy.DROP_OLDEST;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PipelineStageTest {
+
+    private static final long TIMEOUT = 5; // sec
+
+    @Test
+    public void stageIsBusyUntilItsItemsAreHandled() throws InterruptedException {
+        final CountDownLatch handling = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        PipelineStage<Integer> stage = new PipelineStage<Integer>("test", 4, DROP_NEWEST, new PipelineStage.Handler<Integer>() {
+            @Override
+            public void handle(Integer item) {
+                handling.countDown();
+                await(release);
+            }
+        });
+        assertTrue(stage.isIdle());
+        stage.start();
+        try {
+            assertTrue(stage.offer(1));
+            assertTrue(handling.await(TIMEOUT, TimeUnit.SECONDS));
+            // taken off the queue, still being handled
+            assertEquals(0, stage.getDepth());
+            assertFalse(stage.isIdle());
+
+            release.countDown();
+            assertTrue(awaitIdle(stage));
+            assertEquals(1, stage.getProcessed());
+        } finally {
+            stage.stop();
+        }
+    }
+
+    @Test
+    public void dropOldestKeepsTheNewestItems() throws InterruptedException {
+        final CountDownLatch handling = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> handled = new ArrayList<Integer>();
+        PipelineStage<Integer> stage = new PipelineStage<Integer>("test", 2, DROP_OLDEST, new PipelineStage.Handler<Integer>() {
+            @Override
+            public void handle(Integer item) {
+                handling.countDown();
+                await(release);
+                synchronized (handled) {
+                    handled.add(item);
+                }
+            }
+        });
+        stage.start();
+        try {
+            assertTrue(stage.offer(0));
+            assertTrue(handling.await(TIMEOUT, TimeUnit.SECONDS));
+            for (int i = 1; i < 10; i++) {
+                assertTrue(stage.offer(i));
+            }
+            release.countDown();
+            assertTrue(awaitIdle(stage));
+            synchronized (handled) {
+                // the item the worker held, then the two newest
+                assertEquals(3, handled.size());
+                assertEquals(0, (int) handled.get(0));
+                assertEquals(8, (int) handled.get(1));
+                assertEquals(9, (int) handled.get(2));
+            }
+            assertEquals(7, stage.getDropped());
+        } finally {
+            stage.stop();
+        }
+    }
+
+    @Test
+    public void stoppedStageDropsAndStaysIdle() {
+        PipelineStage<Integer> stage = new PipelineStage<Integer>("test", 2, DROP_NEWEST, new PipelineStage.Handler<Integer>() {
+            @Override
+            public void handle(Integer item) {
+            }
+        });
+        assertFalse(stage.offer(1));
+        assertEquals(1, stage.getDropped());
+        assertTrue(stage.isIdle());
+    }
+
+    private static boolean awaitIdle(PipelineStage<?> stage) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT);
+        while (!stage.isIdle() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return stage.isIdle();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
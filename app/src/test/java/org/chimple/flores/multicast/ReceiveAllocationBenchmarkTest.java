@@ -0,0 +1,69 @@
+package org.chimple.flores.multicast;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures bytes allocated per received packet on the listener's network thread: a pooled buffer
+ * filled as the socket would, decoded by MulticastListenerThread and handed to the inbound
+ * pipeline, whose decode stage is not running so nothing past the hand-off is counted.
+ */
+public class ReceiveAllocationBenchmarkTest {
+
+    private static final int PACKETS = 2000;
+    private static final String SENDER = "0f74666c-0492-4285-a17f-fc67503940a6";
+    private static final String OTHER = "eeddae92-c43c-4e4e-a0b5-e9d9af957e52";
+    private static final String JSON = "{\"mt\":\"syncInfoMessage\",\"s\":\"" + SENDER + "\","
+            + "\"i\":[{\"u\":\"" + OTHER + "\",\"d\":\"" + SENDER + "\",\"s\":7,\"t\":\"Chat\",\"m\":\"hello\"}]}";
+    private static final byte[] FOR_EVERYONE = PacketHeader.wrap(PacketHeader.TYPE_SYNC_INFO, SENDER, null, JSON);
+    private static final byte[] FOR_ANOTHER_DEVICE = PacketHeader.wrap(PacketHeader.TYPE_SYNC_INFO, SENDER, OTHER, JSON);
+
+    @Test
+    public void keptPacketIsCopiedOnce() {
+        MulticastListenerThread listener = listener();
+        // warm up so that class loading and JIT do not show up in the measurement
+        receive(listener, FOR_EVERYONE, PACKETS);
+
+        long perPacket = allocatedBytes(listener, FOR_EVERYONE) / PACKETS;
+        System.out.println("bytes allocated per received packet kept for decoding: " + perPacket + " (packet " + FOR_EVERYONE.length + ")");
+        assertTrue("only the packet copy and its bookkeeping", perPacket < FOR_EVERYONE.length + 256);
+        assertEquals(4, listener.bufferPool.getAllocatedBuffers());
+    }
+
+    @Test
+    public void droppedPacketIsNotCopied() {
+        MulticastListenerThread listener = listener();
+        receive(listener, FOR_ANOTHER_DEVICE, PACKETS);
+
+        long perPacket = allocatedBytes(listener, FOR_ANOTHER_DEVICE) / PACKETS;
+        System.out.println("bytes allocated per received packet for another device: " + perPacket);
+        assertTrue("only the header is read", perPacket < 128);
+    }
+
+    private static MulticastListenerThread listener() {
+        InboundPipeline pipeline = new InboundPipeline(null, null);
+        pipeline.setLocalDeviceHash(PacketHeader.deviceHash("5b1b0b7e-2a2d-4c1f-9d43-8a2f6b1c9e10"));
+        return new MulticastListenerThread(null, "224.0.0.1", 4450, pipeline);
+    }
+
+    // as the receive loop does: a pooled buffer the socket fills, then decoded and released
+    private static void receive(MulticastListenerThread listener, byte[] datagram, int packets) {
+        for (int i = 0; i < packets; i++) {
+            byte[] buffer = listener.bufferPool.acquire();
+            System.arraycopy(datagram, 0, buffer, 0, datagram.length);
+            listener.receive(buffer, datagram.length, "192.168.1.7");
+        }
+    }
+
+    private static long allocatedBytes(MulticastListenerThread listener, byte[] datagram) {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(threadId);
+        receive(listener, datagram, PACKETS);
+        return bean.getThreadAllocatedBytes(threadId) - before;
+    }
+}
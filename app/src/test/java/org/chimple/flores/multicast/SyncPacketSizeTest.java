@@ -0,0 +1,74 @@
+package org.chimple.flores.multicast;
+
+import org.chimple.flores.db.BinaryMessageCodec;
+import org.chimple.flores.db.entity.HandShakingInfo;
+import org.chimple.flores.db.entity.HandShakingMessage;
+import org.chimple.flores.db.entity.P2PSyncInfo;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.chimple.flores.multicast.MulticastManager.DEFAULT_SYNC_PAYLOAD_BUDGET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Packed sync records and handshake pages must fit a single datagram once wrapped in the
+ * packet envelope and, when it pays, deflated.
+ */
+public class SyncPacketSizeTest {
+
+    private static final String DEVICE = "0f74666c-0492-4285-a17f-fc67503940a6";
+
+    private final BinaryMessageCodec codec = new BinaryMessageCodec();
+    private final PayloadCompressor compressor = new PayloadCompressor();
+    private final MessageFragmenter fragmenter = new MessageFragmenter();
+
+    @Test
+    public void packedSyncInfoPacketIsOneDatagram() {
+        Random random = new Random(7);
+        List<P2PSyncInfo> infos = new ArrayList<P2PSyncInfo>();
+        for (long sequence = 1; sequence <= 200; sequence++) {
+            P2PSyncInfo info = new P2PSyncInfo(UUID.randomUUID().toString(), DEVICE, sequence, null, randomText(random, 20 + random.nextInt(200)), "Chat", new Date());
+            info.setSender(DEVICE);
+            infos.add(info);
+        }
+        List<byte[]> packets = codec.encodeSyncInfoPackets(infos, DEFAULT_SYNC_PAYLOAD_BUDGET);
+        assertTrue(packets.size() > 1);
+        for (byte[] packet : packets) {
+            assertOneDatagram(PacketHeader.wrap(PacketHeader.TYPE_SYNC_INFO, PacketHeader.FLAG_BINARY, DEVICE, null, packet));
+        }
+    }
+
+    @Test
+    public void handShakingPageIsOneDatagram() {
+        List<HandShakingInfo> infos = new ArrayList<HandShakingInfo>();
+        for (long i = 1; i <= 300; i++) {
+            infos.add(new HandShakingInfo(UUID.randomUUID().toString(), UUID.randomUUID().toString(), i, null, null));
+        }
+        HandShakingMessage message = new HandShakingMessage(DEVICE, "handshaking", "true", infos);
+        List<byte[]> pages = codec.encodeHandShakingPages(message, 1, DEFAULT_SYNC_PAYLOAD_BUDGET);
+        assertTrue(pages.size() > 1);
+        for (byte[] page : pages) {
+            assertOneDatagram(PacketHeader.wrap(PacketHeader.TYPE_HANDSHAKE, PacketHeader.FLAG_BINARY, DEVICE, null, page));
+        }
+    }
+
+    private void assertOneDatagram(byte[] packet) {
+        assertEquals(1, fragmenter.fragment(packet).size());
+        assertEquals(1, fragmenter.fragment(compressor.compress(packet)).size());
+    }
+
+    // incompressible, so deflate falls back to the payload as is
+    private static String randomText(Random random, int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append((char) ('!' + random.nextInt(90)));
+        }
+        return text.toString();
+    }
+}